@@ -1,50 +1,115 @@
 package cn.edu.usst.mud;
 // MUD.java - 修复版RPG游戏
 import java.io.*;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.lang.management.ManagementFactory;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.channels.*;
+import java.nio.charset.CharsetEncoder;
+import java.nio.charset.CodingErrorAction;
+import java.nio.charset.StandardCharsets;
 import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+import java.util.function.Consumer;
+import java.util.function.IntUnaryOperator;
+import java.util.function.LongSupplier;
+import java.util.function.Predicate;
+import java.util.function.Supplier;
+import javax.management.Attribute;
+import javax.management.AttributeList;
+import javax.management.AttributeNotFoundException;
+import javax.management.DynamicMBean;
+import javax.management.JMException;
+import javax.management.MBeanAttributeInfo;
+import javax.management.MBeanInfo;
+import javax.management.MBeanOperationInfo;
+import javax.management.MBeanParameterInfo;
+import javax.management.ObjectName;
+import javax.management.ReflectionException;
 
 // ==============================
 // 1. 物品类
 // ==============================
-class Item implements Serializable {
-    private String name;
-    private String description;
-    private int value;
+// 名称、描述、价格等不变数据放在共享的 ItemTemplate 中，每个物品实例只保存一个引用
+class Item implements Serializable, Named {
+    // 以下 serialVersionUID 均为旧版类的计算值，旧版 mud_save.dat 才能直接读入
+    private static final long serialVersionUID = 5640001563360254356L;
+    // 序列化形式仍是旧版的三个字段，不写出 ItemTemplate
+    private static final ObjectStreamField[] serialPersistentFields = {
+            new ObjectStreamField("name", String.class),
+            new ObjectStreamField("description", String.class),
+            new ObjectStreamField("value", int.class)
+    };
+
+    // 只在构造和 readObject 中赋值
+    private ItemTemplate template;
 
     public Item(String name, String description) {
         this(name, description, 0);
     }
 
     public Item(String name, String description, int value) {
-        this.name = name;
-        this.description = description;
-        this.value = value;
+        this(ItemTemplates.intern(name, description, value));
     }
 
-    public String getName() { return name; }
-    public String getDescription() { return description; }
-    public int getValue() { return value; }
+    public Item(ItemTemplate template) {
+        this.template = template;
+    }
+
+    public ItemTemplate getTemplate() { return template; }
+    public String getName() { return template.getName(); }
+    public String getDescription() { return template.getDescription(); }
+    public int getValue() { return template.getValue(); }
 
     @Override
     public String toString() {
-        return name + " - " + description;
+        return template.getName() + " - " + template.getDescription();
+    }
+
+    private void writeObject(ObjectOutputStream out) throws IOException {
+        ObjectOutputStream.PutField fields = out.putFields();
+        fields.put("name", template.getName());
+        fields.put("description", template.getDescription());
+        fields.put("value", template.getValue());
+        out.writeFields();
+    }
+
+    // 旧存档里的名称、描述和价格换回注册表中的共享模板
+    private void readObject(ObjectInputStream in) throws IOException, ClassNotFoundException {
+        ObjectInputStream.GetField fields = in.readFields();
+        template = ItemTemplates.intern((String) fields.get("name", null),
+                (String) fields.get("description", null), fields.get("value", 0));
     }
 }
 
 // ==============================
 // 2. 技能类
 // ==============================
+// 技能不可变，同名技能由 SkillRegistry 共享同一个实例
 class Skill implements Serializable {
-    private String name;
-    private int damage;
-    private int mpCost;
+    private static final long serialVersionUID = -5083995983253776561L;
+    private final int id;
+    private final String name;
+    private final int damage;
+    private final int mpCost;
 
     public Skill(String name, int damage, int mpCost) {
+        this(-1, name, damage, mpCost);
+    }
+
+    Skill(int id, String name, int damage, int mpCost) {
+        this.id = id;
         this.name = name;
         this.damage = damage;
         this.mpCost = mpCost;
     }
 
+    // 未在注册表中登记的技能返回 -1
+    public int getId() { return id; }
     public String getName() { return name; }
     public int getDamage() { return damage; }
     public int getMpCost() { return mpCost; }
@@ -53,16 +118,35 @@ class Skill implements Serializable {
     public String toString() {
         return name + " (伤害:" + damage + ", 消耗MP:" + mpCost + ")";
     }
+
+    // 反序列化时换回注册表中的共享实例
+    private Object readResolve() {
+        return SkillRegistry.intern(name, damage, mpCost);
+    }
 }
 
 // ==============================
 // 3. 角色基类
 // ==============================
-abstract class Character implements Serializable {
+abstract class Character implements Serializable, Named {
+    private static final long serialVersionUID = -8561599257039587191L;
+    // hp/mp 可能被战斗、交易和定时任务同时修改，用 CAS 更新；字段仍是 int，存档格式不变
+    private static final VarHandle HP;
+    private static final VarHandle MP;
+    static {
+        try {
+            MethodHandles.Lookup lookup = MethodHandles.lookup();
+            HP = lookup.findVarHandle(Character.class, "hp", int.class);
+            MP = lookup.findVarHandle(Character.class, "mp", int.class);
+        } catch (ReflectiveOperationException e) {
+            throw new ExceptionInInitializerError(e);
+        }
+    }
+
     protected String name;
-    protected int hp;
+    protected volatile int hp;
     protected int maxHp;
-    protected int mp;
+    protected volatile int mp;
     protected int maxMp;
     protected int attack;
     protected int defense;
@@ -103,24 +187,46 @@ abstract class Character implements Serializable {
     public boolean isAlive() { return hp > 0; }
 
     public void receiveDamage(int damage) {
-        int actualDamage = Math.max(1, damage - defense / 5);
-        hp = Math.max(0, hp - actualDamage);
+        update(HP, current -> CombatCore.applyDamage(current, damage, defense));
     }
 
     public void heal(int amount) {
-        hp = Math.min(maxHp, hp + amount);
+        update(HP, current -> CombatCore.heal(current, maxHp, amount));
     }
 
     public void restoreMp(int amount) {
-        mp = Math.min(maxMp, mp + amount);
+        update(MP, current -> Math.min(maxMp, current + amount));
+    }
+
+    // MP 不足时不扣除并返回 false
+    public boolean spendMp(int amount) {
+        int current;
+        do {
+            current = mp;
+            if (current < amount) {
+                return false;
+            }
+        } while (!MP.compareAndSet(this, current, current - amount));
+        return true;
+    }
+
+    private void update(VarHandle field, IntUnaryOperator change) {
+        int current;
+        do {
+            current = (int) field.getVolatile(this);
+        } while (!field.compareAndSet(this, current, change.applyAsInt(current)));
     }
 
     public void displayStatus() {
-        System.out.println("=== " + name + " 状态 ===");
-        System.out.println("等级: " + level);
-        System.out.println("HP: " + hp + "/" + maxHp);
-        System.out.println("MP: " + mp + "/" + maxMp);
-        System.out.println("攻击: " + attack + "  防御: " + defense);
+        displayStatus(ConsoleOutput.INSTANCE);
+    }
+
+    public void displayStatus(GameOutput out) {
+        out.println("=== " + name + " 状态 ===");
+        out.println("等级: " + level);
+        out.println("HP: " + hp + "/" + maxHp);
+        out.println("MP: " + mp + "/" + maxMp);
+        out.println("攻击: " + attack + "  防御: " + defense);
     }
 }
 
@@ -128,16 +234,28 @@ abstract class Character implements Serializable {
 // 4. 玩家类
 // ==============================
 class Player extends Character {
+    private static final long serialVersionUID = 88769116351878747L;
+    private static final VarHandle GOLD;
+    static {
+        try {
+            GOLD = MethodHandles.lookup().findVarHandle(Player.class, "gold", int.class);
+        } catch (ReflectiveOperationException e) {
+            throw new ExceptionInInitializerError(e);
+        }
+    }
+
     private List<Skill> skills;
+    // 写时复制：遍历和按编号读取不加锁，物品栏一般只有几十件，复制代价很小
     private List<Item> inventory;
     private int experience;
-    private int gold;
+    private volatile int gold;
     private int maxExperience;
+    private transient PlayerChangeListener listener;
 
     public Player(String name) {
         super(name, 100, 50, 10, 5, 1);
         this.skills = new ArrayList<>();
-        this.inventory = new ArrayList<>();
+        this.inventory = new CopyOnWriteArrayList<>();
         this.experience = 0;
         this.gold = 50;
         this.maxExperience = 100;
@@ -145,30 +263,42 @@ class Player extends Character {
     }
 
     private void initializeSkills() {
-        skills.add(new Skill("普通攻击", 10, 0));
-        skills.add(new Skill("重击", 15, 5));
-        skills.add(new Skill("治疗术", 0, 8));
+        skills.add(SkillRegistry.BASIC_ATTACK);
+        skills.add(SkillRegistry.HEAVY_STRIKE);
+        skills.add(SkillRegistry.HEAL);
     }
 
     public List<Skill> getSkills() { return skills; }
-    public List<Item> getInventory() { return inventory; }
+    // 只读视图，修改必须通过 addItem/removeItem 以便通知监听器
+    public List<Item> getInventory() { return Collections.unmodifiableList(inventory); }
     public int getGold() { return gold; }
     public int getExperience() { return experience; }
     public int getMaxExperience() { return maxExperience; }
 
+    public void setListener(PlayerChangeListener listener) { this.listener = listener; }
+
     public void addGold(int amount) {
-        gold += amount;
+        GOLD.getAndAdd(this, amount);
+        if (listener != null) listener.onGoldChanged(amount);
     }
 
-    public void spendGold(int amount) {
-        gold -= amount;
+    // 检查余额和扣款是一次 CAS，并发购买不会把金币扣成负数；余额不足时返回 false
+    public boolean spendGold(int amount) {
+        int current;
+        do {
+            current = gold;
+            if (current < amount) {
+                return false;
+            }
+        } while (!GOLD.compareAndSet(this, current, current - amount));
+        if (listener != null) listener.onGoldChanged(-amount);
+        return true;
     }
 
     public Skill useSkill(int index) {
         if (index >= 0 && index < skills.size()) {
             Skill skill = skills.get(index);
-            if (mp >= skill.getMpCost()) {
-                mp -= skill.getMpCost();
+            if (spendMp(skill.getMpCost())) {
                 return skill;
             }
         }
@@ -177,49 +307,106 @@ class Player extends Character {
 
     public void addItem(Item item) {
         inventory.add(item);
+        if (listener != null) listener.onItemAdded(item);
+    }
+
+    public boolean removeItem(Item item) {
+        if (!inventory.remove(item)) {
+            return false;
+        }
+        if (listener != null) listener.onItemRemoved(item);
+        return true;
+    }
+
+    // 旧版序列化存档里的物品栏是 ArrayList
+    private void readObject(ObjectInputStream in) throws IOException, ClassNotFoundException {
+        in.defaultReadObject();
+        inventory = new CopyOnWriteArrayList<>(inventory);
+    }
+
+    // 供存档读取使用，恢复构造之后的全部可变状态
+    void restore(int level, int hp, int maxHp, int mp, int maxMp, int attack, int defense,
+                 int experience, int maxExperience, int gold,
+                 List<Skill> skills, List<Item> inventory) {
+        this.level = level;
+        this.maxHp = maxHp;
+        this.hp = hp;
+        this.maxMp = maxMp;
+        this.mp = mp;
+        this.attack = attack;
+        this.defense = defense;
+        this.experience = experience;
+        this.maxExperience = maxExperience;
+        this.gold = gold;
+        this.skills.clear();
+        this.skills.addAll(skills);
+        this.inventory.clear();
+        this.inventory.addAll(inventory);
     }
 
-    public void removeItem(Item item) {
-        inventory.remove(item);
+    // 在拥有这个玩家的线程上调用；与 addExperience 互斥，等级和随之变化的属性总是同一次升级后的值
+    public synchronized PlayerSnapshot snapshot(String roomName) {
+        return new PlayerSnapshot(name, roomName, level, hp, maxHp, mp, maxMp, attack, defense,
+                experience, maxExperience, gold, skills, inventory);
     }
 
     public void showInventory() {
-        System.out.println("=== 物品栏 ===");
-        System.out.println("金币: " + gold);
+        showInventory(ConsoleOutput.INSTANCE);
+    }
+
+    public void showInventory(GameOutput out) {
+        out.println("=== 物品栏 ===");
+        out.println("金币: " + gold);
         if (inventory.isEmpty()) {
-            System.out.println("物品栏为空");
+            out.println("物品栏为空");
         } else {
-            for (int i = 0; i < inventory.size(); i++) {
-                System.out.println(i + ". " + inventory.get(i));
+            int i = 0;
+            for (Item item : inventory) {
+                out.println(i++ + ". " + item);
             }
         }
     }
 
     public void useItem(int index) {
-        if (index >= 0 && index < inventory.size()) {
-            Item item = inventory.get(index);
-            if (item.getName().contains("药水")) {
+        useItem(index, ConsoleOutput.INSTANCE);
+    }
+
+    public void useItem(int index, GameOutput out) {
+        // 编号按快照解析，物品被别处先移走时不会重复生效
+        List<Item> snapshot = List.copyOf(inventory);
+        if (index >= 0 && index < snapshot.size()) {
+            Item item = snapshot.get(index);
+            if (item.getName().contains("药水") && removeItem(item)) {
                 heal(30);
-                System.out.println("使用了 " + item.getName() + "，恢复30点HP");
-                inventory.remove(index);
+                out.println("使用了 " + item.getName() + "，恢复30点HP");
             }
         }
     }
 
     public void addGoldMessage(int amount) {
-        gold += amount;
-        System.out.println("获得了 " + amount + " 金币");
+        addGoldMessage(amount, ConsoleOutput.INSTANCE);
+    }
+
+    public void addGoldMessage(int amount, GameOutput out) {
+        addGold(amount);
+        out.println("获得了 " + amount + " 金币");
     }
 
     public void addExperience(int exp) {
+        addExperience(exp, ConsoleOutput.INSTANCE);
+    }
+
+    // 经验和升级会同时改动多项属性，很少发生，直接加锁
+    public synchronized void addExperience(int exp, GameOutput out) {
         experience += exp;
-        System.out.println("获得 " + exp + " 点经验值");
+        if (listener != null) listener.onExperienceGained(exp);
+        out.println("获得 " + exp + " 点经验值");
         if (experience >= maxExperience) {
-            levelUp();
+            levelUp(out);
         }
     }
 
-    private void levelUp() {
+    private void levelUp(GameOutput out) {
         level++;
         experience -= maxExperience;
         maxExperience = (int)(maxExperience * 1.5);
@@ -228,19 +415,19 @@ class Player extends Character {
         maxMp += 10;
         attack += 2;
         defense += 1;
-        hp = maxHp;
-        mp = maxMp;
+        setHp(maxHp);
+        setMp(maxMp);
 
-        System.out.println("🎉 恭喜！等级提升到 " + level + " 级！");
+        out.println("🎉 恭喜！等级提升到 " + level + " 级！");
     }
 
     @Override
-    public void displayStatus() {
-        super.displayStatus();
-        System.out.println("经验: " + experience + "/" + maxExperience);
-        System.out.println("金币: " + gold);
-        System.out.println("技能数量: " + skills.size());
-        System.out.println("物品数量: " + inventory.size());
+    public void displayStatus(GameOutput out) {
+        super.displayStatus(out);
+        out.println("经验: " + experience + "/" + maxExperience);
+        out.println("金币: " + gold);
+        out.println("技能数量: " + skills.size());
+        out.println("物品数量: " + inventory.size());
     }
 }
 
@@ -248,21 +435,52 @@ class Player extends Character {
 // 5. 敌人类
 // ==============================
 class Enemy extends Character {
+    private static final ItemTemplate[] DROP_TEMPLATES = {
+            ItemTemplates.intern("治疗药水", "击败敌人获得的战利品", 0),
+            ItemTemplates.intern("魔法药水", "击败敌人获得的战利品", 0),
+            ItemTemplates.intern("小型生命药剂", "击败敌人获得的战利品", 0)
+    };
+
+    private EnemyTemplate template;
     private int experienceReward;
     private int goldReward;
     private Item dropItem;
+    // 正在 EnemyPool 中闲置，防止同一对象被重复回收
+    transient boolean pooled;
 
     public Enemy(String name, int maxHp, int maxMp, int attack, int defense) {
+        this(EnemyTemplate.intern(name, maxHp, maxMp, attack, defense));
+    }
+
+    public Enemy(EnemyTemplate template) {
+        this(template, null);
+        rollDrop(GameRandom.current());
+    }
+
+    // 从世界存档恢复时掉落物沿用存档里的，不消耗随机数
+    Enemy(EnemyTemplate template, Item dropItem) {
         // 根据生命值估算等级
-        super(name, maxHp, maxMp, attack, defense, calculateLevel(maxHp));
+        super(template.getName(), template.getMaxHp(), template.getMaxMp(),
+                template.getAttack(), template.getDefense(), calculateLevel(template.getMaxHp()));
+        this.template = template;
         this.experienceReward = maxHp / 2;
         this.goldReward = maxHp / 4;
+        this.dropItem = dropItem;
+    }
 
-        Random rand = new Random();
-        if (rand.nextDouble() < 0.3) {
-            String[] items = {"治疗药水", "魔法药水", "小型生命药剂"};
-            dropItem = new Item(items[rand.nextInt(items.length)], "击败敌人获得的战利品");
-        }
+    // 从对象池取出时恢复到刚生成的状态，并重新决定掉落物
+    void reset() {
+        setHp(maxHp);
+        setMp(maxMp);
+        attack = template.getAttack();
+        defense = template.getDefense();
+        rollDrop(GameRandom.current());
+    }
+
+    private void rollDrop(SplittableRandom rand) {
+        dropItem = rand.nextDouble() < 0.3
+                ? new Item(DROP_TEMPLATES[rand.nextInt(DROP_TEMPLATES.length)])
+                : null;
     }
 
     // 根据生命值计算等级
@@ -278,13 +496,22 @@ class Enemy extends Character {
     public int getGoldReward() { return goldReward; }
     public Item getDropItem() { return dropItem; }
 
+    public EnemyTemplate getTemplate() {
+        // 旧版序列化存档中没有模板，按基础属性补上
+        if (template == null) {
+            template = EnemyTemplate.intern(name, maxHp, maxMp, attack, defense);
+        }
+        return template;
+    }
+
+    public AiProfile getProfile() { return getTemplate().getProfile(); }
+
     public int attack() {
-        return attack + new Random().nextInt(5);
+        return attack(GameRandom.current());
     }
 
-    public String getNextIntention() {
-        String[] intentions = {"攻击", "防御", "强化"};
-        return intentions[new Random().nextInt(intentions.length)];
+    public int attack(SplittableRandom random) {
+        return CombatCore.enemyAttack(attack, random);
     }
 }
 
@@ -295,6 +522,8 @@ class NPC extends Character {
     private boolean friendly;
     private String dialogue;
     private List<Item> shopItems;
+    // 敌对 NPC 被攻击时以这个模板从对象池取出战斗用的敌人
+    private transient EnemyTemplate hostileForm;
 
     public NPC(String name, int maxHp, int maxMp, int attack, int defense,
                boolean friendly, String dialogue) {
@@ -307,51 +536,86 @@ class NPC extends Character {
     public boolean isFriendly() { return friendly; }
     public String getDialogue() { return dialogue; }
 
+    public List<Item> getShopItems() { return shopItems; }
+
     public void setShopItems(List<Item> items) {
         shopItems.addAll(items);
     }
 
+    // 供世界存档恢复商店库存
+    void replaceShopItems(List<Item> items) {
+        shopItems.clear();
+        shopItems.addAll(items);
+    }
+
     public void interact(Player player) {
-        System.out.println("\n" + name + ": \"" + dialogue + "\"");
+        Scanner scanner = new Scanner(System.in);
+        interact(player, ConsoleOutput.INSTANCE, scanner::nextLine);
+    }
+
+    // 输入由调用方提供，控制台共用一个 Scanner，也可以取同一行里排在后面的命令
+    public void interact(Player player, GameOutput out, Supplier<String> input) {
+        out.println("\n" + name + ": \"" + dialogue + "\"");
 
         if (friendly) {
             if (!shopItems.isEmpty()) {
-                System.out.println("\n" + name + " 的商店:");
-                System.out.println("你拥有金币: " + player.getGold());
-                for (int i = 0; i < shopItems.size(); i++) {
-                    Item item = shopItems.get(i);
-                    System.out.println(i + ". " + item.getName() + " - 价格:" + item.getValue());
-                }
-                System.out.print("输入要购买的物品编号 (或-1离开): ");
-                Scanner scanner = new Scanner(System.in);
+                showShop(player, out);
+                out.print("输入要购买的物品编号 (或-1离开): ");
+                out.flush();
                 try {
-                    int choice = Integer.parseInt(scanner.nextLine());
+                    int choice = Integer.parseInt(input.get());
                     if (choice >= 0 && choice < shopItems.size()) {
-                        Item item = shopItems.get(choice);
-                        if (player.getGold() >= item.getValue()) {
-                            player.spendGold(item.getValue());
-                            player.addItem(item);
-                            System.out.println("购买了 " + item.getName());
-                        } else {
-                            System.out.println("金币不足！");
-                        }
+                        sell(player, choice, out);
                     }
                 } catch (Exception e) {
-                    System.out.println("离开商店");
+                    out.println("离开商店");
                 }
             }
         } else {
-            System.out.println("这个NPC似乎不怀好意...");
-            System.out.print("是否发起攻击？(y/n): ");
-            Scanner scanner = new Scanner(System.in);
-            String choice = scanner.nextLine().toLowerCase();
+            out.println("这个NPC似乎不怀好意...");
+            out.print("是否发起攻击？(y/n): ");
+            out.flush();
+            String choice = input.get().toLowerCase();
             if (choice.equals("y")) {
-                Enemy enemy = new Enemy(name, maxHp, maxMp, attack, defense);
-                BattleSystem battle = new BattleSystem(player, enemy);
-                battle.startBattle();
+                if (hostileForm == null) {
+                    hostileForm = EnemyTemplate.intern(name, maxHp, maxMp, attack, defense);
+                }
+                Enemy enemy = EnemyPool.acquire(hostileForm);
+                BattleSystem battle = new BattleSystem(player, enemy, out);
+                battle.startBattle(input);
+                EnemyPool.release(enemy);
             }
         }
     }
+
+    public boolean hasShop() {
+        return friendly && !shopItems.isEmpty();
+    }
+
+    public void showShop(Player player, GameOutput out) {
+        out.println("\n" + name + " 的商店:");
+        out.println("你拥有金币: " + player.getGold());
+        for (int i = 0; i < shopItems.size(); i++) {
+            Item item = shopItems.get(i);
+            out.println(i + ". " + item.getName() + " - 价格:" + item.getValue());
+        }
+    }
+
+    // 按编号出售一件商品，金币不足时不成交
+    public boolean sell(Player player, int index, GameOutput out) {
+        if (index < 0 || index >= shopItems.size()) {
+            out.println("没有这个商品");
+            return false;
+        }
+        Item item = shopItems.get(index);
+        if (!player.spendGold(item.getValue())) {
+            out.println("金币不足！");
+            return false;
+        }
+        player.addItem(item);
+        out.println("购买了 " + item.getName());
+        return true;
+    }
 }
 
 // ==============================
@@ -360,97 +624,340 @@ class NPC extends Character {
 class Room implements Serializable {
     private String name;
     private String description;
-    private List<Item> items;
-    private List<NPC> npcs;
-    private List<Enemy> enemies;
+    private RoomContents<Item> items;
+    private RoomContents<NPC> npcs;
+    private RoomContents<Enemy> enemies;
     private Map<String, Room> exits;
     private boolean visited;
+    private String region;
+    // 懒加载世界中尚未解析的出口: 方向 → 目标房间名
+    private transient Map<String, String> pendingExits;
+    private transient GameWorld world;
+    // 渲染好的房间描述(UTF-8)，房间内容或出口变化时清空
+    private transient byte[] rendered;
+    // 刷怪表，没有登记刷怪位的房间为 null
+    private transient SpawnTable spawns;
+    // 在线玩家，只在网络模式下使用；进出的会话可能属于不同分区，用并发集合
+    private transient volatile Set<ClientSession> occupants;
+    // 上次写入世界存档之后玩家是否改动过房间；建造房间和从存档恢复不算改动
+    private transient volatile boolean changed;
+
+    public static final long DEFAULT_RESPAWN_SECONDS = 60;
+
+    private static final String DOUBLE_RULE = "=".repeat(40);
+    private static final String RULE = "-".repeat(40);
 
     public Room(String name, String description) {
+        this(name, description, GameWorld.DEFAULT_REGION);
+    }
+
+    public Room(String name, String description, String region) {
         this.name = name;
         this.description = description;
-        this.items = new ArrayList<>();
-        this.npcs = new ArrayList<>();
-        this.enemies = new ArrayList<>();
+        this.region = region;
+        this.items = new RoomContents<>();
+        this.npcs = new RoomContents<>();
+        this.enemies = new RoomContents<>();
         this.exits = new HashMap<>();
         this.visited = false;
     }
 
     public String getName() { return name; }
     public String getDescription() { return description; }
-    public List<Item> getItems() { return items; }
-    public List<NPC> getNPCs() { return npcs; }
-    public List<Enemy> getEnemies() { return enemies; }
-    public Map<String, Room> getExits() { return exits; }
+    // 只读视图，修改必须通过 Room 的方法，以便渲染缓存失效
+    public Collection<Item> getItems() { return items.values(); }
+    public Collection<NPC> getNPCs() { return npcs.values(); }
+    public Collection<Enemy> getEnemies() {
+        respawnDue();
+        return enemies.values();
+    }
+    public Map<String, Room> getExits() {
+        List<String> unresolved;
+        synchronized (this) {
+            if (pendingExits == null) {
+                return exits;
+            }
+            unresolved = new ArrayList<>(pendingExits.keySet());
+        }
+        for (String direction : unresolved) {
+            getExit(direction);
+        }
+        return exits;
+    }
     public boolean isVisited() { return visited; }
+    public String getRegion() { return region; }
+    public boolean isChanged() { return changed; }
+    void clearChanged() { changed = false; }
+
+    // 战斗后留在房间里的敌人生命和攻击已经变化，由调用方标记
+    public void markChanged() { changed = true; }
 
     public void setVisited(boolean visited) { this.visited = visited; }
 
-    public void addExit(String direction, Room room) {
+    // 供世界存档恢复房间内容
+    void restoreContents(List<Item> items, List<Enemy> enemies) {
+        this.items.clear();
+        for (Item item : items) {
+            this.items.add(item);
+        }
+        this.enemies.clear();
+        for (Enemy enemy : enemies) {
+            this.enemies.add(enemy);
+        }
+        // 存档里缺的敌人视为刚被击败，从现在开始计时
+        if (spawns != null) {
+            spawns.reconcile(this.enemies, System.nanoTime());
+        }
+        rendered = null;
+    }
+
+    public void enter(ClientSession session) {
+        Set<ClientSession> present = occupants;
+        if (present == null) {
+            synchronized (this) {
+                if (occupants == null) {
+                    occupants = ConcurrentHashMap.newKeySet();
+                }
+                present = occupants;
+            }
+        }
+        present.add(session);
+    }
+
+    public void leave(ClientSession session) {
+        Set<ClientSession> present = occupants;
+        if (present != null) {
+            present.remove(session);
+        }
+    }
+
+    public boolean hasOccupants() {
+        Set<ClientSession> present = occupants;
+        return present != null && !present.isEmpty();
+    }
+
+    public Set<ClientSession> getOccupants() {
+        Set<ClientSession> present = occupants;
+        return present == null ? Collections.emptySet() : Collections.unmodifiableSet(present);
+    }
+
+    // 已解析出口连着的房间；尚未解析的出口另一侧没人从这里走过去，不会触发加载
+    public synchronized List<Room> getNeighbours() {
+        return new ArrayList<>(exits.values());
+    }
+
+    public synchronized void addExit(String direction, Room room) {
+        exits.put(direction, room);
+        rendered = null;
+    }
+
+    // 目标房间在第一次经过这个出口时才加载
+    void addPendingExit(String direction, String roomName, GameWorld world) {
+        if (pendingExits == null) {
+            pendingExits = new LinkedHashMap<>();
+        }
+        pendingExits.put(direction, roomName);
+        this.world = world;
+        rendered = null;
+    }
+
+    // 出口可能被路过的其他分区线程解析，出口表的读写都在房间锁内；
+    // 加载目标房间时不持有房间锁，避免和持有世界锁再读出口的线程互相等待
+    public Room getExit(String direction) {
+        String target;
+        synchronized (this) {
+            Room room = exits.get(direction);
+            if (room != null || pendingExits == null) {
+                return room;
+            }
+            target = pendingExits.get(direction);
+        }
+        return target != null ? world.resolveExit(this, direction, target) : null;
+    }
+
+    // 由 GameWorld 在世界锁内调用
+    synchronized void linkExit(String direction, Room room) {
         exits.put(direction, room);
+        if (pendingExits != null) {
+            pendingExits.remove(direction);
+        }
+    }
+
+    // 目标房间被淘汰出内存的出口改回按名称记录，下次经过时重新加载
+    synchronized void detachExits(Set<Room> evicted, GameWorld world) {
+        Iterator<Map.Entry<String, Room>> it = exits.entrySet().iterator();
+        while (it.hasNext()) {
+            Map.Entry<String, Room> exit = it.next();
+            if (evicted.contains(exit.getValue())) {
+                addPendingExit(exit.getKey(), exit.getValue().getName(), world);
+                it.remove();
+            }
+        }
+    }
+
+    // 方向 → 目标房间名，不会触发目标房间的加载
+    public synchronized Map<String, String> getExitNames() {
+        Map<String, String> names = new LinkedHashMap<>();
+        for (Map.Entry<String, Room> exit : exits.entrySet()) {
+            names.put(exit.getKey(), exit.getValue().getName());
+        }
+        if (pendingExits != null) {
+            names.putAll(pendingExits);
+        }
+        return names;
     }
 
     public void addItem(Item item) {
         items.add(item);
+        rendered = null;
     }
 
     public void addNPC(NPC npc) {
         npcs.add(npc);
+        rendered = null;
     }
 
     public void addEnemy(Enemy enemy) {
         enemies.add(enemy);
+        rendered = null;
     }
 
     public Item takeItem(String itemName) {
-        for (Item item : items) {
-            if (item.getName().equals(itemName)) {
-                items.remove(item);
-                return item;
+        Item item = items.take(itemName);
+        if (item != null) {
+            rendered = null;
+            changed = true;
+        }
+        return item;
+    }
+
+    public boolean removeItem(Item item) {
+        if (items.remove(item)) {
+            rendered = null;
+            changed = true;
+            return true;
+        }
+        return false;
+    }
+
+    // 被击败或带走的敌人；按刷怪表排定刷新，返回 false 表示敌人不在房间里
+    public boolean removeEnemy(Enemy enemy) {
+        if (!enemies.remove(enemy)) {
+            return false;
+        }
+        if (spawns != null) {
+            spawns.onRemoved(enemy.getTemplate(), System.nanoTime());
+        }
+        rendered = null;
+        changed = true;
+        return true;
+    }
+
+    // 登记一个刷怪位并立即刷出一只，被击败后间隔 respawnSeconds 秒再刷回
+    public void addSpawn(EnemyTemplate template, long respawnSeconds) {
+        if (spawns == null) {
+            spawns = new SpawnTable();
+        }
+        spawns.add(template, TimeUnit.SECONDS.toNanos(respawnSeconds));
+        addEnemy(EnemyPool.acquire(template));
+    }
+
+    // 刷新不靠定时器，房间被查看或寻找敌人时补回所有到期的敌人，没人经过的房间没有开销
+    private void respawnDue() {
+        if (spawns == null || !spawns.hasPending()) {
+            return;
+        }
+        if (spawns.spawnDue(System.nanoTime(), this::spawn) > 0) {
+            rendered = null;
+            changed = true;
+        }
+    }
+
+    private void spawn(EnemyTemplate template) {
+        enemies.add(EnemyPool.acquire(template));
+    }
+
+    // 名称为空时返回第一个敌人
+    public Enemy findEnemy(String enemyName) {
+        respawnDue();
+        return enemyName.isEmpty() ? enemies.first() : enemies.find(enemyName);
+    }
+
+    public NPC findNPC(String npcName) {
+        return npcName.isEmpty() ? npcs.first() : npcs.find(npcName);
+    }
+
+    // 名称为空时返回第一个开着商店的 NPC
+    public NPC findShop(String npcName) {
+        for (NPC npc : npcs) {
+            if (npc.hasShop() && (npcName.isEmpty() || npc.getName().equals(npcName))) {
+                return npc;
             }
         }
         return null;
     }
 
-    public void removeEnemy(Enemy enemy) {
-        enemies.remove(enemy);
+    public void displayInfo(Player player) {
+        displayInfo(player, ConsoleOutput.INSTANCE);
     }
 
-    public void displayInfo(Player player) {
-        System.out.println("\n" + "=".repeat(40));
-        System.out.println("📍 " + name);
-        System.out.println("-".repeat(40));
-        System.out.println(description);
+    // 同一房间的描述只渲染和编码一次，之后直接写出缓存的字节
+    public void displayInfo(Player player, GameOutput out) {
+        out.write(render());
+        if (!visited) {
+            visited = true;
+            changed = true;
+        }
+    }
+
+    public synchronized byte[] render() {
+        respawnDue();
+        if (rendered == null) {
+            rendered = buildView().getBytes(StandardCharsets.UTF_8);
+        }
+        return rendered;
+    }
+
+    private String buildView() {
+        StringBuilder view = new StringBuilder(256);
+        view.append('\n').append(DOUBLE_RULE).append('\n');
+        view.append("📍 ").append(name).append('\n');
+        view.append(RULE).append('\n');
+        view.append(description).append('\n');
 
         if (!items.isEmpty()) {
-            System.out.println("\n📦 物品:");
+            view.append("\n📦 物品:\n");
             for (Item item : items) {
-                System.out.println("  • " + item.getName());
+                view.append("  • ").append(item.getName()).append('\n');
             }
         }
 
         if (!npcs.isEmpty()) {
-            System.out.println("\n👤 NPC:");
+            view.append("\n👤 NPC:\n");
             for (NPC npc : npcs) {
-                System.out.println("  • " + npc.getName());
+                view.append("  • ").append(npc.getName()).append('\n');
             }
         }
 
         if (!enemies.isEmpty()) {
-            System.out.println("\n👹 敌人:");
+            view.append("\n👹 敌人:\n");
             for (Enemy enemy : enemies) {
-                System.out.println("  • " + enemy.getName() + " Lv." + enemy.getLevel());
+                view.append("  • ").append(enemy.getName()).append(" Lv.").append(enemy.getLevel()).append('\n');
             }
         }
 
-        if (!exits.isEmpty()) {
-            System.out.println("\n🚪 出口:");
-            for (String dir : exits.keySet()) {
-                System.out.println("  • " + dir + " → " + exits.get(dir).getName());
+        if (!exits.isEmpty() || (pendingExits != null && !pendingExits.isEmpty())) {
+            view.append("\n🚪 出口:\n");
+            for (Map.Entry<String, Room> exit : exits.entrySet()) {
+                view.append("  • ").append(exit.getKey()).append(" → ").append(exit.getValue().getName()).append('\n');
+            }
+            if (pendingExits != null) {
+                for (Map.Entry<String, String> exit : pendingExits.entrySet()) {
+                    view.append("  • ").append(exit.getKey()).append(" → ").append(exit.getValue()).append('\n');
+                }
             }
         }
-
-        visited = true;
+        return view.toString();
     }
 }
 
@@ -458,59 +965,154 @@ class Room implements Serializable {
 // 8. 战斗系统
 // ==============================
 class BattleSystem {
+    // 战斗状态机：决定敌人意图 → 等待输入 → 结算玩家行动 → 敌人执行意图 → ... → 结束
+    enum State { PLAN, AWAIT_INPUT, RESOLVE, ENEMY_TURN, END }
+
+    private static final LongAdder STARTED = Metrics.counter("battle.started");
+    private static final LongAdder WON = Metrics.counter("battle.won");
+    private static final LongAdder LOST = Metrics.counter("battle.lost");
+    private static final LongAdder ROUNDS = Metrics.counter("battle.rounds");
+
     private Player player;
     private Enemy enemy;
-    private Scanner scanner;
+    private GameOutput out;
+    private State state;
+    // 玩家的防御持续到敌人回合结束，敌人的防御持续到玩家下一次出手
     private boolean playerDefending;
     private boolean enemyDefending;
+    // 本回合公布的敌人意图，敌人回合照此执行
+    private int intention;
+    private boolean victory;
+    private SplittableRandom random;
 
     public BattleSystem(Player player, Enemy enemy) {
+        this(player, enemy, ConsoleOutput.INSTANCE);
+    }
+
+    public BattleSystem(Player player, Enemy enemy, GameOutput out) {
+        this(player, enemy, out, GameRandom.current());
+    }
+
+    // 传入独立的随机数流可以让整场战斗完全重现
+    public BattleSystem(Player player, Enemy enemy, GameOutput out, SplittableRandom random) {
         this.player = player;
         this.enemy = enemy;
-        this.scanner = new Scanner(System.in);
+        this.out = out;
+        this.random = random;
         this.playerDefending = false;
         this.enemyDefending = false;
     }
 
+    public Player getPlayer() { return player; }
+    public Enemy getEnemy() { return enemy; }
+    public State getState() { return state; }
+    public boolean isFinished() { return state == State.END; }
+    public boolean isVictory() { return victory; }
+    public boolean isEnemyDefending() { return enemyDefending; }
+    public int getIntention() { return intention; }
+
+    // AI 决策用的随机扰动取自战斗自己的随机数流，固定种子时整场战斗仍可重现
+    long drawNoise() {
+        return random.nextLong();
+    }
+
     public boolean startBattle() {
-        System.out.println("\n⚔️ 战斗开始！ vs " + enemy.getName() + " Lv." + enemy.getLevel());
+        Scanner scanner = new Scanner(System.in);
+        return startBattle(scanner::nextLine);
+    }
 
-        while (player.isAlive() && enemy.isAlive()) {
-            // 玩家回合
-            playerTurn();
-            if (!enemy.isAlive()) break;
+    // 控制台模式：阻塞读取输入，直到战斗结束
+    public boolean startBattle(Supplier<String> input) {
+        begin();
+        while (!isFinished()) {
+            if (state == State.AWAIT_INPUT) {
+                out.flush();
+                submitInput(input.get());
+            } else {
+                advance();
+            }
+        }
+        return victory;
+    }
 
-            // 敌人回合
-            enemyTurn();
+    public void begin() {
+        STARTED.increment();
+        out.println("\n⚔️ 战斗开始！ vs " + enemy.getName() + " Lv." + enemy.getLevel());
+        state = State.PLAN;
+    }
 
-            // 重置防御状态
-            playerDefending = false;
-            enemyDefending = false;
+    // 提交玩家输入，只有在等待输入状态下才会被接受
+    public boolean submitInput(String input) {
+        if (state != State.AWAIT_INPUT) {
+            return false;
+        }
+        state = State.RESOLVE;
+        ROUNDS.increment();
+        playerTurn(input);
+        enemyDefending = false;
+
+        if (!enemy.isAlive()) {
+            finish();
+        } else {
+            state = State.ENEMY_TURN;
+        }
+        return true;
+    }
+
+    // 由 tick 或控制台循环驱动，推进不需要玩家输入的阶段。
+    // 网络模式下 PLAN 阶段由 BattleScheduler 成批决策后调用 applyIntention，不经过这里
+    public void advance() {
+        if (state == State.PLAN) {
+            applyIntention(EnemyAi.decide(enemy.getProfile(), enemy.getHp(), enemy.getMaxHp(),
+                    enemy.getAttack(), enemy.getDefense(), enemyDefending,
+                    player.getHp(), player.getMaxHp(), player.getAttack(), player.getDefense(), drawNoise()));
+            return;
+        }
+        if (state != State.ENEMY_TURN) {
+            return;
+        }
+        enemyTurn();
+        playerDefending = false;
+
+        if (!player.isAlive()) {
+            finish();
+        } else {
+            state = State.PLAN;
         }
+    }
 
-        return endBattle();
+    // 公布敌人下回合的行动并等待玩家输入
+    public void applyIntention(int action) {
+        if (state != State.PLAN) {
+            return;
+        }
+        intention = action;
+        awaitInput();
     }
 
-    private void playerTurn() {
-        System.out.println("\n=== 你的回合 ===");
-        System.out.println("你的HP: " + player.getHp() + "/" + player.getMaxHp());
-        System.out.println("敌人HP: " + enemy.getHp() + "/" + enemy.getMaxHp());
+    private void awaitInput() {
+        state = State.AWAIT_INPUT;
+        out.println("\n=== 你的回合 ===");
+        out.println("你的HP: " + player.getHp() + "/" + player.getMaxHp());
+        out.println("敌人HP: " + enemy.getHp() + "/" + enemy.getMaxHp());
 
         // 显示敌人意图
-        System.out.println("敌人意图: " + enemy.getNextIntention());
+        out.println("敌人意图: " + EnemyAi.label(intention));
 
-        System.out.println("\n可用的技能:");
+        out.println("\n可用的技能:");
         List<Skill> skills = player.getSkills();
         for (int i = 0; i < skills.size(); i++) {
-            System.out.println(i + ". " + skills.get(i));
+            out.println(i + ". " + skills.get(i));
         }
 
-        System.out.print("选择技能编号 (或-1防御): ");
+        out.print("选择技能编号 (或-1防御): ");
+    }
+
+    private void playerTurn(String input) {
         try {
-            String input = scanner.nextLine();
             if (input.equals("-1")) {
                 playerDefending = true;
-                System.out.println("你选择了防御");
+                out.println("你选择了防御");
                 return;
             }
 
@@ -518,56 +1120,55 @@ class BattleSystem {
             Skill skill = player.useSkill(choice);
 
             if (skill != null) {
-                if (skill.getName().equals("治疗术")) {
-                    player.heal(20);
-                    System.out.println("使用了治疗术，恢复20点HP");
+                if (skill == SkillRegistry.HEAL) {
+                    player.heal(CombatCore.HEAL_AMOUNT);
+                    out.println("使用了治疗术，恢复20点HP");
                 } else {
-                    int damage = skill.getDamage() + player.getAttack() / 2;
-
-                    // 敌人防御时伤害减半
+                    int damage = CombatCore.skillDamage(skill.getDamage(), player.getAttack(), enemyDefending);
                     if (enemyDefending) {
-                        damage = (int)(damage * 0.5);
-                        System.out.println("敌人处于防御状态，伤害减半！");
+                        out.println("敌人处于防御状态，伤害减半！");
                     }
 
                     enemy.receiveDamage(damage);
-                    System.out.println("使用了 " + skill.getName() + "，造成 " + damage + " 点伤害");
+                    out.println("使用了 " + skill.getName() + "，造成 " + damage + " 点伤害");
                 }
             } else {
-                System.out.println("MP不足或无效的选择！");
+                out.println("MP不足或无效的选择！");
             }
         } catch (Exception e) {
-            System.out.println("无效的输入");
+            out.println("无效的输入");
         }
     }
 
     private void enemyTurn() {
-        System.out.println("\n=== " + enemy.getName() + "的回合 ===");
-
-        Random rand = new Random();
-        int action = rand.nextInt(3);
+        out.println("\n=== " + enemy.getName() + "的回合 ===");
 
-        switch (action) {
-            case 0: // 攻击
-                int damage = enemy.attack();
+        switch (intention) {
+            case CombatCore.ENEMY_ATTACK:
+                int damage = CombatCore.defended(enemy.attack(random), playerDefending);
                 if (playerDefending) {
-                    damage = (int)(damage * 0.5);
-                    System.out.println("你处于防御状态，伤害减半！");
+                    out.println("你处于防御状态，伤害减半！");
                 }
                 player.receiveDamage(damage);
-                System.out.println(enemy.getName() + " 攻击了你，造成 " + damage + " 点伤害");
+                out.println(enemy.getName() + " 攻击了你，造成 " + damage + " 点伤害");
                 break;
-            case 1: // 防御
+            case CombatCore.ENEMY_DEFEND:
                 enemyDefending = true;
-                System.out.println(enemy.getName() + " 进入了防御状态");
+                out.println(enemy.getName() + " 进入了防御状态");
                 break;
-            case 2: // 强化
-                enemy.setAttack(enemy.getAttack() + 2);
-                System.out.println(enemy.getName() + " 强化了自己，攻击力提升！");
+            case CombatCore.ENEMY_BUFF:
+                enemy.setAttack(enemy.getAttack() + CombatCore.BUFF_ATTACK);
+                out.println(enemy.getName() + " 强化了自己，攻击力提升！");
                 break;
         }
     }
 
+    private void finish() {
+        state = State.END;
+        victory = endBattle();
+        (victory ? WON : LOST).increment();
+    }
+
     private boolean endBattle() {
         if (player.isAlive()) {
             victory();
@@ -579,325 +1180,463 @@ class BattleSystem {
     }
 
     private void victory() {
-        System.out.println("\n🎉 战斗胜利！击败了 " + enemy.getName());
+        out.println("\n🎉 战斗胜利！击败了 " + enemy.getName());
 
         // 奖励
         int exp = enemy.getExperienceReward();
         int gold = enemy.getGoldReward();
-        player.addExperience(exp);
-        player.addGoldMessage(gold);
+        player.addExperience(exp, out);
+        player.addGoldMessage(gold, out);
 
         // 掉落物品
         Item drop = enemy.getDropItem();
         if (drop != null) {
             player.addItem(drop);
-            System.out.println("获得了战利品: " + drop.getName());
+            out.println("获得了战利品: " + drop.getName());
         }
 
         // 恢复
         player.heal(player.getMaxHp() / 4);
         player.restoreMp(player.getMaxMp() / 4);
-        System.out.println("战斗后恢复了一些HP和MP");
+        out.println("战斗后恢复了一些HP和MP");
     }
 
     private void defeat() {
-        System.out.println("\n💀 战斗失败...");
+        out.println("\n💀 战斗失败...");
         player.setHp(player.getMaxHp() / 2);
-        System.out.println("你被复活了，但HP只剩一半");
+        out.println("你被复活了，但HP只剩一半");
     }
 }
 
 // ==============================
 // 9. 游戏管理器
 // ==============================
-class GameManager implements Serializable {
+class GameManager implements Serializable, CommandContext {
+    private GameWorld world;
     private Player player;
     private Room currentRoom;
     private Scanner scanner;
-    private static final String SAVE_FILE = "mud_save.dat";
+    private transient GameOutput out = ConsoleOutput.INSTANCE;
+    // 同一行中用分号分隔、尚未执行的命令
+    private transient Deque<String> pipeline = new ArrayDeque<>();
+    private boolean playing;
+    // 当前角色的增量日志，选定或创建角色后才有
+    private SaveJournal journal;
+    private transient SaveStore saves;
+    private static final String SAVES_FILE = "mud_saves.db";
+    private static final String JOURNAL_PREFIX = "mud_save_";
+    // 旧版单存档文件，首次启动时导入存档库
+    private static final String LEGACY_SAVE_FILE = "mud_save.dat";
+    private static final String LEGACY_JOURNAL_FILE = "mud_save.journal";
+    private static final String WORLD_FILE = "mud_world.dat";
+    private static final String RULE = "=".repeat(40);
+    private static final ConcurrentHistogram SAVE_MICROS = Metrics.histogram("save.micros");
+    private static final LongAdder SAVE_FAILURES = Metrics.counter("save.failures");
+
+    // 菜单与帮助是固定文本，只拼接一次
+    private static final String MENU_OPTIONS = String.join("\n",
+            RULE,
+            "1. 探索当前房间",
+            "2. 移动到其他房间",
+            "3. 查看角色状态",
+            "4. 查看物品栏",
+            "5. 与环境互动",
+            "6. 保存游戏",
+            "7. 退出游戏",
+            "也可以直接输入命令，如 go 北;take 草药",
+            "输入 'help' 查看帮助",
+            "选择操作: ");
+
+    private static final String HELP_TEXT = String.join("\n",
+            "",
+            "=== 游戏帮助 ===",
+            "基本命令:",
+            "  1 - 探索当前房间",
+            "  2 - 移动到其他房间",
+            "  3 - 查看角色状态",
+            "  4 - 查看物品栏",
+            "  5 - 与环境互动",
+            "  6 - 保存游戏",
+            "  7 - 退出游戏",
+            "",
+            "文字命令 (可用 ; 分隔，一次输入多条):",
+            "  look            - 查看当前房间",
+            "  go <方向>       - 移动，如 go 北",
+            "  take <物品>     - 拾取物品",
+            "  attack [敌人]   - 发起战斗",
+            "  talk [NPC]      - 与NPC交谈",
+            "  shop [NPC]      - 查看商店",
+            "  buy <编号> [NPC] - 购买商品，如 buy 0",
+            "  use <编号>      - 使用物品",
+            "  travel <房间>   - 沿最短路线前往",
+            "  status / inv    - 角色状态 / 物品栏",
+            "  save / quit     - 保存 / 退出",
+            "",
+            "战斗说明:",
+            "  • 普通攻击：不消耗MP的基础攻击",
+            "  • 重击：消耗5MP，造成更高伤害",
+            "  • 治疗术：消耗8MP，恢复自身HP",
+            "  • 防御：减少受到的伤害",
+            "",
+            "提示:",
+            "  • 击败敌人获得经验和金币",
+            "  • 升级可以提升属性",
+            "  • 商店可以购买装备和药水",
+            "  • 定期保存游戏以防进度丢失",
+            "");
+
+    private static final CommandRegistry<GameManager> COMMANDS =
+            CommonCommands.register(new CommandRegistry<GameManager>())
+                    .register((game, arg) -> game.exploreCurrentRoom(), "1")
+                    .register(GameManager::moveToRoom, "go", "2")
+                    .register((game, arg) -> game.interactWithEnvironment(), "5")
+                    .register(GameManager::talk, "talk")
+                    .register(GameManager::attack, "attack")
+                    .register((game, arg) -> game.saveGame(), "save", "6")
+                    .register(GameManager::quit, "quit", "7")
+                    .register((game, arg) -> game.displayHelp(), "help")
+                    .fallback((game, line) -> game.out.println("无效命令，输入 'help' 查看帮助"));
 
     public GameManager() {
+        this(null);
+    }
+
+    // world 为 null 时使用内置的默认世界
+    public GameManager(GameWorld world) {
         scanner = new Scanner(System.in);
+        this.world = world;
         initializeGameWorld();
     }
 
     private void initializeGameWorld() {
-        // 创建房间
-        Room startRoom = new Room("起始大厅", "一个古老的大厅，中央有一个石制喷泉。");
-        Room forest = new Room("幽暗森林", "茂密的森林，阳光难以穿透树冠。");
-        Room cave = new Room("神秘洞穴", "潮湿的洞穴，墙壁上闪烁着微光。");
-        Room village = new Room("宁静村庄", "一个安静的小村庄，村民们正在忙碌。");
+        if (world == null) {
+            world = GameWorld.createDefault();
+        }
+        currentRoom = world.visit(world.getStartRoom());
+    }
 
-        // 添加物品
-        startRoom.addItem(new Item("治疗药水", "恢复生命值的红色药水", 10));
-        startRoom.addItem(new Item("铁剑", "一把普通的铁剑", 30));
+    @Override
+    public Player getPlayer() { return player; }
+    @Override
+    public Room getCurrentRoom() { return currentRoom; }
+    @Override
+    public GameOutput getOutput() { return out; }
+    @Override
+    public GameWorld getWorld() { return world; }
 
-        forest.addItem(new Item("草药", "常见的治疗草药", 5));
+    @Override
+    public boolean step(String direction) {
+        Room nextRoom = currentRoom.getExit(direction);
+        if (nextRoom == null) {
+            return false;
+        }
+        currentRoom = world.visit(nextRoom);
+        if (journal != null) {
+            journal.recordMove(currentRoom.getName());
+        }
+        // 控制台只有一个玩家，除了脚下的房间都可以淘汰
+        world.evictIdleRegions(0, room -> room == currentRoom);
+        return true;
+    }
 
-        village.addItem(new Item("面包", "新鲜出炉的面包", 2));
+    // 先取同一行里排在后面的命令；都执行完了才写出本帧输出并阻塞等待输入
+    private String readLine() {
+        if (pipeline.isEmpty()) {
+            out.flush();
+            pipeline.addAll(CommandRegistry.split(scanner.nextLine()));
+            if (pipeline.isEmpty()) {
+                return "";
+            }
+        }
+        return pipeline.poll();
+    }
 
-        // 添加NPC
-        NPC oldMan = new NPC("神秘老人", 100, 50, 15, 10, true,
-                "勇敢的冒险者，小心森林里的怪物！");
-
-        NPC blacksmith = new NPC("铁匠", 150, 30, 25, 20, true,
-                "需要装备吗？我这里有好东西！");
-        List<Item> shopItems = new ArrayList<>();
-        shopItems.add(new Item("钢剑", "更锋利的剑", 50));
-        shopItems.add(new Item("锁子甲", "提供良好防护", 80));
-        shopItems.add(new Item("强效治疗药水", "恢复更多HP", 20));
-        blacksmith.setShopItems(shopItems);
-
-        startRoom.addNPC(oldMan);
-        village.addNPC(blacksmith);
-
-        // 添加敌人
-        forest.addEnemy(new Enemy("森林狼", 60, 10, 12, 5));
-        cave.addEnemy(new Enemy("洞穴蝙蝠", 40, 5, 8, 3));
-        cave.addEnemy(new Enemy("岩石怪", 100, 20, 18, 15));
-
-        // 连接房间
-        startRoom.addExit("北", forest);
-        startRoom.addExit("东", village);
-
-        forest.addExit("南", startRoom);
-        forest.addExit("东", cave);
-
-        cave.addExit("西", forest);
-
-        village.addExit("西", startRoom);
-
-        currentRoom = startRoom;
-    }
-
-    public void saveGame() {
-        try (ObjectOutputStream oos = new ObjectOutputStream(
-                new FileOutputStream(SAVE_FILE))) {
-
-            GameSaveData data = new GameSaveData(player, currentRoom.getName());
-            oos.writeObject(data);
-            System.out.println("✅ 游戏已保存");
+    // 只追加自上次保存以来的变化，日志过大时才重写完整存档
+    public void saveGame() {
+        if (journal == null) {
+            out.println("❌ 存档库不可用，无法保存");
+            return;
+        }
+        long start = System.nanoTime();
+        try {
+            journal.recordVitals(player);
+            journal.commit(player, currentRoom.getName());
+            // 世界存档每次都要整体重写，没有房间改动时跳过
+            if (world.hasUnsavedChanges()) {
+                WorldStore worldStore = new WorldStore(new File(WORLD_FILE));
+                worldStore.save(world);
+                world.markSaved(worldStore);
+            }
+            SAVE_MICROS.record((System.nanoTime() - start) / 1000);
+            out.println("✅ 游戏已保存");
 
         } catch (IOException e) {
-            System.out.println("❌ 保存失败: " + e.getMessage());
+            SAVE_FAILURES.increment();
+            out.println("❌ 保存失败: " + e.getMessage());
         }
     }
 
-    public boolean loadGame() {
-        try (ObjectInputStream ois = new ObjectInputStream(
-                new FileInputStream(SAVE_FILE))) {
-
-            GameSaveData data = (GameSaveData) ois.readObject();
+    public boolean loadGame(String name) {
+        try {
+            journal = new SaveJournal(saves, name, journalFileFor(name));
+            GameSaveData data = journal.load();
             this.player = data.getPlayer();
-            System.out.println("✅ 游戏加载成功");
+            player.setListener(journal);
+
+            WorldStore worldStore = new WorldStore(new File(WORLD_FILE));
+            if (worldStore.exists()) {
+                world.attachStore(worldStore);
+            }
+            Room savedRoom = world.getRoom(data.getCurrentRoomName());
+            if (savedRoom != null) {
+                currentRoom = savedRoom;
+            }
+            world.visit(currentRoom);
+            out.println("✅ 游戏加载成功");
             return true;
 
         } catch (Exception e) {
-            System.out.println("❌ 加载失败: " + e.getMessage());
+            out.println("❌ 加载失败: " + e.getMessage());
             return false;
         }
     }
 
     public void play() {
-        System.out.println("\n🎮 欢迎来到 MUD 游戏！");
-        System.out.println("=".repeat(40));
-
-        // 检查存档
-        File saveFile = new File(SAVE_FILE);
-        if (saveFile.exists()) {
-            System.out.print("检测到存档，是否加载？(y/n): ");
-            String choice = scanner.nextLine().toLowerCase();
-            if (choice.equals("y")) {
-                if (loadGame()) {
-                    System.out.println("欢迎回来，" + player.getName() + "！");
-                } else {
-                    createNewCharacter();
-                }
+        out.println("\n🎮 欢迎来到 MUD 游戏！");
+        out.println(RULE);
+
+        // 检查存档：存档库里每个角色一个存档位
+        openSaves();
+        List<String> slots = saves == null ? List.of() : saves.keys();
+        if (slots.isEmpty()) {
+            createNewCharacter();
+        } else {
+            out.println("=== 存档 ===");
+            for (int i = 0; i < slots.size(); i++) {
+                out.println(i + ". " + slots.get(i));
+            }
+            out.print("输入编号加载存档，直接回车创建新角色: ");
+            int slot;
+            try {
+                slot = Integer.parseInt(readLine());
+            } catch (NumberFormatException e) {
+                slot = -1;
+            }
+            if (slot >= 0 && slot < slots.size() && loadGame(slots.get(slot))) {
+                out.println("欢迎回来，" + player.getName() + "！");
             } else {
                 createNewCharacter();
             }
-        } else {
-            createNewCharacter();
         }
 
-        boolean playing = true;
+        playing = true;
         while (playing && player.isAlive()) {
-            displayMainMenu();
-            String choice = scanner.nextLine();
-
-            switch (choice) {
-                case "1":
-                    exploreCurrentRoom();
-                    break;
-                case "2":
-                    moveToRoom();
-                    break;
-                case "3":
-                    player.displayStatus();
-                    break;
-                case "4":
-                    player.showInventory();
-                    break;
-                case "5":
-                    interactWithEnvironment();
-                    break;
-                case "6":
-                    saveGame();
-                    break;
-                case "7":
-                    System.out.println("感谢游玩！");
-                    playing = false;
-                    break;
-                case "help":
-                    displayHelp();
-                    break;
-                default:
-                    System.out.println("无效命令，输入 'help' 查看帮助");
+            if (pipeline.isEmpty()) {
+                displayMainMenu();
             }
+            COMMANDS.dispatch(this, readLine());
         }
 
         if (!player.isAlive()) {
-            System.out.println("\n💀 你已死亡！游戏结束。");
-            System.out.println("最终等级: " + player.getLevel());
+            out.println("\n💀 你已死亡！游戏结束。");
+            out.println("最终等级: " + player.getLevel());
         }
 
+        out.flush();
         scanner.close();
+        try {
+            if (journal != null) journal.close();
+            if (saves != null) saves.close();
+        } catch (IOException e) {
+            out.println("❌ 关闭存档失败: " + e.getMessage());
+            out.flush();
+        }
+    }
+
+    private void openSaves() {
+        try {
+            saves = SaveStore.open(new File(SAVES_FILE));
+        } catch (IOException e) {
+            out.println("❌ 存档库打开失败: " + e.getMessage());
+            return;
+        }
+        // 导入失败不影响存档库本身，旧文件留在原处，下次启动再试
+        try {
+            importLegacySave();
+        } catch (IOException e) {
+            out.println("⚠️ 旧存档 " + LEGACY_SAVE_FILE + " 未能导入: " + e.getMessage());
+        }
+    }
+
+    // 旧版单文件存档以角色名为键导入存档库，对应的日志改名后照常回放
+    private void importLegacySave() throws IOException {
+        File legacy = new File(LEGACY_SAVE_FILE);
+        if (!legacy.exists()) {
+            return;
+        }
+        byte[] bytes = java.nio.file.Files.readAllBytes(legacy.toPath());
+        GameSaveData data = SaveCodec.isBinarySave(bytes) ? SaveCodec.decode(bytes) : SaveCodec.decodeLegacy(bytes);
+        String name = data.getPlayer().getName();
+        if (!saves.contains(name)) {
+            saves.put(name, bytes);
+        }
+        File legacyJournal = new File(LEGACY_JOURNAL_FILE);
+        if (legacyJournal.exists() && !journalFileFor(name).exists()) {
+            java.nio.file.Files.move(legacyJournal.toPath(), journalFileFor(name).toPath());
+        }
+        java.nio.file.Files.move(legacy.toPath(), new File(LEGACY_SAVE_FILE + ".imported").toPath(),
+                java.nio.file.StandardCopyOption.REPLACE_EXISTING);
+        out.println("已将旧存档导入存档库: " + name);
+    }
+
+    private static File journalFileFor(String name) {
+        return new File(JOURNAL_PREFIX + java.net.URLEncoder.encode(name, StandardCharsets.UTF_8) + ".journal");
     }
 
     private void createNewCharacter() {
-        System.out.println("\n=== 创建角色 ===");
-        System.out.print("输入角色姓名: ");
-        String name = scanner.nextLine();
+        out.println("\n=== 创建角色 ===");
+        out.print("输入角色姓名: ");
+        String name = readLine();
         player = new Player(name);
-        System.out.println("✨ 角色创建成功！");
-        System.out.println("欢迎来到这个世界，" + name + "！");
+        if (saves != null) {
+            if (saves.contains(name)) {
+                out.println("已有同名存档，保存时会覆盖它");
+            }
+            journal = new SaveJournal(saves, name, journalFileFor(name));
+            journal.startNew();
+            player.setListener(journal);
+        }
+        out.println("✨ 角色创建成功！");
+        out.println("欢迎来到这个世界，" + name + "！");
     }
 
     private void displayMainMenu() {
-        System.out.println("\n" + "=".repeat(40));
-        System.out.println("📍 当前位置: " + currentRoom.getName());
-        System.out.println("=".repeat(40));
-        System.out.println("1. 探索当前房间");
-        System.out.println("2. 移动到其他房间");
-        System.out.println("3. 查看角色状态");
-        System.out.println("4. 查看物品栏");
-        System.out.println("5. 与环境互动");
-        System.out.println("6. 保存游戏");
-        System.out.println("7. 退出游戏");
-        System.out.println("输入 'help' 查看帮助");
-        System.out.print("选择操作: ");
+        out.println("\n" + RULE);
+        out.println("📍 当前位置: " + currentRoom.getName());
+        out.print(MENU_OPTIONS);
     }
 
     private void exploreCurrentRoom() {
-        currentRoom.displayInfo(player);
+        currentRoom.displayInfo(player, out);
 
         // 如果有敌人，询问是否战斗
-        List<Enemy> enemies = currentRoom.getEnemies();
-        if (!enemies.isEmpty()) {
-            Enemy enemy = enemies.get(0);
-            System.out.print("\n发现敌人！是否发起攻击？(y/n): ");
-            String choice = scanner.nextLine().toLowerCase();
+        Enemy enemy = currentRoom.findEnemy("");
+        if (enemy != null) {
+            out.print("\n发现敌人！是否发起攻击？(y/n): ");
+            String choice = readLine().toLowerCase();
             if (choice.equals("y")) {
-                BattleSystem battle = new BattleSystem(player, enemy);
-                boolean victory = battle.startBattle();
-
-                if (victory) {
-                    currentRoom.removeEnemy(enemy);
-                }
+                fight(enemy);
             }
         }
     }
 
-    private void moveToRoom() {
-        Map<String, Room> exits = currentRoom.getExits();
-        if (exits.isEmpty()) {
-            System.out.println("这个房间没有出口！");
+    private void attack(String enemyName) {
+        Enemy enemy = currentRoom.findEnemy(enemyName);
+        if (enemy == null) {
+            out.println("这里没有可以攻击的敌人");
+            return;
+        }
+        fight(enemy);
+    }
+
+    private void fight(Enemy enemy) {
+        BattleSystem battle = new BattleSystem(player, enemy, out);
+        if (!battle.startBattle(this::readLine)) {
+            currentRoom.markChanged();
+        } else if (currentRoom.removeEnemy(enemy)) {
+            EnemyPool.release(enemy);
+        }
+    }
+
+    private void talk(String npcName) {
+        NPC npc = currentRoom.findNPC(npcName);
+        if (npc == null) {
+            out.println("这里没有可以交谈的人");
             return;
         }
+        npc.interact(player, out, this::readLine);
+    }
+
+    private void quit(String arg) {
+        out.println("感谢游玩！");
+        playing = false;
+    }
 
-        System.out.println("\n出口:");
-        for (String dir : exits.keySet()) {
-            System.out.println("- " + dir + ": " + exits.get(dir).getName());
+    // 带方向时直接移动，否则列出出口再询问
+    private void moveToRoom(String direction) {
+        Map<String, String> exits = currentRoom.getExitNames();
+        if (exits.isEmpty()) {
+            out.println("这个房间没有出口！");
+            return;
         }
 
-        System.out.print("输入移动方向: ");
-        String direction = scanner.nextLine();
+        if (direction.isEmpty()) {
+            out.println("\n出口:");
+            for (Map.Entry<String, String> exit : exits.entrySet()) {
+                out.println("- " + exit.getKey() + ": " + exit.getValue());
+            }
+
+            out.print("输入移动方向: ");
+            direction = readLine();
+        }
 
-        Room nextRoom = exits.get(direction);
-        if (nextRoom != null) {
-            currentRoom = nextRoom;
-            System.out.println("移动到了: " + currentRoom.getName());
+        if (step(direction)) {
+            out.println("移动到了: " + currentRoom.getName());
         } else {
-            System.out.println("这个方向没有路！");
+            out.println("这个方向没有路！");
         }
     }
 
     private void interactWithEnvironment() {
-        List<NPC> npcs = currentRoom.getNPCs();
-        List<Item> items = currentRoom.getItems();
+        // 编号只用于本次菜单，选中后按对象直接移除
+        List<NPC> npcs = new ArrayList<>(currentRoom.getNPCs());
+        List<Item> items = new ArrayList<>(currentRoom.getItems());
 
         if (npcs.isEmpty() && items.isEmpty()) {
-            System.out.println("这个房间没有可互动的对象");
+            out.println("这个房间没有可互动的对象");
             return;
         }
 
         if (!npcs.isEmpty()) {
-            System.out.println("\nNPC:");
+            out.println("\nNPC:");
             for (int i = 0; i < npcs.size(); i++) {
-                System.out.println(i + ". 与 " + npcs.get(i).getName() + " 交谈");
+                out.println(i + ". 与 " + npcs.get(i).getName() + " 交谈");
             }
         }
 
         if (!items.isEmpty()) {
-            System.out.println("\n物品:");
+            out.println("\n物品:");
             for (int i = 0; i < items.size(); i++) {
-                System.out.println((i + npcs.size()) + ". 拾取 " + items.get(i).getName());
+                out.println((i + npcs.size()) + ". 拾取 " + items.get(i).getName());
             }
         }
 
-        System.out.print("选择互动对象编号 (或输入-1取消): ");
+        out.print("选择互动对象编号 (或输入-1取消): ");
         try {
-            int choice = Integer.parseInt(scanner.nextLine());
+            int choice = Integer.parseInt(readLine());
             if (choice == -1) return;
 
             if (choice < npcs.size()) {
                 // 与NPC交谈
-                npcs.get(choice).interact(player);
+                npcs.get(choice).interact(player, out, this::readLine);
             } else if (choice < npcs.size() + items.size()) {
                 // 拾取物品
                 int itemIndex = choice - npcs.size();
                 Item item = items.get(itemIndex);
-                player.addItem(item);
-                items.remove(itemIndex);
-                System.out.println("拾取了: " + item.getName());
+                if (currentRoom.removeItem(item)) {
+                    player.addItem(item);
+                    out.println("拾取了: " + item.getName());
+                }
             } else {
-                System.out.println("无效的选择");
+                out.println("无效的选择");
             }
         } catch (Exception e) {
-            System.out.println("请输入有效的数字");
+            out.println("请输入有效的数字");
         }
     }
 
     private void displayHelp() {
-        System.out.println("\n=== 游戏帮助 ===");
-        System.out.println("基本命令:");
-        System.out.println("  1 - 探索当前房间");
-        System.out.println("  2 - 移动到其他房间");
-        System.out.println("  3 - 查看角色状态");
-        System.out.println("  4 - 查看物品栏");
-        System.out.println("  5 - 与环境互动");
-        System.out.println("  6 - 保存游戏");
-        System.out.println("  7 - 退出游戏");
-        System.out.println("\n战斗说明:");
-        System.out.println("  • 普通攻击：不消耗MP的基础攻击");
-        System.out.println("  • 重击：消耗5MP，造成更高伤害");
-        System.out.println("  • 治疗术：消耗8MP，恢复自身HP");
-        System.out.println("  • 防御：减少受到的伤害");
-        System.out.println("\n提示:");
-        System.out.println("  • 击败敌人获得经验和金币");
-        System.out.println("  • 升级可以提升属性");
-        System.out.println("  • 商店可以购买装备和药水");
-        System.out.println("  • 定期保存游戏以防进度丢失");
+        out.print(HELP_TEXT);
     }
 }
 
@@ -905,6 +1644,7 @@ class GameManager implements Serializable {
 // 10. 游戏数据保存类
 // ==============================
 class GameSaveData implements Serializable {
+    private static final long serialVersionUID = 3805008219926568520L;
     private Player player;
     private String currentRoomName;
 
@@ -921,8 +1661,6444 @@ class GameSaveData implements Serializable {
 // 11. 主类
 // ==============================
 public class MUD {
-    public static void main(String[] args) {
-        GameManager game = new GameManager();
+    public static void main(String[] args) throws IOException {
+        // --bench <名称> [参数...] 运行内置基准测试
+        if (args.length > 1 && args[0].equals("--bench")) {
+            Benchmarks.run(args[1], Arrays.copyOfRange(args, 2, args.length));
+            return;
+        }
+
+        // --world <文件> 从数据文件加载世界，--lazy 表示房间在首次进入时才读取
+        GameWorld world = null;
+        List<String> rest = new ArrayList<>(Arrays.asList(args));
+        boolean lazy = rest.remove("--lazy");
+
+        // --metrics <秒> 定期打印运行指标，0 表示不打印；服务器默认每分钟一次
+        int metricsSeconds = -1;
+        int metricsArg = rest.indexOf("--metrics");
+        if (metricsArg >= 0 && metricsArg + 1 < rest.size()) {
+            metricsSeconds = Integer.parseInt(rest.get(metricsArg + 1));
+            rest.subList(metricsArg, metricsArg + 2).clear();
+        }
+        Metrics.registerMBean();
+
+        // --seed <数字> 固定随机种子，用于重现战斗
+        int seedArg = rest.indexOf("--seed");
+        if (seedArg >= 0 && seedArg + 1 < rest.size()) {
+            GameRandom.setSeed(Long.parseLong(rest.get(seedArg + 1)));
+            rest.subList(seedArg, seedArg + 2).clear();
+        }
+        // --room-budget <房间数> 懒加载世界最多驻留的房间数，超过后淘汰久无人进入的区域
+        int budgetArg = rest.indexOf("--room-budget");
+        int roomBudget = GameWorld.DEFAULT_ROOM_BUDGET;
+        if (budgetArg >= 0 && budgetArg + 1 < rest.size()) {
+            roomBudget = Integer.parseInt(rest.get(budgetArg + 1));
+            rest.subList(budgetArg, budgetArg + 2).clear();
+        }
+        int worldArg = rest.indexOf("--world");
+        if (worldArg >= 0 && worldArg + 1 < rest.size()) {
+            File worldFile = new File(rest.get(worldArg + 1));
+            world = lazy ? WorldLoader.loadLazy(worldFile) : WorldLoader.load(worldFile);
+            world.setRoomBudget(roomBudget);
+            rest.subList(worldArg, worldArg + 2).clear();
+        }
+
+        // --simulate [场数] [敌人名] 无界面批量模拟战斗，用于数值平衡
+        if (!rest.isEmpty() && rest.get(0).equals("--simulate")) {
+            int fights = rest.size() > 1 ? Integer.parseInt(rest.get(1)) : CombatSimulator.DEFAULT_FIGHTS;
+            String enemyName = rest.size() > 2 ? rest.get(2) : null;
+            CombatSimulator.runForWorld(world != null ? world : GameWorld.createDefault(), fights, enemyName);
+            return;
+        }
+
+        // --server [端口] [分区数] 以网络模式启动，多个玩家共享同一个世界
+        if (!rest.isEmpty() && rest.get(0).equals("--server")) {
+            int port = rest.size() > 1 ? Integer.parseInt(rest.get(1)) : GameServer.DEFAULT_PORT;
+            int zones = rest.size() > 2 ? Integer.parseInt(rest.get(2)) : WorldZones.DEFAULT_ZONES;
+            GameServer server = new GameServer(port, world != null ? world : GameWorld.createDefault(),
+                    WorldTicker.DEFAULT_TICK_HZ, zones);
+            // 自动存档和玩家缓存共用同一个存档库
+            SaveStore saves = SaveStore.open(new File(AutoSaver.DEFAULT_STORE));
+            AutoSaver saver = new AutoSaver(new StoreSaveSink(saves));
+            server.enableAutosave(saver, AutoSaver.DEFAULT_INTERVAL_SECONDS);
+            server.enablePlayerCache(new PlayerCache(saves, saver, PlayerCache.DEFAULT_CAPACITY));
+            server.enableRegionEviction(RegionEvictionTask.DEFAULT_INTERVAL_SECONDS,
+                    new WorldStore(new File(RegionWriter.DEFAULT_FILE)));
+            Metrics.startDump(metricsSeconds < 0 ? Metrics.DEFAULT_DUMP_SECONDS : metricsSeconds);
+            // Ctrl+C 或 kill 时照常收尾，在线玩家的进度写进存档库之后进程才退出
+            Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+                server.stop();
+                try {
+                    if (!server.awaitTermination(GameServer.SHUTDOWN_SECONDS, TimeUnit.SECONDS)) {
+                        System.out.println("❌ 服务器未能在 " + GameServer.SHUTDOWN_SECONDS + " 秒内完成收尾");
+                    }
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }, "server-shutdown"));
+            server.start();
+            return;
+        }
+
+        // 控制台模式下指标和游戏画面共用标准输出，默认不打印
+        Metrics.startDump(Math.max(0, metricsSeconds));
+        GameManager game = new GameManager(world);
         game.play();
     }
+}
+
+// ==============================
+// 12. 输出接口
+// ==============================
+interface GameOutput {
+    // 丢弃所有输出，用于回放等不需要提示的场合
+    GameOutput NONE = text -> {};
+
+    void print(String text);
+
+    // 写出已编码的 UTF-8 文本，会话输出可直接复制字节而无需重新编码
+    default void write(byte[] utf8) {
+        print(new String(utf8, StandardCharsets.UTF_8));
+    }
+
+    default void println(String text) {
+        print(text);
+        print("\n");
+    }
+
+    default void println() {
+        print("\n");
+    }
+
+    // 结束一帧输出；控制台在等待输入前调用，会话由 tick 统一提交
+    default void flush() {}
+}
+
+// 控制台输出按帧缓冲，每条命令只向 System.out 写一次
+class ConsoleOutput implements GameOutput {
+    public static final ConsoleOutput INSTANCE = new ConsoleOutput();
+
+    private final StringBuilder frame = new StringBuilder(1024);
+
+    private ConsoleOutput() {
+        // 非交互调用（如脚本直接打印状态）也不丢失最后一帧
+        Runtime.getRuntime().addShutdownHook(new Thread(this::flush));
+    }
+
+    @Override
+    public synchronized void print(String text) {
+        frame.append(text);
+    }
+
+    @Override
+    public synchronized void flush() {
+        if (frame.length() == 0) {
+            return;
+        }
+        System.out.print(frame);
+        System.out.flush();
+        frame.setLength(0);
+    }
+}
+
+// 每个会话独立的输出缓冲：文本先按字符累积，写出预编码字节或提交时才整体编码成 UTF-8
+class SessionOutput implements GameOutput {
+    private final StringBuilder pending = new StringBuilder(256);
+    private final CharsetEncoder encoder = StandardCharsets.UTF_8.newEncoder()
+            .onMalformedInput(CodingErrorAction.REPLACE)
+            .onUnmappableCharacter(CodingErrorAction.REPLACE);
+    private ByteBuffer buffer = ByteBuffer.allocate(1024);
+
+    @Override
+    public void print(String text) {
+        pending.append(text);
+    }
+
+    @Override
+    public void write(byte[] utf8) {
+        encodePending();
+        ensureCapacity(utf8.length);
+        buffer.put(utf8);
+    }
+
+    public boolean isEmpty() {
+        return pending.length() == 0 && buffer.position() == 0;
+    }
+
+    public ByteBuffer drain() {
+        encodePending();
+        buffer.flip();
+        ByteBuffer bytes = ByteBuffer.allocate(buffer.remaining());
+        bytes.put(buffer).flip();
+        buffer.clear();
+        return bytes;
+    }
+
+    private void encodePending() {
+        if (pending.length() == 0) {
+            return;
+        }
+        ensureCapacity((int) (pending.length() * encoder.maxBytesPerChar()));
+        encoder.reset();
+        encoder.encode(CharBuffer.wrap(pending), buffer, true);
+        encoder.flush(buffer);
+        pending.setLength(0);
+    }
+
+    private void ensureCapacity(int extra) {
+        if (buffer.remaining() >= extra) {
+            return;
+        }
+        ByteBuffer grown = ByteBuffer.allocate(Math.max(buffer.capacity() * 2, buffer.position() + extra));
+        buffer.flip();
+        grown.put(buffer);
+        buffer = grown;
+    }
+}
+
+// ==============================
+// 13. 游戏世界
+// ==============================
+class GameWorld {
+    public static final String DEFAULT_REGION = "默认";
+    // 懒加载世界默认最多驻留的房间数，超过后淘汰最久没人进入的区域
+    public static final int DEFAULT_ROOM_BUDGET = 20_000;
+
+    private static final LongAdder ROOM_HITS = Metrics.counter("world.room.hits");
+    private static final LongAdder ROOM_MISSES = Metrics.counter("world.room.misses");
+    private static final LongAdder REGION_EVICTIONS = Metrics.counter("world.region.evictions");
+    private static final LongAdder REGION_WRITEBACKS = Metrics.counter("world.region.writebacks");
+
+    // 已读入内存的区域最近一次有人进入的时间
+    private static final class Residency {
+        long lastVisit;
+
+        Residency(long now) {
+            this.lastVisit = now;
+        }
+    }
+
+    private final Map<String, Room> rooms = new LinkedHashMap<>();
+    private Room startRoom;
+    private RoomSource source;
+    private WorldStore store;
+    // 存档中有记录、但还没有应用到内存中的区域
+    private final Set<String> pendingRegions = new HashSet<>();
+    // 出口图的路线索引：完整加载的世界首次查询时构建，房间集合变化后作废；
+    // 懒加载世界读入世界文件时一次建好，覆盖全部房间，区域读入和淘汰都不影响它
+    private RouteIndex routes;
+    // 懒加载世界中已读入的区域，按最近有人进入的先后排列，最久没人来的在最前面
+    private final LinkedHashMap<String, Residency> resident = new LinkedHashMap<>(16, 0.75f, true);
+    // 被淘汰区域写回、还没写进世界存档的状态块，重新读入或保存世界时优先于存档文件
+    private final Map<String, byte[]> parked = new HashMap<>();
+    // 关联的世界存档中有记录的全部区域
+    private final Set<String> storedRegions = new HashSet<>();
+    private int roomBudget = DEFAULT_ROOM_BUDGET;
+
+    public Room getStartRoom() { return startRoom; }
+    public void setStartRoom(Room startRoom) { this.startRoom = startRoom; }
+    public RoomSource getSource() { return source; }
+    public void setRoomBudget(int roomBudget) { this.roomBudget = roomBudget; }
+
+    public void setSource(RoomSource source) {
+        this.source = source;
+        Metrics.gauge("world.rooms.resident", this::residentRoomCount);
+    }
+
+    public synchronized int residentRoomCount() {
+        return rooms.size();
+    }
+
+    // 已在内存中的房间
+    public Collection<Room> getRooms() { return rooms.values(); }
+
+    // 供其他线程（如指标导出）遍历，各分区线程可能同时在加载区域
+    public synchronized List<Room> snapshotRooms() {
+        return new ArrayList<>(rooms.values());
+    }
+    public Room getLoadedRoom(String name) { return rooms.get(name); }
+
+    // 懒加载世界中房间不在内存时，按区域整体读入；各分区线程都可能触发加载
+    public synchronized Room getRoom(String name) {
+        Room room = rooms.get(name);
+        if (source == null) {
+            return room;
+        }
+        if (room != null) {
+            ROOM_HITS.increment();
+            return room;
+        }
+        String region = source.regionOf(name);
+        if (region != null && !resident.containsKey(region)) {
+            ROOM_MISSES.increment();
+            loadRegion(region);
+            room = rooms.get(name);
+        }
+        return room;
+    }
+
+    // 被淘汰过的区域用写回的状态块恢复，否则按存档恢复
+    private void loadRegion(String region) {
+        try {
+            for (Room loaded : source.loadRegion(region, this)) {
+                rooms.putIfAbsent(loaded.getName(), loaded);
+            }
+        } catch (IOException e) {
+            System.out.println("❌ 区域 " + region + " 读取失败: " + e.getMessage());
+        }
+        resident.put(region, new Residency(System.nanoTime()));
+        byte[] block = parked.get(region);
+        if (block == null) {
+            restoreRegion(region);
+            return;
+        }
+        pendingRegions.remove(region);
+        try {
+            WorldStore.readRegion(this, new DataInputStream(new ByteArrayInputStream(block)));
+        } catch (IOException e) {
+            System.out.println("❌ 区域 " + region + " 恢复失败: " + e.getMessage());
+        }
+    }
+
+    // 出口解析和区域淘汰都持有世界锁，解析出的房间在写进出口表之前不会被淘汰
+    synchronized Room resolveExit(Room from, String direction, String target) {
+        Room room = getRoom(target);
+        if (room != null) {
+            from.linkExit(direction, room);
+        }
+        return room;
+    }
+
+    public boolean isRegionPending(String region) {
+        return pendingRegions.contains(region);
+    }
+
+    // 关联世界存档，各区域的状态在首次进入时才读取
+    public void attachStore(WorldStore store) throws IOException {
+        this.store = store;
+        storedRegions.clear();
+        storedRegions.addAll(store.readRegions());
+        pendingRegions.clear();
+        pendingRegions.addAll(storedRegions);
+    }
+
+    // 进入房间前调用，保证房间所在区域已从存档恢复，并记下区域最近一次有人进入；
+    // 出口另一侧的房间可能在解析之后、进入之前被淘汰，此时换成重新读入的那一份
+    public synchronized Room visit(Room room) {
+        if (source != null && rooms.get(room.getName()) != room) {
+            Room current = getRoom(room.getName());
+            if (current != null) {
+                room = current;
+            }
+        }
+        Residency residency = resident.get(room.getRegion());
+        if (residency != null) {
+            residency.lastVisit = System.nanoTime();
+        }
+        restoreRegion(room.getRegion());
+        return room;
+    }
+
+    // 驻留房间超过预算时，从最久没人进入的区域开始整体淘汰，降到预算的四分之三为止；
+    // 有人在、pinned 认定仍在使用、minIdleNanos 内有人进入过的区域以及起始房间所在的区域保留。
+    // 有房间改动过的区域先编码成状态块留在内存里；没有改动的直接丢弃，下次照原样从世界文件和存档读入。
+    // 其他房间指向被淘汰房间的出口改回按名称记录。返回淘汰的房间数
+    public synchronized int evictIdleRegions(long minIdleNanos, Predicate<Room> pinned) {
+        if (source == null || rooms.size() <= roomBudget) {
+            return 0;
+        }
+        Map<String, List<Room>> byRegion = roomsByRegion();
+        long target = roomBudget * 3L / 4;
+        long now = System.nanoTime();
+        Set<Room> evicted = Collections.newSetFromMap(new IdentityHashMap<>());
+        Iterator<Map.Entry<String, Residency>> it = resident.entrySet().iterator();
+        while (rooms.size() > target && it.hasNext()) {
+            Map.Entry<String, Residency> entry = it.next();
+            String region = entry.getKey();
+            List<Room> members = byRegion.getOrDefault(region, Collections.emptyList());
+            if (now - entry.getValue().lastVisit < minIdleNanos
+                    || (startRoom != null && region.equals(startRoom.getRegion()))
+                    || inUse(members, pinned)) {
+                continue;
+            }
+            if (anyChanged(members)) {
+                try {
+                    parked.put(region, WorldStore.writeRegion(members));
+                    REGION_WRITEBACKS.increment();
+                } catch (IOException e) {
+                    System.out.println("❌ 区域 " + region + " 写回失败: " + e.getMessage());
+                    continue;
+                }
+            } else if (storedRegions.contains(region) && !parked.containsKey(region)) {
+                pendingRegions.add(region);
+            }
+            it.remove();
+            for (Room room : members) {
+                rooms.remove(room.getName());
+                evicted.add(room);
+            }
+            REGION_EVICTIONS.increment();
+        }
+
+        if (!evicted.isEmpty()) {
+            for (Room room : rooms.values()) {
+                room.detachExits(evicted, this);
+            }
+        }
+        return evicted.size();
+    }
+
+    private Map<String, List<Room>> roomsByRegion() {
+        Map<String, List<Room>> byRegion = new HashMap<>();
+        for (Room room : rooms.values()) {
+            byRegion.computeIfAbsent(room.getRegion(), k -> new ArrayList<>()).add(room);
+        }
+        return byRegion;
+    }
+
+    private static boolean anyChanged(Collection<Room> rooms) {
+        for (Room room : rooms) {
+            if (room.isChanged()) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    // 世界存档写入之后是否又有改动；被淘汰区域留在内存里的状态块也还没写进存档
+    public synchronized boolean hasUnsavedChanges() {
+        return !parked.isEmpty() || anyChanged(rooms.values());
+    }
+
+    // 整个世界写进 store 之后调用：清除房间的改动标记，写进去的状态块不再留在内存里，
+    // 对应区域下次读入时改从存档恢复
+    public synchronized void markSaved(WorldStore store) {
+        for (Room room : rooms.values()) {
+            room.clearChanged();
+            storedRegions.add(room.getRegion());
+        }
+        regionsStored(store, new HashMap<>(parked));
+    }
+
+    // written 中的状态块已写进 store：没有被更新的块换掉的就不再留在内存里，
+    // 区域不在内存中时下次读入改从存档恢复
+    public synchronized void regionsStored(WorldStore store, Map<String, byte[]> written) {
+        this.store = store;
+        for (Map.Entry<String, byte[]> entry : written.entrySet()) {
+            String region = entry.getKey();
+            storedRegions.add(region);
+            if (parked.get(region) != entry.getValue()) {
+                continue;
+            }
+            parked.remove(region);
+            if (!resident.containsKey(region)) {
+                pendingRegions.add(region);
+            }
+        }
+    }
+
+    public synchronized boolean hasParkedRegions() {
+        return !parked.isEmpty();
+    }
+
+    // 分区都停下之后调用：有改动、还在内存里的区域也编码成状态块，和被淘汰的区域一起写进存档
+    public synchronized void parkChangedRegions() {
+        if (source == null) {
+            return;
+        }
+        Map<String, List<Room>> byRegion = roomsByRegion();
+        for (String region : resident.keySet()) {
+            List<Room> members = byRegion.getOrDefault(region, Collections.emptyList());
+            if (!anyChanged(members)) {
+                continue;
+            }
+            try {
+                parked.put(region, WorldStore.writeRegion(members));
+            } catch (IOException e) {
+                System.out.println("❌ 区域 " + region + " 写回失败: " + e.getMessage());
+                continue;
+            }
+            for (Room room : members) {
+                room.clearChanged();
+            }
+        }
+    }
+
+    private static boolean inUse(List<Room> rooms, Predicate<Room> pinned) {
+        for (Room room : rooms) {
+            if (room.hasOccupants() || pinned.test(room)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    // 已淘汰区域写回的状态块，供保存世界时使用
+    public synchronized Map<String, byte[]> getParkedRegions() {
+        return new HashMap<>(parked);
+    }
+
+    private void restoreRegion(String region) {
+        if (pendingRegions.remove(region)) {
+            try {
+                store.loadRegion(this, region);
+            } catch (IOException e) {
+                System.out.println("❌ 区域 " + region + " 加载失败: " + e.getMessage());
+            }
+        }
+    }
+
+    public synchronized void addRoom(Room room) {
+        rooms.put(room.getName(), room);
+        if (startRoom == null) {
+            startRoom = room;
+        }
+        routes = null;
+    }
+
+    void setRoutes(RouteIndex routes) {
+        this.routes = routes;
+    }
+
+    public synchronized RouteIndex getRoutes() {
+        if (routes == null) {
+            routes = RouteIndex.build(rooms.values(), RouteIndex.DEFAULT_LANDMARKS);
+        }
+        return routes;
+    }
+
+    public static GameWorld createDefault() {
+        // 创建房间
+        Room startRoom = new Room("起始大厅", "一个古老的大厅，中央有一个石制喷泉。", "城镇");
+        Room forest = new Room("幽暗森林", "茂密的森林，阳光难以穿透树冠。", "荒野");
+        Room cave = new Room("神秘洞穴", "潮湿的洞穴，墙壁上闪烁着微光。", "荒野");
+        Room village = new Room("宁静村庄", "一个安静的小村庄，村民们正在忙碌。", "城镇");
+
+        // 添加物品
+        startRoom.addItem(new Item("治疗药水", "恢复生命值的红色药水", 10));
+        startRoom.addItem(new Item("铁剑", "一把普通的铁剑", 30));
+
+        forest.addItem(new Item("草药", "常见的治疗草药", 5));
+
+        village.addItem(new Item("面包", "新鲜出炉的面包", 2));
+
+        // 添加NPC
+        NPC oldMan = new NPC("神秘老人", 100, 50, 15, 10, true,
+                "勇敢的冒险者，小心森林里的怪物！");
+
+        NPC blacksmith = new NPC("铁匠", 150, 30, 25, 20, true,
+                "需要装备吗？我这里有好东西！");
+        List<Item> shopItems = new ArrayList<>();
+        shopItems.add(new Item("钢剑", "更锋利的剑", 50));
+        shopItems.add(new Item("锁子甲", "提供良好防护", 80));
+        shopItems.add(new Item("强效治疗药水", "恢复更多HP", 20));
+        blacksmith.setShopItems(shopItems);
+
+        startRoom.addNPC(oldMan);
+        village.addNPC(blacksmith);
+
+        // 添加敌人，被击败后按默认间隔刷新
+        forest.addSpawn(EnemyTemplate.intern("森林狼", 60, 10, 12, 5), Room.DEFAULT_RESPAWN_SECONDS);
+        cave.addSpawn(EnemyTemplate.intern("洞穴蝙蝠", 40, 5, 8, 3), Room.DEFAULT_RESPAWN_SECONDS);
+        cave.addSpawn(EnemyTemplate.intern("岩石怪", 100, 20, 18, 15), Room.DEFAULT_RESPAWN_SECONDS);
+
+        // 连接房间
+        startRoom.addExit("北", forest);
+        startRoom.addExit("东", village);
+
+        forest.addExit("南", startRoom);
+        forest.addExit("东", cave);
+
+        cave.addExit("西", forest);
+
+        village.addExit("西", startRoom);
+
+        GameWorld world = new GameWorld();
+        world.addRoom(startRoom);
+        world.addRoom(forest);
+        world.addRoom(cave);
+        world.addRoom(village);
+        return world;
+    }
+}
+
+// ==============================
+// 14. 网络会话
+// ==============================
+class ClientSession implements CommandContext {
+    private static final int MAX_LINE_BYTES = 1024;
+    private static final int MAX_PENDING_BYTES = 256 * 1024;
+    // 每条命令都会发送的固定文本预先编码，直接复制字节
+    private static final byte[] PROMPT = "> ".getBytes(StandardCharsets.UTF_8);
+    private static final byte[] HELP_TEXT = String.join("\n",
+            "=== 游戏帮助 ===",
+            "  look (1)        - 探索当前房间",
+            "  go <方向> (2)   - 移动到其他房间",
+            "  status (3)      - 查看角色状态",
+            "  inv (4)         - 查看物品栏",
+            "  take <物品>     - 拾取物品",
+            "  attack [敌人]   - 发起战斗",
+            "  talk [NPC]      - 与NPC交谈",
+            "  shop [NPC]      - 查看商店",
+            "  buy <编号> [NPC] - 购买商品",
+            "  use <编号>      - 使用物品",
+            "  travel <房间>   - 沿最短路线前往",
+            "  quit (7)        - 退出游戏",
+            "多条命令可用 ; 分隔一次发送，如 go 北;take 草药",
+            "").getBytes(StandardCharsets.UTF_8);
+
+    private static final CommandRegistry<ClientSession> COMMANDS =
+            CommonCommands.register(new CommandRegistry<ClientSession>())
+                    .register((session, arg) -> session.currentRoom.displayInfo(session.player, session.output), "1")
+                    .register(ClientSession::move, "go", "2")
+                    .register(ClientSession::talk, "talk")
+                    .register(ClientSession::attack, "attack")
+                    .register(ClientSession::quit, "quit", "7")
+                    .register((session, arg) -> session.displayHelp(), "help")
+                    .fallback((session, line) -> session.output.println("无效命令，输入 'help' 查看帮助"));
+
+    enum State { LOGIN, PLAYING, CLOSED }
+
+    private final SocketChannel channel;
+    private final GameWorld world;
+    private final WorldZones zones;
+    // 命令信箱：Selector 线程投递，当前所属分区的线程依次执行
+    private final Deque<Runnable> inbox = new ConcurrentLinkedDeque<>();
+    // 已在某个分区的就绪队列中或正在执行，保证同一时刻只有一个线程处理这个会话
+    private final AtomicBoolean scheduled = new AtomicBoolean();
+    private volatile WorldTicker ticker;
+    // 本 tick 内走进了其他分区的房间，tick 结束时移交
+    private WorldTicker handoff;
+    private final SessionOutput output = new SessionOutput();
+    // Tick 线程提交、Selector 线程写出的数据块
+    private final Queue<ByteBuffer> outbound = new ConcurrentLinkedQueue<>();
+    private final ByteBuffer readBuffer = ByteBuffer.allocate(MAX_LINE_BYTES);
+    private final byte[] lineBuffer = new byte[MAX_LINE_BYTES];
+    private final Deque<ByteBuffer> pendingWrites = new ArrayDeque<>();
+    private int lineLength;
+    private boolean discardingLine;
+    private int pendingBytes;
+    private volatile State state = State.LOGIN;
+    private boolean touched;
+    private SelectionKey key;
+    private Player player;
+    private Room currentRoom;
+    private BattleSystem battle;
+
+    public ClientSession(SocketChannel channel, GameWorld world, WorldZones zones) {
+        this.channel = channel;
+        this.world = world;
+        this.zones = zones;
+        this.ticker = zones.of(world.getStartRoom());
+    }
+
+    public SocketChannel getChannel() { return channel; }
+    public SelectionKey getKey() { return key; }
+    public void setKey(SelectionKey key) { this.key = key; }
+    @Override
+    public GameOutput getOutput() { return output; }
+    @Override
+    public Player getPlayer() { return player; }
+    @Override
+    public Room getCurrentRoom() { return currentRoom; }
+    @Override
+    public GameWorld getWorld() { return world; }
+    public BattleSystem getBattle() { return battle; }
+    public WorldTicker getTicker() { return ticker; }
+
+    // 只能在会话所属分区的线程上调用；还没登录时返回 null
+    PlayerSnapshot snapshot() {
+        return player == null ? null : player.snapshot(currentRoom.getName());
+    }
+    public boolean isClosed() { return state == State.CLOSED; }
+
+    // 任何线程都可以投递；动作总是在会话所属分区的 tick 线程上按顺序执行
+    public void post(Runnable action) {
+        inbox.add(action);
+        schedule();
+    }
+
+    private void schedule() {
+        if (scheduled.compareAndSet(false, true)) {
+            ticker.schedule(this);
+        }
+    }
+
+    // 分区线程调用：执行信箱中的命令，走进其他分区后停下，剩下的留给新分区
+    int runCommands(int limit) {
+        int count = 0;
+        Runnable action;
+        while (count < limit && handoff == null && (action = inbox.poll()) != null) {
+            count++;
+            try {
+                action.run();
+            } catch (RuntimeException e) {
+                System.out.println("❌ 命令执行失败: " + e);
+            }
+        }
+        return count;
+    }
+
+    // 分区线程在 tick 结束、输出提交之后调用，返回 true 表示会话已移交给其他分区
+    boolean release() {
+        WorldTicker next = handoff;
+        if (next != null) {
+            ticker = next;
+            handoff = null;
+        }
+        scheduled.set(false);
+        // 清除标记后再检查一次，避免和 post 交错时漏掉新命令
+        if (!inbox.isEmpty()) {
+            schedule();
+        }
+        return next != null;
+    }
+
+    public void greet() {
+        output.println("🎮 欢迎来到 MUD 游戏！");
+        output.println("=".repeat(40));
+        output.print("输入角色姓名: ");
+    }
+
+    // 读取套接字数据并把完整的命令行排入 Tick 队列，返回 false 表示连接已断开
+    public boolean onReadable() throws IOException {
+        int n = channel.read(readBuffer);
+        if (n < 0) {
+            return false;
+        }
+
+        readBuffer.flip();
+        while (readBuffer.hasRemaining()) {
+            byte b = readBuffer.get();
+            if (b == '\n') {
+                if (!discardingLine) {
+                    int end = lineLength;
+                    if (end > 0 && lineBuffer[end - 1] == '\r') end--;
+                    String line = new String(lineBuffer, 0, end, StandardCharsets.UTF_8).trim();
+                    post(() -> handleLine(line));
+                }
+                lineLength = 0;
+                discardingLine = false;
+            } else if (lineLength < MAX_LINE_BYTES) {
+                lineBuffer[lineLength++] = b;
+            } else {
+                // 过长的行直接丢弃，避免单个连接占用过多内存
+                discardingLine = true;
+            }
+        }
+        readBuffer.clear();
+        return true;
+    }
+
+    // Tick 线程调用：把本 tick 产生的输出交给 Selector 线程
+    public boolean commitOutput() {
+        if (output.isEmpty()) {
+            return false;
+        }
+        outbound.add(output.drain());
+        return true;
+    }
+
+    // Tick 线程用于去重的标记
+    boolean markTouched() {
+        if (touched) return false;
+        touched = true;
+        return true;
+    }
+
+    void clearTouched() { touched = false; }
+
+    // Selector 线程调用：把待发送数据写入套接字，返回 true 表示已全部写完
+    public boolean flush() throws IOException {
+        ByteBuffer bytes;
+        while ((bytes = outbound.poll()) != null) {
+            pendingBytes += bytes.remaining();
+            pendingWrites.add(bytes);
+        }
+        if (pendingBytes > MAX_PENDING_BYTES) {
+            throw new IOException("客户端读取过慢");
+        }
+
+        while (!pendingWrites.isEmpty()) {
+            ByteBuffer head = pendingWrites.peek();
+            pendingBytes -= channel.write(head);
+            if (head.hasRemaining()) {
+                return false;
+            }
+            pendingWrites.poll();
+        }
+        return true;
+    }
+
+    public boolean hasPendingWrites() {
+        return !pendingWrites.isEmpty() || !outbound.isEmpty();
+    }
+
+    private void handleLine(String line) {
+        switch (state) {
+            case LOGIN:
+                login(line);
+                break;
+            case PLAYING:
+                handleCommands(CommandRegistry.split(line));
+                return;
+            default:
+                return;
+        }
+        if (state == State.PLAYING && battle == null && handoff == null) {
+            output.write(PROMPT);
+        }
+    }
+
+    private void handleCommands(List<String> commands) {
+        for (int i = 0; i < commands.size() && state == State.PLAYING; i++) {
+            if (battle != null) {
+                handleBattleInput(commands.get(i));
+            } else {
+                COMMANDS.dispatch(this, commands.get(i));
+            }
+            if (handoff != null && i + 1 < commands.size()) {
+                // 已进入其他分区的房间，同一行剩下的命令排在信箱最前面，由新分区执行
+                List<String> rest = commands.subList(i + 1, commands.size());
+                inbox.addFirst(() -> handleCommands(rest));
+                return;
+            }
+        }
+        if (state == State.PLAYING && battle == null) {
+            output.write(PROMPT);
+        }
+    }
+
+    private void handleBattleInput(String line) {
+        if (!battle.submitInput(line)) {
+            output.println("等待敌人行动...");
+            return;
+        }
+        if (battle.isFinished()) {
+            finishBattle();
+        }
+    }
+
+    // 连接断开后在 tick 线程上清理会话占用的世界状态
+    void onDisconnected() {
+        state = State.CLOSED;
+        if (battle != null) {
+            ticker.getBattles().remove(battle);
+            battle = null;
+        }
+        if (player != null) {
+            currentRoom.leave(this);
+            announce("💨 " + player.getName() + " 离开了游戏");
+            PlayerSnapshot snapshot = snapshot();
+            PlayerCache players = ticker.getPlayerCache();
+            AutoSaver saver = ticker.getAutoSaver();
+            if (players != null) {
+                // 缓存把最后一份快照交给自动存档
+                players.checkIn(snapshot);
+            } else if (saver != null) {
+                saver.submitFinal(snapshot);
+                saver.flushAsync();
+            }
+            player = null;
+        }
+    }
+
+    // 由 BattleScheduler 在 tick 线程上调用
+    void onBattleFinished() {
+        finishBattle();
+        output.write(PROMPT);
+    }
+
+    private void finishBattle() {
+        Enemy enemy = battle.getEnemy();
+        ticker.getBattles().remove(battle);
+        if (battle.isVictory()) {
+            announce("🏆 " + player.getName() + " 击败了 " + enemy.getName());
+            if (currentRoom.removeEnemy(enemy)) {
+                EnemyPool.release(enemy);
+            }
+        } else {
+            currentRoom.markChanged();
+            announce("💀 " + player.getName() + " 倒在了 " + enemy.getName() + " 面前");
+        }
+        battle = null;
+    }
+
+    private void login(String name) {
+        if (name.isEmpty()) {
+            output.print("输入角色姓名: ");
+            return;
+        }
+        GameSaveData data;
+        PlayerCache players = ticker.getPlayerCache();
+        try {
+            data = players != null ? players.checkOut(name) : new GameSaveData(new Player(name), null);
+        } catch (IllegalStateException | IOException e) {
+            output.println("❌ " + e.getMessage());
+            output.print("输入角色姓名: ");
+            return;
+        }
+        player = data.getPlayer();
+        Room saved = data.getCurrentRoomName() != null ? world.getRoom(data.getCurrentRoomName()) : null;
+        currentRoom = world.visit(saved != null ? saved : world.getStartRoom());
+        currentRoom.enter(this);
+        // 上次下线的房间可能属于其他分区，本 tick 结束时移交
+        WorldTicker owner = zones.of(currentRoom);
+        handoff = owner == ticker ? null : owner;
+        state = State.PLAYING;
+        if (data.getCurrentRoomName() == null) {
+            output.println("✨ 角色创建成功！");
+            output.println("欢迎来到这个世界，" + name + "！");
+        } else {
+            output.println("✅ 欢迎回来，" + name + "！");
+        }
+        // 渲染可能刷出敌人，只能在拥有房间的分区线程上做；要移交时排在信箱最前面，由新分区执行
+        if (handoff == null) {
+            currentRoom.displayInfo(player, output);
+        } else {
+            inbox.addFirst(() -> {
+                currentRoom.displayInfo(player, output);
+                output.write(PROMPT);
+            });
+        }
+        announce("✨ " + name + " 出现在这里");
+    }
+
+    @Override
+    public void announce(String text) {
+        zones.announce(currentRoom, this, text);
+    }
+
+    @Override
+    public boolean step(String direction) {
+        Room nextRoom = currentRoom.getExit(direction);
+        if (nextRoom == null) {
+            return false;
+        }
+        Room previous = currentRoom;
+        currentRoom = world.visit(nextRoom);
+        previous.leave(this);
+        currentRoom.enter(this);
+        zones.announce(previous, this, "👣 " + player.getName() + " 往" + direction + "走了");
+        zones.announce(currentRoom, this, "👣 " + player.getName() + " 走了过来");
+        // 可能连走几步又回到本分区，以最后所在的房间为准
+        WorldTicker owner = zones.of(currentRoom);
+        handoff = owner == ticker ? null : owner;
+        return true;
+    }
+
+    private void move(String direction) {
+        if (step(direction)) {
+            output.println("移动到了: " + currentRoom.getName());
+        } else if (direction.isEmpty()) {
+            output.println("出口:");
+            for (Map.Entry<String, String> exit : currentRoom.getExitNames().entrySet()) {
+                output.println("- " + exit.getKey() + ": " + exit.getValue());
+            }
+        } else {
+            output.println("这个方向没有路！");
+        }
+    }
+
+    private void talk(String npcName) {
+        NPC npc = currentRoom.findNPC(npcName);
+        if (npc == null) {
+            output.println("这里没有可以交谈的人");
+            return;
+        }
+        output.println(npc.getName() + ": \"" + npc.getDialogue() + "\"");
+        if (npc.hasShop()) {
+            npc.showShop(player, output);
+            output.println("输入 buy <编号> 购买");
+        } else if (!npc.isFriendly()) {
+            output.println("这个NPC似乎不怀好意...");
+        }
+    }
+
+    private void quit(String arg) {
+        output.println("感谢游玩！");
+        state = State.CLOSED;
+    }
+
+    private void attack(String enemyName) {
+        Enemy target = currentRoom.findEnemy(enemyName);
+        if (target == null) {
+            output.println("这里没有可以攻击的敌人");
+            return;
+        }
+
+        BattleScheduler battles = ticker.getBattles();
+        if (battles.isEngaged(target)) {
+            output.println(target.getName() + " 正在和其他人战斗");
+            return;
+        }
+        battle = new BattleSystem(player, target, output);
+        battles.add(this, battle);
+        battle.begin();
+        announce("⚔️ " + player.getName() + " 向 " + target.getName() + " 发起了攻击");
+        zones.announceNearby(currentRoom, "⚔️ " + currentRoom.getName() + " 方向传来打斗声");
+    }
+
+    private void displayHelp() {
+        output.write(HELP_TEXT);
+    }
+}
+
+// ==============================
+// 15. 网络服务器
+// ==============================
+class GameServer {
+    public static final int DEFAULT_PORT = 4000;
+    // 关服时等在线会话执行完断线处理的时间，以及整个收尾的时间（含自动存档最后一次落盘）
+    static final int DRAIN_SECONDS = 10;
+    static final int SHUTDOWN_SECONDS = 60;
+    private static final int ACCEPT_BACKLOG = 1024;
+
+    private final int port;
+    private final GameWorld world;
+    private final WorldZones zones;
+    // Tick 线程提交了新输出、等待 Selector 线程写出的会话
+    private final Queue<ClientSession> flushQueue = new ConcurrentLinkedQueue<>();
+    // 在线会话，供各分区的自动存档遍历
+    private final Set<ClientSession> sessions = ConcurrentHashMap.newKeySet();
+    private AutoSaver autoSaver;
+    private RegionWriter regionWriter;
+    private Selector selector;
+    private volatile boolean running;
+    private volatile int sessionCount;
+    // start 的收尾做完后打开
+    private final CountDownLatch terminated = new CountDownLatch(1);
+
+    public GameServer(int port, GameWorld world) {
+        this(port, world, WorldTicker.DEFAULT_TICK_HZ);
+    }
+
+    public GameServer(int port, GameWorld world, int tickHz) {
+        this(port, world, tickHz, WorldZones.DEFAULT_ZONES);
+    }
+
+    public GameServer(int port, GameWorld world, int tickHz, int zoneCount) {
+        this.port = port;
+        this.world = world;
+        this.zones = new WorldZones(this, zoneCount, tickHz);
+        Metrics.gauge("server.sessions", () -> sessionCount);
+        Metrics.gaugeFamily("room.population", this::roomPopulation);
+    }
+
+    // 有人的房间 → 在线人数，按人数从多到少
+    private Map<String, Long> roomPopulation() {
+        List<Room> occupied = new ArrayList<>();
+        for (Room room : world.snapshotRooms()) {
+            if (room.hasOccupants()) {
+                occupied.add(room);
+            }
+        }
+        occupied.sort(Comparator.comparingInt((Room room) -> room.getOccupants().size()).reversed());
+        Map<String, Long> population = new LinkedHashMap<>();
+        for (Room room : occupied) {
+            population.put(room.getName(), (long) room.getOccupants().size());
+        }
+        return population;
+    }
+
+    public int getSessionCount() { return sessionCount; }
+    public WorldZones getZones() { return zones; }
+    public Set<ClientSession> getSessions() { return Collections.unmodifiableSet(sessions); }
+
+    // 在 start 之前调用；各分区错开时间，每隔 intervalSeconds 秒把自己的在线玩家交给 saver
+    public void enableAutosave(AutoSaver saver, int intervalSeconds) {
+        autoSaver = saver;
+        for (int i = 0; i < zones.size(); i++) {
+            zones.get(i).enableAutosave(saver, intervalSeconds);
+        }
+    }
+
+    // 在 start 之前调用；登录先查缓存再读存档库，下线的玩家留在缓存里
+    public void enablePlayerCache(PlayerCache cache) {
+        for (int i = 0; i < zones.size(); i++) {
+            zones.get(i).setPlayerCache(cache);
+        }
+    }
+
+    // 在 start 之前调用；懒加载世界由 0 号分区每隔 intervalSeconds 秒检查一次驻留的房间数，
+    // 被淘汰区域的状态写进 store，重新进入时从中恢复
+    public void enableRegionEviction(int intervalSeconds, WorldStore store) throws IOException {
+        if (world.getSource() == null) {
+            return;
+        }
+        world.attachStore(store);
+        regionWriter = new RegionWriter(world, store);
+        WorldTicker ticker = zones.get(0);
+        ticker.addTask(new RegionEvictionTask(world, regionWriter,
+                (int) (intervalSeconds * TimeUnit.SECONDS.toNanos(1) / ticker.getPeriodNanos())));
+    }
+
+    // Selector 线程只负责网络读写，命令由会话所属分区的 WorldTicker 按 tick 批量执行
+    public void start() throws IOException {
+        selector = Selector.open();
+        try (ServerSocketChannel serverChannel = ServerSocketChannel.open()) {
+            serverChannel.configureBlocking(false);
+            serverChannel.bind(new InetSocketAddress(port), ACCEPT_BACKLOG);
+            serverChannel.register(selector, SelectionKey.OP_ACCEPT);
+            System.out.println("🌐 MUD 服务器已启动，端口: " + port);
+
+            running = true;
+            zones.start();
+            while (running) {
+                selector.select();
+                flushScheduled();
+                Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+                while (keys.hasNext()) {
+                    SelectionKey key = keys.next();
+                    keys.remove();
+                    if (!key.isValid()) continue;
+
+                    try {
+                        if (key.isAcceptable()) {
+                            accept(serverChannel);
+                        } else {
+                            if (key.isReadable()) read(key);
+                            if (key.isValid() && key.isWritable()) flush(key);
+                        }
+                    } catch (IOException e) {
+                        close(key);
+                    }
+                }
+            }
+        } finally {
+            try {
+                disconnectAll();
+                zones.stop();
+                if (regionWriter != null) {
+                    regionWriter.close();
+                }
+                for (SelectionKey key : selector.keys()) {
+                    key.channel().close();
+                }
+                selector.close();
+                if (autoSaver != null) {
+                    autoSaver.close();
+                }
+            } finally {
+                terminated.countDown();
+            }
+        }
+    }
+
+    public void stop() {
+        running = false;
+        wakeup();
+    }
+
+    // 等 start 的收尾（在线玩家存档、区域状态写盘、关闭存档库）做完
+    public boolean awaitTermination(long timeout, TimeUnit unit) throws InterruptedException {
+        return terminated.await(timeout, unit);
+    }
+
+    // 关服时还连着的会话按正常断线处理，等各分区在 tick 里执行完 onDisconnected 再停分区，
+    // 在线玩家最后的进度和断线时一样交给自动存档
+    private void disconnectAll() {
+        List<SelectionKey> online = new ArrayList<>();
+        for (SelectionKey key : selector.keys()) {
+            if (key.attachment() instanceof ClientSession) {
+                online.add(key);
+            }
+        }
+        CountDownLatch done = new CountDownLatch(online.size());
+        for (SelectionKey key : online) {
+            close(key, done);
+        }
+        try {
+            if (!done.await(DRAIN_SECONDS, TimeUnit.SECONDS)) {
+                System.out.println("❌ 还有 " + done.getCount() + " 个会话未能在 " + DRAIN_SECONDS + " 秒内保存");
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    // Tick 线程调用
+    public void scheduleFlush(ClientSession session) {
+        flushQueue.add(session);
+    }
+
+    public void wakeup() {
+        if (selector != null) {
+            selector.wakeup();
+        }
+    }
+
+    private void flushScheduled() {
+        ClientSession session;
+        while ((session = flushQueue.poll()) != null) {
+            SelectionKey key = session.getKey();
+            if (key == null || !key.isValid()) continue;
+            try {
+                flush(key);
+                if (session.isClosed() && !session.hasPendingWrites()) {
+                    close(key);
+                }
+            } catch (IOException e) {
+                close(key);
+            }
+        }
+    }
+
+    private void accept(ServerSocketChannel serverChannel) throws IOException {
+        SocketChannel channel;
+        while ((channel = serverChannel.accept()) != null) {
+            channel.configureBlocking(false);
+            channel.setOption(java.net.StandardSocketOptions.TCP_NODELAY, true);
+            ClientSession session = new ClientSession(channel, world, zones);
+            session.setKey(channel.register(selector, SelectionKey.OP_READ, session));
+            sessions.add(session);
+            sessionCount++;
+            session.post(session::greet);
+        }
+    }
+
+    private void read(SelectionKey key) throws IOException {
+        ClientSession session = (ClientSession) key.attachment();
+        if (!session.onReadable()) {
+            close(key);
+        }
+    }
+
+    private void flush(SelectionKey key) throws IOException {
+        ClientSession session = (ClientSession) key.attachment();
+        if (session == null) return;
+        boolean done = session.flush();
+        int ops = done ? SelectionKey.OP_READ : SelectionKey.OP_READ | SelectionKey.OP_WRITE;
+        if (key.isValid() && key.interestOps() != ops) {
+            key.interestOps(ops);
+        }
+    }
+
+    private void close(SelectionKey key) {
+        close(key, null);
+    }
+
+    // done 不为 null 时在会话的 onDisconnected 执行完后计数
+    private void close(SelectionKey key, CountDownLatch done) {
+        ClientSession session = (ClientSession) key.attachment();
+        if (session != null) {
+            sessions.remove(session);
+            sessionCount--;
+            key.attach(null);
+            session.post(done == null ? session::onDisconnected : () -> {
+                try {
+                    session.onDisconnected();
+                } finally {
+                    done.countDown();
+                }
+            });
+        }
+        key.cancel();
+        try {
+            key.channel().close();
+        } catch (IOException ignored) {
+        }
+    }
+}
+
+// ==============================
+// 16. 世界时钟
+// ==============================
+interface TickTask {
+    void onTick(long tick);
+
+    // 指标名中使用
+    default String name() { return getClass().getSimpleName(); }
+}
+
+// 固定频率推进一个分区：每个 tick 依次执行就绪会话信箱里的命令，再运行注册的定时任务。
+// 分区内的房间、敌人和战斗只由这一个线程修改
+class WorldTicker {
+    public static final int DEFAULT_TICK_HZ = 10;
+    private static final int MAX_COMMANDS_PER_TICK = 20000;
+    private static final int REPORT_INTERVAL_SECONDS = 30;
+
+    private final GameServer server;
+    private final int zone;
+    private final long periodNanos;
+    private final int reportIntervalTicks;
+    // 信箱里有命令、等待本分区执行的会话
+    private final Queue<ClientSession> ready = new ConcurrentLinkedQueue<>();
+    private final List<ClientSession> running = new ArrayList<>();
+    private final List<TickTask> tasks = new ArrayList<>();
+    private final List<ConcurrentHistogram> taskMicros = new ArrayList<>();
+    private final List<ClientSession> touched = new ArrayList<>();
+    private final LatencyHistogram tickTimes = new LatencyHistogram();
+    // 各分区共用同名指标，看的是整个服务器的 tick 时间花在了哪一步
+    private static final ConcurrentHistogram TICK_MICROS = Metrics.histogram("tick.micros");
+    private static final ConcurrentHistogram COMMAND_MICROS = Metrics.histogram("tick.commands.micros");
+    private static final LongAdder OVERRUNS = Metrics.counter("tick.overruns");
+    private final BattleScheduler battles;
+    private final RoomEventBus events;
+    private AutoSaver autoSaver;
+    private PlayerCache playerCache;
+    private ScheduledExecutorService executor;
+    private long tick;
+    private long commandsSinceReport;
+    private long handoffs;
+    private long overruns;
+
+    public WorldTicker(GameServer server, int zone, int tickHz) {
+        this.server = server;
+        this.zone = zone;
+        this.periodNanos = TimeUnit.SECONDS.toNanos(1) / tickHz;
+        this.reportIntervalTicks = tickHz * REPORT_INTERVAL_SECONDS;
+        this.battles = new BattleScheduler(this);
+        this.events = new RoomEventBus(this);
+        addTask(battles);
+        // 排在战斗之后，本 tick 战斗里发生的事同一 tick 送达
+        addTask(events);
+    }
+
+    public int getZone() { return zone; }
+    public long getTick() { return tick; }
+    public long getPeriodNanos() { return periodNanos; }
+    public BattleScheduler getBattles() { return battles; }
+    public RoomEventBus getEvents() { return events; }
+    public AutoSaver getAutoSaver() { return autoSaver; }
+    public PlayerCache getPlayerCache() { return playerCache; }
+    void setPlayerCache(PlayerCache playerCache) { this.playerCache = playerCache; }
+
+    void enableAutosave(AutoSaver saver, int intervalSeconds) {
+        autoSaver = saver;
+        addTask(new AutoSaveTask(this, server, saver, (int) (intervalSeconds * TimeUnit.SECONDS.toNanos(1) / periodNanos)));
+    }
+
+    // 由 ClientSession 调用，同一会话不会同时排在两个分区里
+    void schedule(ClientSession session) {
+        ready.add(session);
+    }
+
+    // 只能在 tick 线程上调用
+    public void addTask(TickTask task) {
+        tasks.add(task);
+        taskMicros.add(Metrics.histogram("tick." + task.name() + ".micros"));
+    }
+
+    // tick 任务给会话写了输出后调用，tick 结束时统一提交
+    public void touch(ClientSession session) {
+        if (session.markTouched()) {
+            touched.add(session);
+        }
+    }
+
+    public void start() {
+        executor = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, "world-tick-" + zone);
+            thread.setDaemon(true);
+            return thread;
+        });
+        executor.scheduleAtFixedRate(this::runTick, periodNanos, periodNanos, TimeUnit.NANOSECONDS);
+    }
+
+    public void stop() {
+        if (executor != null) {
+            executor.shutdownNow();
+        }
+    }
+
+    private void runTick() {
+        long start = System.nanoTime();
+        tick++;
+
+        int processed = 0;
+        ClientSession next;
+        while (processed < MAX_COMMANDS_PER_TICK && (next = ready.poll()) != null) {
+            touch(next);
+            running.add(next);
+            processed += next.runCommands(MAX_COMMANDS_PER_TICK - processed);
+        }
+
+        long phaseStart = System.nanoTime();
+        COMMAND_MICROS.record((phaseStart - start) / 1000);
+        for (int i = 0; i < tasks.size(); i++) {
+            try {
+                tasks.get(i).onTick(tick);
+            } catch (RuntimeException e) {
+                System.out.println("❌ tick 任务失败: " + e);
+            }
+            long phaseEnd = System.nanoTime();
+            taskMicros.get(i).record((phaseEnd - phaseStart) / 1000);
+            phaseStart = phaseEnd;
+        }
+
+        boolean flushed = false;
+        for (ClientSession session : touched) {
+            session.clearTouched();
+            if (session.commitOutput() || session.isClosed()) {
+                server.scheduleFlush(session);
+                flushed = true;
+            }
+        }
+        touched.clear();
+        if (flushed) {
+            server.wakeup();
+        }
+
+        // 输出已提交，此后会话才能交给其他分区，保证客户端看到的顺序不变
+        for (ClientSession session : running) {
+            if (session.release()) {
+                handoffs++;
+            }
+        }
+        running.clear();
+
+        long elapsed = System.nanoTime() - start;
+        tickTimes.record(elapsed / 1000);
+        TICK_MICROS.record(elapsed / 1000);
+        commandsSinceReport += processed;
+        if (elapsed > periodNanos) {
+            overruns++;
+            OVERRUNS.increment();
+        }
+        if (tick % reportIntervalTicks == 0) {
+            report();
+        }
+    }
+
+    private void report() {
+        System.out.println("⏱️ 分区 " + zone + " tick " + tick
+                + " 耗时(μs) p50=" + tickTimes.percentile(0.50)
+                + " p95=" + tickTimes.percentile(0.95)
+                + " p99=" + tickTimes.percentile(0.99)
+                + " max=" + tickTimes.getMax()
+                + " 超时=" + overruns
+                + " 命令=" + commandsSinceReport
+                + " 移交=" + handoffs
+                + " 战斗=" + battles.size()
+                + " 待处理会话=" + ready.size()
+                + " AI " + battles.getPlanner().summarize()
+                + " 房间事件 " + events.summarize());
+        tickTimes.reset();
+        commandsSinceReport = 0;
+        handoffs = 0;
+        overruns = 0;
+    }
+}
+
+// ==============================
+// 17. 延迟直方图
+// ==============================
+// 对数分桶：每个 2 的幂区间再细分 16 格，相对误差约 6%
+class LatencyHistogram {
+    private static final int SUB_BITS = 4;
+    private static final int SUB_BUCKETS = 1 << SUB_BITS;
+    static final int BUCKETS = SUB_BUCKETS + (64 - SUB_BITS) * SUB_BUCKETS;
+
+    private final long[] counts = new long[BUCKETS];
+    private long total;
+    private long max;
+
+    public void record(long value) {
+        if (value < 0) value = 0;
+        counts[indexOf(value)]++;
+        total++;
+        if (value > max) max = value;
+    }
+
+    public long getCount() { return total; }
+    public long getMax() { return max; }
+
+    public long percentile(double p) {
+        if (total == 0) return 0;
+        long target = Math.max(1, (long) Math.ceil(p * total));
+        long seen = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            seen += counts[i];
+            if (seen >= target) {
+                return Math.min(lowerBound(i), max);
+            }
+        }
+        return max;
+    }
+
+    public void reset() {
+        Arrays.fill(counts, 0);
+        total = 0;
+        max = 0;
+    }
+
+    void add(int index, long count) {
+        counts[index] += count;
+        total += count;
+        if (count > 0) max = Math.max(max, lowerBound(index));
+    }
+
+    void updateMax(long value) {
+        if (value > max) max = value;
+    }
+
+    static int indexOf(long value) {
+        if (value < SUB_BUCKETS) {
+            return (int) value;
+        }
+        int exp = 63 - Long.numberOfLeadingZeros(value);
+        int sub = (int) (value >>> (exp - SUB_BITS)) - SUB_BUCKETS;
+        return SUB_BUCKETS + (exp - SUB_BITS) * SUB_BUCKETS + sub;
+    }
+
+    static long lowerBound(int index) {
+        if (index < SUB_BUCKETS) {
+            return index;
+        }
+        int exp = (index - SUB_BUCKETS) / SUB_BUCKETS + SUB_BITS;
+        int sub = (index - SUB_BUCKETS) % SUB_BUCKETS;
+        return (long) (SUB_BUCKETS + sub) << (exp - SUB_BITS);
+    }
+}
+
+// 分桶与 LatencyHistogram 相同，任意线程都可以记录，不加锁
+class ConcurrentHistogram {
+    private final AtomicLongArray counts = new AtomicLongArray(LatencyHistogram.BUCKETS);
+    private final LongAccumulator max = new LongAccumulator(Math::max, 0);
+
+    public void record(long value) {
+        if (value < 0) value = 0;
+        counts.incrementAndGet(LatencyHistogram.indexOf(value));
+        max.accumulate(value);
+    }
+
+    // 读取时各桶不是同一瞬间的值，用于观察足够了
+    public LatencyHistogram snapshot() {
+        LatencyHistogram copy = new LatencyHistogram();
+        for (int i = 0; i < LatencyHistogram.BUCKETS; i++) {
+            long n = counts.get(i);
+            if (n > 0) copy.add(i, n);
+        }
+        copy.updateMax(max.get());
+        return copy;
+    }
+}
+
+// ==============================
+// 18. 战斗调度
+// ==============================
+// 在 tick 线程上推进所有进行中的战斗，战斗本身从不阻塞线程；
+// 敌人意图在每个 tick 末尾成批交给 AiPlanner 决策
+class BattleScheduler implements TickTask {
+    // 每个 tick 最多拿出周期的四分之一等待 AI，超时的决策降级
+    private static final int AI_BUDGET_DIVISOR = 4;
+
+    private final WorldTicker ticker;
+    private final AiPlanner planner;
+    private final Map<BattleSystem, ClientSession> active = new LinkedHashMap<>();
+    private final Set<Enemy> engaged = Collections.newSetFromMap(new IdentityHashMap<>());
+    private final List<BattleSystem> finished = new ArrayList<>();
+    private final List<BattleSystem> planning = new ArrayList<>();
+
+    public BattleScheduler(WorldTicker ticker) {
+        this.ticker = ticker;
+        this.planner = new AiPlanner(ticker.getPeriodNanos() / AI_BUDGET_DIVISOR, AiPlanner.CHUNK);
+    }
+
+    public int size() { return active.size(); }
+    public AiPlanner getPlanner() { return planner; }
+
+    @Override
+    public String name() { return "battles"; }
+
+    public boolean isEngaged(Enemy enemy) {
+        return engaged.contains(enemy);
+    }
+
+    public void add(ClientSession session, BattleSystem battle) {
+        active.put(battle, session);
+        engaged.add(battle.getEnemy());
+    }
+
+    public void remove(BattleSystem battle) {
+        if (active.remove(battle) != null) {
+            engaged.remove(battle.getEnemy());
+        }
+    }
+
+    @Override
+    public void onTick(long tick) {
+        for (Map.Entry<BattleSystem, ClientSession> entry : active.entrySet()) {
+            BattleSystem battle = entry.getKey();
+            if (battle.getState() == BattleSystem.State.ENEMY_TURN) {
+                battle.advance();
+                ticker.touch(entry.getValue());
+                if (battle.isFinished()) {
+                    finished.add(battle);
+                }
+            }
+            // 刚开始的战斗和刚结束敌人回合的战斗都在这里等待新的意图
+            if (battle.getState() == BattleSystem.State.PLAN) {
+                planning.add(battle);
+            }
+        }
+
+        if (!planning.isEmpty()) {
+            AiBatch batch = new AiBatch(planning.size());
+            for (int i = 0; i < planning.size(); i++) {
+                batch.load(i, planning.get(i));
+            }
+            planner.decide(batch);
+            for (int i = 0; i < planning.size(); i++) {
+                BattleSystem battle = planning.get(i);
+                battle.applyIntention(batch.actionAt(i));
+                ticker.touch(active.get(battle));
+            }
+            planning.clear();
+        }
+
+        for (BattleSystem battle : finished) {
+            ClientSession session = active.get(battle);
+            if (session != null) {
+                session.onBattleFinished();
+            }
+        }
+        finished.clear();
+    }
+}
+
+// ==============================
+// 19. 二进制存档编解码
+// ==============================
+// 格式: 魔数 + 版本号 + 字符串表 + 技能表 + 物品表 + 玩家数据
+// 重复出现的名称/描述只写一次，物品和技能以表内编号引用，整数使用变长编码
+class SaveCodec {
+    static final int MAGIC = 0x4D554453; // "MUDS"
+    static final int VERSION = 1;
+
+    public static boolean isBinarySave(byte[] bytes) {
+        return bytes.length >= 4
+                && ((bytes[0] & 0xFF) << 24 | (bytes[1] & 0xFF) << 16
+                    | (bytes[2] & 0xFF) << 8 | (bytes[3] & 0xFF)) == MAGIC;
+    }
+
+    public static byte[] encode(GameSaveData data) throws IOException {
+        return encode(data.getPlayer().snapshot(data.getCurrentRoomName()));
+    }
+
+    // 只读取不可变的快照，可以在任意线程上编码
+    public static byte[] encode(PlayerSnapshot player) throws IOException {
+        // 建立字符串、技能、物品三张表
+        Map<String, Integer> strings = new LinkedHashMap<>();
+        Map<Skill, Integer> skillIds = new LinkedHashMap<>();
+        Map<String, Integer> itemKeys = new HashMap<>();
+        List<Item> itemTable = new ArrayList<>();
+
+        intern(strings, player.getName());
+        intern(strings, player.getRoomName());
+        for (Skill skill : player.getSkills()) {
+            intern(strings, skill.getName());
+            skillIds.putIfAbsent(skill, skillIds.size());
+        }
+        List<Item> inventory = player.getInventory();
+        int[] inventoryIds = new int[inventory.size()];
+        for (int i = 0; i < inventoryIds.length; i++) {
+            Item item = inventory.get(i);
+            String key = item.getName() + '\0' + item.getDescription() + '\0' + item.getValue();
+            Integer id = itemKeys.get(key);
+            if (id == null) {
+                id = itemTable.size();
+                itemKeys.put(key, id);
+                itemTable.add(item);
+                intern(strings, item.getName());
+                intern(strings, item.getDescription());
+            }
+            inventoryIds[i] = id;
+        }
+
+        ByteArrayOutputStream buffer = new ByteArrayOutputStream(256);
+        DataOutputStream out = new DataOutputStream(buffer);
+        out.writeInt(MAGIC);
+        out.writeShort(VERSION);
+
+        writeVarInt(out, strings.size());
+        for (String s : strings.keySet()) {
+            out.writeUTF(s);
+        }
+
+        writeVarInt(out, skillIds.size());
+        for (Skill skill : skillIds.keySet()) {
+            writeVarInt(out, strings.get(skill.getName()));
+            writeVarInt(out, skill.getDamage());
+            writeVarInt(out, skill.getMpCost());
+        }
+
+        writeVarInt(out, itemTable.size());
+        for (Item item : itemTable) {
+            writeVarInt(out, strings.get(item.getName()));
+            writeVarInt(out, strings.get(item.getDescription()));
+            writeVarInt(out, item.getValue());
+        }
+
+        writeVarInt(out, strings.get(player.getName()));
+        writeVarInt(out, strings.get(player.getRoomName()));
+        writeVarInt(out, player.getLevel());
+        writeVarInt(out, player.getHp());
+        writeVarInt(out, player.getMaxHp());
+        writeVarInt(out, player.getMp());
+        writeVarInt(out, player.getMaxMp());
+        writeVarInt(out, player.getAttack());
+        writeVarInt(out, player.getDefense());
+        writeVarInt(out, player.getExperience());
+        writeVarInt(out, player.getMaxExperience());
+        writeVarInt(out, player.getGold());
+
+        writeVarInt(out, player.getSkills().size());
+        for (Skill skill : player.getSkills()) {
+            writeVarInt(out, skillIds.get(skill));
+        }
+        writeVarInt(out, inventoryIds.length);
+        for (int id : inventoryIds) {
+            writeVarInt(out, id);
+        }
+
+        out.flush();
+        return buffer.toByteArray();
+    }
+
+    public static GameSaveData decode(byte[] bytes) throws IOException {
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(bytes));
+        if (in.readInt() != MAGIC) {
+            throw new IOException("不是有效的存档文件");
+        }
+        int version = in.readUnsignedShort();
+        if (version > VERSION) {
+            throw new IOException("存档版本过新: " + version);
+        }
+
+        String[] strings = new String[readVarInt(in)];
+        for (int i = 0; i < strings.length; i++) {
+            strings[i] = in.readUTF();
+        }
+
+        Skill[] skillTable = new Skill[readVarInt(in)];
+        for (int i = 0; i < skillTable.length; i++) {
+            skillTable[i] = SkillRegistry.intern(strings[readVarInt(in)], readVarInt(in), readVarInt(in));
+        }
+
+        Item[] itemTable = new Item[readVarInt(in)];
+        for (int i = 0; i < itemTable.length; i++) {
+            itemTable[i] = new Item(strings[readVarInt(in)], strings[readVarInt(in)], readVarInt(in));
+        }
+
+        Player player = new Player(strings[readVarInt(in)]);
+        String roomName = strings[readVarInt(in)];
+        int level = readVarInt(in);
+        int hp = readVarInt(in);
+        int maxHp = readVarInt(in);
+        int mp = readVarInt(in);
+        int maxMp = readVarInt(in);
+        int attack = readVarInt(in);
+        int defense = readVarInt(in);
+        int experience = readVarInt(in);
+        int maxExperience = readVarInt(in);
+        int gold = readVarInt(in);
+
+        List<Skill> skills = new ArrayList<>();
+        for (int i = readVarInt(in); i > 0; i--) {
+            skills.add(skillTable[readVarInt(in)]);
+        }
+        List<Item> inventory = new ArrayList<>();
+        for (int i = readVarInt(in); i > 0; i--) {
+            inventory.add(itemTable[readVarInt(in)]);
+        }
+
+        player.restore(level, hp, maxHp, mp, maxMp, attack, defense,
+                experience, maxExperience, gold, skills, inventory);
+        return new GameSaveData(player, roomName);
+    }
+
+    // 兼容旧版 Java 序列化存档
+    public static GameSaveData decodeLegacy(byte[] bytes) throws IOException {
+        try (ObjectInputStream ois = new ObjectInputStream(new ByteArrayInputStream(bytes))) {
+            return (GameSaveData) ois.readObject();
+        } catch (ClassNotFoundException e) {
+            throw new IOException(e);
+        }
+    }
+
+    private static void intern(Map<String, Integer> strings, String s) {
+        strings.putIfAbsent(s, strings.size());
+    }
+
+    // ZigZag + 变长编码，小整数只占 1 字节
+    static void writeVarInt(DataOutput out, int value) throws IOException {
+        int v = (value << 1) ^ (value >> 31);
+        while ((v & ~0x7F) != 0) {
+            out.writeByte((v & 0x7F) | 0x80);
+            v >>>= 7;
+        }
+        out.writeByte(v);
+    }
+
+    static int readVarInt(DataInput in) throws IOException {
+        int v = 0;
+        for (int shift = 0; shift < 35; shift += 7) {
+            int b = in.readUnsignedByte();
+            v |= (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) {
+                return (v >>> 1) ^ -(v & 1);
+            }
+        }
+        throw new IOException("变长整数格式错误");
+    }
+}
+
+// ==============================
+// 20. 基准测试
+// ==============================
+// 没有引入 JMH，这里用预热 + 计时循环做粗略对比
+class Benchmarks {
+    private static final long WARMUP_NANOS = TimeUnit.SECONDS.toNanos(2);
+    private static final long MEASURE_NANOS = TimeUnit.SECONDS.toNanos(3);
+    // 旧版程序写出的 mud_save.dat（Base64）：角色“老存档”，2 级，HP 77，173 金币，
+    // 物品栏为治疗药水和铁剑，所在房间为幽暗森林
+    private static final String LEGACY_SAVE = String.join("",
+            "rO0ABXNyABxjbi5lZHUudXNzdC5tdWQuR2FtZVNhdmVEYXRhNM4a0PQqHkgCAAJMAA9jdXJyZW50",
+            "Um9vbU5hbWV0ABJMamF2YS9sYW5nL1N0cmluZztMAAZwbGF5ZXJ0ABhMY24vZWR1L3Vzc3QvbXVk",
+            "L1BsYXllcjt4cHQADOW5veaal+ajruael3NyABZjbi5lZHUudXNzdC5tdWQuUGxheWVyATtfCn8t",
+            "1lsCAAVJAApleHBlcmllbmNlSQAEZ29sZEkADW1heEV4cGVyaWVuY2VMAAlpbnZlbnRvcnl0ABBM",
+            "amF2YS91dGlsL0xpc3Q7TAAGc2tpbGxzcQB+AAZ4cgAZY24uZWR1LnVzc3QubXVkLkNoYXJhY3Rl",
+            "cokvFtZG6DiJAgAISQAGYXR0YWNrSQAHZGVmZW5zZUkAAmhwSQAFbGV2ZWxJAAVtYXhIcEkABW1h",
+            "eE1wSQACbXBMAARuYW1lcQB+AAF4cAAAAAwAAAAGAAAATQAAAAIAAAB4AAAAPAAAADx0AAnogIHl",
+            "rZjmoaMAAAAyAAAArQAAAJZzcgATamF2YS51dGlsLkFycmF5TGlzdHiB0h2Zx2GdAwABSQAEc2l6",
+            "ZXhwAAAAAncEAAAAAnNyABRjbi5lZHUudXNzdC5tdWQuSXRlbU5FT4o0vFmUAgADSQAFdmFsdWVM",
+            "AAtkZXNjcmlwdGlvbnEAfgABTAAEbmFtZXEAfgABeHAAAAAKdAAe5oGi5aSN55Sf5ZG95YC855qE",
+            "57qi6Imy6I2v5rC0dAAM5rK755aX6I2v5rC0c3EAfgAMAAAAHnQAFeS4gOaKiuaZrumAmueahOmT",
+            "geWJkXQABumTgeWJkXhzcQB+AAoAAAADdwQAAAADc3IAFWNuLmVkdS51c3N0Lm11ZC5Ta2lsbLly",
+            "BJbipVdPAgADSQAGZGFtYWdlSQAGbXBDb3N0TAAEbmFtZXEAfgABeHAAAAAKAAAAAHQADOaZrumA",
+            "muaUu+WHu3NxAH4AFAAAAA8AAAAFdAAG6YeN5Ye7c3EAfgAUAAAAAAAAAAh0AAnmsrvnlpfmnK94");
+
+    interface Operation {
+        void run() throws Exception;
+    }
+
+    public static void run(String name, String[] args) {
+        try {
+            switch (name) {
+                case "save":
+                    saveCodec();
+                    break;
+                case "world":
+                    worldLoading(args.length > 0 ? Integer.parseInt(args[0]) : 100_000);
+                    break;
+                case "heap":
+                    itemHeap(args.length > 0 ? Integer.parseInt(args[0]) : 1_000_000);
+                    break;
+                case "combat":
+                    combatRounds();
+                    break;
+                case "room":
+                    roomContents(args.length > 0 ? Integer.parseInt(args[0]) : 1000);
+                    break;
+                case "route":
+                    routeQueries(args.length > 0 ? Integer.parseInt(args[0]) : 100_000);
+                    break;
+                case "player":
+                    playerContention(args.length > 0 ? Integer.parseInt(args[0])
+                            : Runtime.getRuntime().availableProcessors());
+                    break;
+                case "spawn":
+                    enemyChurn();
+                    break;
+                case "ai":
+                    aiDecisions(args.length > 0 ? Integer.parseInt(args[0]) : 10_000);
+                    break;
+                case "square":
+                    townSquare(args.length > 0 ? Integer.parseInt(args[0]) : 200);
+                    break;
+                case "metrics":
+                    metricsOverhead(args.length > 0 ? Integer.parseInt(args[0])
+                            : Runtime.getRuntime().availableProcessors());
+                    break;
+                case "autosave":
+                    autosave(args.length > 0 ? Integer.parseInt(args[0]) : 200);
+                    break;
+                case "store":
+                    saveStore(args.length > 0 ? Integer.parseInt(args[0]) : 10_000);
+                    break;
+                case "cache":
+                    coldData(args.length > 0 ? Integer.parseInt(args[0]) : 100_000);
+                    break;
+                case "zones":
+                    zoneLoad(args.length > 0 ? Integer.parseInt(args[0]) : 400,
+                            args.length > 1 ? Integer.parseInt(args[1]) : WorldZones.DEFAULT_ZONES);
+                    break;
+                default:
+                    System.out.println("未知的基准测试: " + name);
+            }
+        } catch (Exception e) {
+            System.out.println("❌ 基准测试失败: " + e);
+        }
+    }
+
+    // 返回每秒操作次数
+    static double measure(Operation op) throws Exception {
+        long end = System.nanoTime() + WARMUP_NANOS;
+        while (System.nanoTime() < end) {
+            op.run();
+        }
+
+        long ops = 0;
+        long start = System.nanoTime();
+        end = start + MEASURE_NANOS;
+        long now;
+        do {
+            op.run();
+            ops++;
+        } while ((now = System.nanoTime()) < end);
+        return ops * 1e9 / (now - start);
+    }
+
+    static void report(String label, double opsPerSecond) {
+        System.out.printf("%-28s %,14.0f ops/s%n", label, opsPerSecond);
+    }
+
+    interface Worker {
+        // 在给定截止时间前循环执行，返回完成的操作数
+        long runUntil(long deadline, int threadIndex);
+    }
+
+    // 多线程吞吐：每个线程预热后各自计数，返回总的每秒操作数
+    static double measureParallel(int threads, Worker worker) throws InterruptedException {
+        ExecutorService pool = Executors.newFixedThreadPool(threads);
+        try {
+            List<Future<Long>> results = new ArrayList<>();
+            long warmupEnd = System.nanoTime() + WARMUP_NANOS;
+            long end = warmupEnd + MEASURE_NANOS;
+            for (int t = 0; t < threads; t++) {
+                int index = t;
+                results.add(pool.submit(() -> {
+                    worker.runUntil(warmupEnd, index);
+                    return worker.runUntil(end, index);
+                }));
+            }
+            long total = 0;
+            for (Future<Long> result : results) {
+                total += result.get();
+            }
+            return total * 1e9 / MEASURE_NANOS;
+        } catch (ExecutionException e) {
+            throw new IllegalStateException(e.getCause());
+        } finally {
+            pool.shutdown();
+        }
+    }
+
+    private static volatile long sink;
+
+    private static void combatRounds() throws Exception {
+        int cores = Runtime.getRuntime().availableProcessors();
+        Worker worker = (deadline, index) -> {
+            SplittableRandom random = GameRandom.forStream(index);
+            long rounds = 0;
+            long checksum = 0;
+            while (System.nanoTime() < deadline) {
+                checksum += CombatRoundLoop.run(random, 1024);
+                rounds += 1024;
+            }
+            sink += checksum;
+            return rounds;
+        };
+
+        double single = measureParallel(1, worker);
+        report("战斗回合 (1 线程)", single);
+        if (cores > 1) {
+            double parallel = measureParallel(cores, worker);
+            report("战斗回合 (" + cores + " 线程)", parallel);
+            System.out.printf("扩展效率: %.0f%%%n", parallel / single / cores * 100);
+        }
+    }
+
+    // 拥挤房间里按名称拾取再放回：列表线性查找 vs RoomContents 索引
+    private static void roomContents(int count) throws Exception {
+        String[] names = new String[50];
+        for (int i = 0; i < names.length; i++) {
+            names[i] = "战利品" + i;
+        }
+        List<Item> list = new ArrayList<>();
+        Room room = new Room("拥挤的房间", "地上堆满了东西");
+        for (int i = 0; i < count; i++) {
+            Item item = new Item(names[i % names.length], "掉落物");
+            list.add(item);
+            room.addItem(item);
+        }
+
+        // 随机取名称，避免列表按固定顺序轮转后每次都在开头命中
+        SplittableRandom random = new SplittableRandom(42);
+        report("列表拾取+放回 (" + count + " 件)", measure(() -> {
+            String name = names[random.nextInt(names.length)];
+            for (Iterator<Item> it = list.iterator(); it.hasNext(); ) {
+                Item item = it.next();
+                if (item.getName().equals(name)) {
+                    it.remove();
+                    list.add(item);
+                    break;
+                }
+            }
+        }));
+        report("索引拾取+放回 (" + count + " 件)", measure(() -> {
+            Item item = room.takeItem(names[random.nextInt(names.length)]);
+            room.addItem(item);
+        }));
+    }
+
+    // 网格世界与随机图世界上的最短路查询：不用地标的双向 BFS vs 建索引时自动选择的方式
+    private static void routeQueries(int roomCount) throws Exception {
+        int side = (int) Math.ceil(Math.sqrt(roomCount));
+        List<Room> grid = new ArrayList<>(side * side);
+        for (int y = 0; y < side; y++) {
+            for (int x = 0; x < side; x++) {
+                grid.add(new Room(WorldGenerator.cell(x, y), ""));
+            }
+        }
+        for (int y = 0; y < side; y++) {
+            for (int x = 0; x < side; x++) {
+                Room room = grid.get(y * side + x);
+                if (y > 0) room.addExit("北", grid.get((y - 1) * side + x));
+                if (y < side - 1) room.addExit("南", grid.get((y + 1) * side + x));
+                if (x > 0) room.addExit("西", grid.get(y * side + x - 1));
+                if (x < side - 1) room.addExit("东", grid.get(y * side + x + 1));
+            }
+        }
+        routeQueries("网格 " + side + "x" + side, grid);
+
+        // 随机图：一条单向环保证连通，再加两条随机单向出口
+        SplittableRandom random = new SplittableRandom(7);
+        List<Room> rooms = new ArrayList<>(roomCount);
+        for (int i = 0; i < roomCount; i++) {
+            rooms.add(new Room("房间" + i, ""));
+        }
+        for (int i = 0; i < roomCount; i++) {
+            Room room = rooms.get(i);
+            room.addExit("前", rooms.get((i + 1) % roomCount));
+            room.addExit("左", rooms.get(random.nextInt(roomCount)));
+            room.addExit("右", rooms.get(random.nextInt(roomCount)));
+        }
+        routeQueries("随机图 " + roomCount, rooms);
+    }
+
+    private static void routeQueries(String label, List<Room> rooms) throws Exception {
+        long start = System.nanoTime();
+        RouteIndex indexed = RouteIndex.build(rooms, RouteIndex.DEFAULT_LANDMARKS);
+        System.out.printf("%s: 构建索引 %.0f ms%n", label, (System.nanoTime() - start) / 1e6);
+        RouteIndex plain = RouteIndex.build(rooms, 0);
+
+        SplittableRandom random = new SplittableRandom(11);
+        String[] names = new String[rooms.size()];
+        for (int i = 0; i < names.length; i++) {
+            names[i] = rooms.get(i).getName();
+        }
+        for (RouteIndex index : new RouteIndex[] {plain, indexed}) {
+            double ops = measure(() -> {
+                List<String> route = index.route(names[random.nextInt(names.length)], names[random.nextInt(names.length)]);
+                sink += route == null ? -1 : route.size();
+            });
+            report("  " + (index.getLandmarkCount() > 0 ? "ALT " + index.getLandmarkCount() + " 个地标" : "双向 BFS"), ops);
+            System.out.printf("    平均每次查询 %.1f µs%n", 1e6 / ops);
+        }
+    }
+
+    // 刷怪循环：击败后移出房间再刷回。对比每次新建 Enemy 和经刷怪表从对象池取用
+    private static void enemyChurn() throws Exception {
+        EnemyTemplate template = EnemyTemplate.intern("森林狼", 60, 10, 12, 5);
+        Room plain = new Room("狼窝", "");
+        plain.addEnemy(new Enemy(template));
+        Operation allocate = () -> {
+            Enemy enemy = plain.findEnemy("");
+            plain.removeEnemy(enemy);
+            plain.addEnemy(new Enemy(template));
+        };
+        Room spawning = new Room("狼窝", "");
+        spawning.addSpawn(template, 0);
+        Operation pooled = () -> {
+            Enemy enemy = spawning.findEnemy("");
+            spawning.removeEnemy(enemy);
+            EnemyPool.release(enemy);
+        };
+
+        report("新建 Enemy", measure(allocate));
+        System.out.printf("    每次分配 %.0f 字节%n", allocatedBytesPerOp(allocate));
+        report("刷怪表 + 对象池", measure(pooled));
+        System.out.printf("    每次分配 %.0f 字节, 池中新建 %,d 只, 复用 %,d 次%n",
+                allocatedBytesPerOp(pooled), EnemyPool.getCreated(), EnemyPool.getReused());
+    }
+
+    private static double allocatedBytesPerOp(Operation op) throws Exception {
+        com.sun.management.ThreadMXBean threads =
+                (com.sun.management.ThreadMXBean) java.lang.management.ManagementFactory.getThreadMXBean();
+        int n = 1_000_000;
+        long before = threads.getCurrentThreadAllocatedBytes();
+        for (int i = 0; i < n; i++) {
+            op.run();
+        }
+        return (double) (threads.getCurrentThreadAllocatedBytes() - before) / n;
+    }
+
+    // 敌人意图决策：同一批战斗在 tick 线程上逐个决策 vs 切块交给 AI 工作线程，
+    // 最后用很紧的预算演示超时降级
+    private static void aiDecisions(int battles) throws Exception {
+        AiBatch batch = new AiBatch(battles);
+        SplittableRandom random = new SplittableRandom(5);
+        AiProfile[] profiles = AiProfile.values();
+        for (int i = 0; i < battles; i++) {
+            int enemyMaxHp = 40 + random.nextInt(120);
+            batch.set(i, profiles[i % profiles.length], 1 + random.nextInt(enemyMaxHp), enemyMaxHp,
+                    8 + random.nextInt(12), 3 + random.nextInt(15), random.nextBoolean(),
+                    1 + random.nextInt(100), 100, 10, 5, random.nextLong());
+        }
+
+        AiPlanner inline = new AiPlanner(TimeUnit.SECONDS.toNanos(1), Integer.MAX_VALUE);
+        report("tick 线程逐个决策 (" + battles + " 场)", measure(() -> inline.decide(batch)) * battles);
+        System.out.println("    " + inline.summarize());
+        AiPlanner pooled = new AiPlanner(TimeUnit.SECONDS.toNanos(1), AiPlanner.CHUNK);
+        report("AI 工作线程 (" + battles + " 场)", measure(() -> pooled.decide(batch)) * battles);
+        System.out.println("    " + pooled.summarize());
+
+        // 超时的块仍可能在后台写结果，每次用新的批次
+        AiPlanner capped = new AiPlanner(TimeUnit.MICROSECONDS.toNanos(50), AiPlanner.CHUNK);
+        for (int i = 0; i < 200; i++) {
+            capped.decide(batch.copy());
+        }
+        System.out.println("预算 50µs: " + capped.summarize());
+    }
+
+    // 多个线程同时修改同一个玩家：金币收支、物品进出、受伤与治疗，结束后核对总账
+    private static void playerContention(int threads) throws Exception {
+        Item potion = new Item("治疗药水", "恢复生命值的红色药水", 10);
+        for (int n : new int[] {1, Math.max(2, threads)}) {
+            Player player = new Player("基准测试");
+            LongAdder earned = new LongAdder();
+            LongAdder spent = new LongAdder();
+            double ops = measureParallel(n, (deadline, index) -> {
+                SplittableRandom random = new SplittableRandom(index);
+                long done = 0;
+                while (System.nanoTime() < deadline) {
+                    for (int i = 0; i < 64; i++) {
+                        switch (random.nextInt(4)) {
+                            case 0:
+                                player.addGold(3);
+                                earned.add(3);
+                                break;
+                            case 1:
+                                if (player.spendGold(5)) spent.add(5);
+                                break;
+                            case 2:
+                                player.addItem(potion);
+                                player.removeItem(potion);
+                                break;
+                            default:
+                                player.receiveDamage(12);
+                                player.heal(7);
+                        }
+                    }
+                    done += 64;
+                }
+                return done;
+            });
+            report(n + " 个线程修改同一玩家", ops);
+            long expected = 50 + earned.sum() - spent.sum();
+            boolean balanced = player.getGold() == expected && player.getGold() >= 0
+                    && player.getInventory().isEmpty();
+            System.out.println("    金币 " + player.getGold() + "/" + expected
+                    + ", 物品 " + player.getInventory().size() + (balanced ? " — 总账一致" : " — 总账不一致！"));
+        }
+    }
+
+    // 多玩家负载：本机起服务器，分区数分别为 1 和 zoneCount，
+    // 客户端分散到网格世界各处后来回走动、查看、拾取，统计每秒完成的命令数
+    private static void zoneLoad(int players, int zoneCount) throws Exception {
+        File file = File.createTempFile("mud-zones", ".world");
+        file.deleteOnExit();
+        WorldGenerator.writeGrid(file, 32, 32, 8);
+        // 每轮每个客户端连发十个来回，让 tick 线程而不是往返延迟成为瓶颈
+        String[] step = {"go 东", "look", "take 草药", "go 西", "look", "status"};
+        String[] cycle = new String[step.length * 10];
+        for (int i = 0; i < cycle.length; i++) {
+            cycle[i] = step[i % step.length];
+        }
+        int clientThreads = Math.min(players, 16);
+
+        for (int zones : new int[] {1, zoneCount}) {
+            GameWorld world = WorldLoader.load(file);
+            int port;
+            try (java.net.ServerSocket probe = new java.net.ServerSocket(0)) {
+                port = probe.getLocalPort();
+            }
+            GameServer server = new GameServer(port, world, 50, zones);
+            Thread serverThread = new Thread(() -> {
+                try {
+                    server.start();
+                } catch (IOException e) {
+                    System.out.println("❌ 服务器异常: " + e);
+                }
+            }, "bench-server");
+            serverThread.setDaemon(true);
+            serverThread.start();
+
+            List<List<LoadClient>> groups = new ArrayList<>();
+            SplittableRandom random = new SplittableRandom(3);
+            for (int t = 0; t < clientThreads; t++) {
+                groups.add(new ArrayList<>());
+            }
+            for (int i = 0; i < players; i++) {
+                LoadClient client = LoadClient.connect(port);
+                client.send("玩家" + i, "travel " + WorldGenerator.cell(random.nextInt(32), random.nextInt(32)));
+                client.awaitPrompts(2);
+                groups.get(i % clientThreads).add(client);
+            }
+
+            double ops = measureParallel(clientThreads, (deadline, index) -> {
+                List<LoadClient> group = groups.get(index);
+                long done = 0;
+                try {
+                    while (System.nanoTime() < deadline) {
+                        for (LoadClient client : group) {
+                            client.send(cycle);
+                        }
+                        for (LoadClient client : group) {
+                            client.awaitPrompts(cycle.length);
+                        }
+                        done += (long) group.size() * cycle.length;
+                    }
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+                return done;
+            });
+            report(players + " 名玩家, " + zones + " 个分区", ops);
+
+            for (List<LoadClient> group : groups) {
+                for (LoadClient client : group) {
+                    client.close();
+                }
+            }
+            server.stop();
+            serverThread.join();
+        }
+    }
+
+    // 存档库：批量写入几千个角色，随机读取，重新打开时重建索引，反复覆盖后压缩
+    private static void saveStore(int characters) throws Exception {
+        File file = File.createTempFile("mud-store", ".db");
+        file.deleteOnExit();
+        Player template = new Player("模板");
+        for (int j = 0; j < 20; j++) {
+            template.addItem(new Item("治疗药水", "恢复生命值的红色药水", 10));
+        }
+        byte[] record = SaveCodec.encode(template.snapshot("起始大厅"));
+        String[] keys = new String[characters];
+        for (int i = 0; i < characters; i++) {
+            keys[i] = "角色" + i;
+        }
+
+        SaveStore store = SaveStore.open(file);
+        long start = System.nanoTime();
+        for (int from = 0; from < characters; from += 100) {
+            Map<String, byte[]> batch = new LinkedHashMap<>();
+            for (int i = from; i < Math.min(characters, from + 100); i++) {
+                batch.put(keys[i], record);
+            }
+            store.putAll(batch);
+        }
+        System.out.printf("%-32s %,12d μs%n", "写入 " + characters + " 个角色 (每批 100)",
+                (System.nanoTime() - start) / 1000);
+
+        SplittableRandom random = new SplittableRandom(9);
+        report("按键读取存档", measure(() -> store.get(keys[random.nextInt(characters)])));
+        store.close();
+
+        start = System.nanoTime();
+        SaveStore reopened = SaveStore.open(file);
+        System.out.printf("%-32s %,12d μs (%d 个角色)%n", "重新打开并重建索引",
+                (System.nanoTime() - start) / 1000, reopened.size());
+
+        for (int round = 0; round < 3; round++) {
+            Map<String, byte[]> batch = new LinkedHashMap<>();
+            for (String key : keys) {
+                batch.put(key, record);
+            }
+            reopened.putAll(batch);
+        }
+        System.out.println("    覆盖三轮后文件 " + file.length() / 1024 + " KB, " + reopened.summarize());
+        reopened.close();
+    }
+
+    // 自动存档：tick 线程上只拍快照，编码和落盘交给后台；对比在 tick 线程上逐个同步保存
+    private static void autosave(int players) throws Exception {
+        File file = File.createTempFile("mud-autosave", ".db");
+        file.deleteOnExit();
+        List<Player> online = new ArrayList<>();
+        String[] names = {"治疗药水", "魔法药水", "小型生命药剂", "铁剑", "面包"};
+        for (int i = 0; i < players; i++) {
+            Player player = new Player("玩家" + i);
+            for (int j = 0; j < 20; j++) {
+                player.addItem(new Item(names[j % names.length], "击败敌人获得的战利品", j % 7));
+            }
+            online.add(player);
+        }
+
+        StoreSaveSink sink = new StoreSaveSink(SaveStore.open(file));
+        long start = System.nanoTime();
+        for (Player player : online) {
+            sink.write(List.of(player.snapshot("起始大厅")));
+        }
+        long syncNanos = System.nanoTime() - start;
+        System.out.printf("%-32s %,12d μs%n", "tick 线程同步逐个保存 " + players + " 人", syncNanos / 1000);
+
+        AutoSaver saver = new AutoSaver(sink);
+        int gold = 0;
+        for (int round = 0; round < 5; round++) {
+            for (Player player : online) {
+                player.addGold(++gold);
+            }
+            start = System.nanoTime();
+            for (Player player : online) {
+                saver.submit(player.snapshot("起始大厅"));
+            }
+            saver.flushAsync();
+            long tickNanos = System.nanoTime() - start;
+            System.out.printf("%-32s %,12d μs%n", "tick 线程拍快照 " + players + " 人 (第 " + (round + 1) + " 轮)",
+                    tickNanos / 1000);
+        }
+        saver.close();
+        System.out.println("    " + saver.summarize());
+    }
+
+    // 冷数据淘汰：在网格世界里蛇形走过若干行、沿原路返回，去程拾取草药；
+    // 对比不设预算和限定驻留房间数时的堆占用，回程不应再遇到草药（淘汰后读回的房间保留了拾取后的状态）。
+    // 之后模拟玩家按二八分布反复登录下线，对比不同缓存容量的命中率
+    private static void coldData(int roomCount) throws Exception {
+        File file = File.createTempFile("mud-bench", ".world");
+        file.deleteOnExit();
+        int side = (int) Math.ceil(Math.sqrt(roomCount));
+        WorldGenerator.writeGrid(file, side, side, 10);
+        System.out.println("生成网格世界: " + side * side + " 个房间");
+        String[] keys = {"world.room.hits", "world.room.misses", "world.region.evictions", "world.region.writebacks"};
+        Map<String, String> back = Map.of("东", "西", "西", "东", "南", "北", "北", "南");
+
+        // 指标里的驻留房间数回调持有上一轮的世界，直到下一个世界替换它，基线只在开始前取一次
+        long baseline = usedHeap();
+        for (int budget : new int[] {Integer.MAX_VALUE, 5000, 1000}) {
+            Map<String, Long> before = Metrics.snapshot();
+            GameWorld world = WorldLoader.loadLazy(file);
+            world.setRoomBudget(budget);
+            Room[] here = {world.visit(world.getStartRoom())};
+            Deque<String> path = new ArrayDeque<>();
+            int taken = here[0].takeItem("草药") != null ? 1 : 0;
+            long start = System.nanoTime();
+            String across = "东";
+            for (int row = 0; row < Math.min(side, 30); row++) {
+                for (String direction = across; ; direction = across) {
+                    Room next = here[0].getExit(direction);
+                    if (next == null) {
+                        next = here[0].getExit("南");
+                        direction = "南";
+                        across = across.equals("东") ? "西" : "东";
+                        if (next == null) break;
+                    }
+                    here[0] = world.visit(next);
+                    path.push(direction);
+                    if (here[0].takeItem("草药") != null) taken++;
+                    world.evictIdleRegions(0, room -> room == here[0]);
+                    if (direction.equals("南")) break;
+                }
+            }
+            int found = 0;
+            while (!path.isEmpty()) {
+                here[0] = world.visit(here[0].getExit(back.get(path.pop())));
+                if (here[0].takeItem("草药") != null) found++;
+                world.evictIdleRegions(0, room -> room == here[0]);
+            }
+            long nanos = System.nanoTime() - start;
+            long heap = usedHeap() - baseline;
+            Map<String, Long> after = Metrics.snapshot();
+            System.out.printf("%s: 往返 %,d ms, 驻留房间 %,d, 堆占用 %,d KB, 去程拾取 %d, 回程遇到 %d%n",
+                    budget == Integer.MAX_VALUE ? "不设预算" : "预算 " + budget + " 房间",
+                    nanos / 1_000_000, world.residentRoomCount(), heap / 1024, taken, found);
+            StringBuilder line = new StringBuilder("   ");
+            for (String key : keys) {
+                line.append(' ').append(key).append('=').append(after.get(key) - before.getOrDefault(key, 0L));
+            }
+            System.out.println(line);
+        }
+
+        File storeFile = File.createTempFile("mud-cache", ".db");
+        storeFile.deleteOnExit();
+        int players = 5000;
+        SaveStore saves = SaveStore.open(storeFile);
+        AutoSaver saver = new AutoSaver(new StoreSaveSink(saves));
+        try {
+            Map<String, byte[]> records = new LinkedHashMap<>();
+            for (int i = 0; i < players; i++) {
+                Player player = new Player("玩家" + i);
+                for (int j = 0; j < 20; j++) {
+                    player.addItem(new Item("治疗药水", "击败敌人获得的战利品", j % 7));
+                }
+                records.put(player.getName(), SaveCodec.encode(player.snapshot("起始大厅")));
+            }
+            saves.putAll(records);
+
+            for (int capacity : new int[] {players / 50, PlayerCache.DEFAULT_CAPACITY}) {
+                PlayerCache cache = new PlayerCache(saves, saver, capacity);
+                Random random = new Random(42);
+                int logins = 50_000;
+                long start = System.nanoTime();
+                for (int i = 0; i < logins; i++) {
+                    int id = random.nextInt(10) < 8 ? random.nextInt(players / 5) : random.nextInt(players);
+                    GameSaveData data = cache.checkOut("玩家" + id);
+                    data.getPlayer().addGold(1);
+                    cache.checkIn(data.getPlayer().snapshot(data.getCurrentRoomName()));
+                }
+                long nanos = System.nanoTime() - start;
+                System.out.printf("%-32s %,12.1f μs/次%n", "容量 " + capacity + " 登录+下线", nanos / 1000.0 / logins);
+                System.out.println("    " + cache.summarize());
+            }
+        } finally {
+            saver.close();
+            System.out.println("    自动存档: " + saver.summarize());
+        }
+    }
+
+    // 埋点的开销：单线程和多线程下 LongAdder 计数、AtomicLong 计数与直方图记录
+    private static void metricsOverhead(int threads) throws Exception {
+        LongAdder adder = new LongAdder();
+        AtomicLong atomic = new AtomicLong();
+        ConcurrentHistogram histogram = new ConcurrentHistogram();
+        for (int n : new int[] {1, Math.max(2, threads)}) {
+            report("LongAdder 计数 (" + n + " 线程)", measureParallel(n, (deadline, index) -> {
+                long done = 0;
+                while (System.nanoTime() < deadline) {
+                    for (int i = 0; i < 1024; i++) adder.increment();
+                    done += 1024;
+                }
+                return done;
+            }));
+            report("AtomicLong 计数 (" + n + " 线程)", measureParallel(n, (deadline, index) -> {
+                long done = 0;
+                while (System.nanoTime() < deadline) {
+                    for (int i = 0; i < 1024; i++) atomic.incrementAndGet();
+                    done += 1024;
+                }
+                return done;
+            }));
+            report("直方图记录 (" + n + " 线程)", measureParallel(n, (deadline, index) -> {
+                long done = 0;
+                while (System.nanoTime() < deadline) {
+                    for (int i = 0; i < 1024; i++) histogram.record(System.nanoTime() & 0xFFFF);
+                    done += 1024;
+                }
+                return done;
+            }));
+        }
+        LatencyHistogram snapshot = histogram.snapshot();
+        System.out.println("    直方图样本 " + snapshot.getCount() + ", p50=" + snapshot.percentile(0.5)
+                + " p99=" + snapshot.percentile(0.99) + " max=" + snapshot.getMax());
+    }
+
+    // 城镇广场：所有玩家挤在起始大厅和幽暗森林之间来回走，每一步都要通知两个房间里的其他人。
+    // 每个房间每 tick 给每个人只写一次、最多 RoomEventBus.MAX_LINES 行，
+    // 人数翻倍时每条命令收到的字节数应保持平稳，而不是跟着人数线性增长
+    private static void townSquare(int players) throws Exception {
+        String[] cycle = {"go 北", "go 南", "status", "go 北", "go 南", "status"};
+        for (int n : new int[] {Math.max(2, players / 4), players}) {
+            int port;
+            try (java.net.ServerSocket probe = new java.net.ServerSocket(0)) {
+                port = probe.getLocalPort();
+            }
+            GameServer server = new GameServer(port, GameWorld.createDefault(), 50, 1);
+            Thread serverThread = new Thread(() -> {
+                try {
+                    server.start();
+                } catch (IOException e) {
+                    System.out.println("❌ 服务器异常: " + e);
+                }
+            }, "bench-server");
+            serverThread.setDaemon(true);
+            serverThread.start();
+
+            int clientThreads = Math.min(n, 16);
+            List<List<LoadClient>> groups = new ArrayList<>();
+            for (int t = 0; t < clientThreads; t++) {
+                groups.add(new ArrayList<>());
+            }
+            for (int i = 0; i < n; i++) {
+                LoadClient client = LoadClient.connect(port);
+                client.send("玩家" + i);
+                client.awaitPrompts(1);
+                groups.get(i % clientThreads).add(client);
+            }
+            LongAdder received = new LongAdder();
+            for (List<LoadClient> group : groups) {
+                for (LoadClient client : group) {
+                    client.resetReceived();
+                }
+            }
+            server.getZones().get(0).getEvents().summarize();
+
+            LongAdder commands = new LongAdder();
+            double ops = measureParallel(clientThreads, (deadline, index) -> {
+                List<LoadClient> group = groups.get(index);
+                long done = 0;
+                try {
+                    while (System.nanoTime() < deadline) {
+                        for (LoadClient client : group) {
+                            client.send(cycle);
+                        }
+                        for (LoadClient client : group) {
+                            client.awaitPrompts(cycle.length);
+                        }
+                        done += (long) group.size() * cycle.length;
+                    }
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+                commands.add(done);
+                return done;
+            });
+            for (List<LoadClient> group : groups) {
+                for (LoadClient client : group) {
+                    received.add(client.getReceived());
+                }
+            }
+            report(n + " 名玩家同处一地", ops);
+            System.out.println("    每条命令收到 " + received.sum() / Math.max(1, commands.sum()) + " 字节, "
+                    + server.getZones().get(0).getEvents().summarize());
+
+            for (List<LoadClient> group : groups) {
+                for (LoadClient client : group) {
+                    client.close();
+                }
+            }
+            server.stop();
+            serverThread.join();
+        }
+    }
+
+    // 阻塞式测试客户端，按提示符计数确认命令已执行
+    private static final class LoadClient {
+        private final SocketChannel channel;
+        private final ByteBuffer buffer = ByteBuffer.allocate(64 * 1024);
+        private boolean afterMarker;
+        private long received;
+
+        private LoadClient(SocketChannel channel) {
+            this.channel = channel;
+        }
+
+        static LoadClient connect(int port) throws IOException {
+            for (int attempt = 0; ; attempt++) {
+                try {
+                    SocketChannel channel = SocketChannel.open(new InetSocketAddress("127.0.0.1", port));
+                    channel.setOption(java.net.StandardSocketOptions.TCP_NODELAY, true);
+                    return new LoadClient(channel);
+                } catch (IOException e) {
+                    // 服务器线程可能还没开始监听
+                    if (attempt == 50) throw e;
+                    try {
+                        Thread.sleep(20);
+                    } catch (InterruptedException interrupted) {
+                        throw new InterruptedIOException();
+                    }
+                }
+            }
+        }
+
+        void send(String... lines) throws IOException {
+            ByteBuffer bytes = ByteBuffer.wrap((String.join("\n", lines) + "\n").getBytes(StandardCharsets.UTF_8));
+            while (bytes.hasRemaining()) {
+                channel.write(bytes);
+            }
+        }
+
+        // 提示符 "> " 只在一条命令执行完后出现，其余输出中的 > 都是多字节字符的一部分
+        void awaitPrompts(int count) throws IOException {
+            while (count > 0) {
+                buffer.clear();
+                if (channel.read(buffer) < 0) {
+                    throw new EOFException("服务器关闭了连接");
+                }
+                buffer.flip();
+                received += buffer.remaining();
+                while (buffer.hasRemaining()) {
+                    byte b = buffer.get();
+                    if (afterMarker && b == ' ') count--;
+                    afterMarker = b == '>';
+                }
+            }
+        }
+
+        long getReceived() { return received; }
+        void resetReceived() { received = 0; }
+
+        void close() throws IOException {
+            channel.close();
+        }
+    }
+
+    private static void saveCodec() throws Exception {
+        checkLegacySave();
+
+        Player player = new Player("基准测试");
+        String[] names = {"治疗药水", "魔法药水", "小型生命药剂", "铁剑", "面包"};
+        for (int i = 0; i < 40; i++) {
+            player.addItem(new Item(names[i % names.length], "击败敌人获得的战利品", i % 7));
+        }
+        GameSaveData data = new GameSaveData(player, "起始大厅");
+
+        byte[] javaBytes = javaSerialize(data);
+        byte[] codecBytes = SaveCodec.encode(data);
+        System.out.println("存档大小: Java 序列化 " + javaBytes.length + " 字节, 二进制格式 "
+                + codecBytes.length + " 字节");
+
+        report("Java 序列化 encode", measure(() -> javaSerialize(data)));
+        report("Java 序列化 decode", measure(() -> SaveCodec.decodeLegacy(javaBytes)));
+        report("二进制格式 encode", measure(() -> SaveCodec.encode(data)));
+        report("二进制格式 decode", measure(() -> SaveCodec.decode(codecBytes)));
+    }
+
+    // 解码旧版程序写出的存档，确认 Java 序列化兼容路径仍然可用
+    private static void checkLegacySave() throws IOException {
+        GameSaveData data = SaveCodec.decodeLegacy(Base64.getDecoder().decode(LEGACY_SAVE));
+        Player player = data.getPlayer();
+        List<Item> inventory = player.getInventory();
+        if (!player.getName().equals("老存档") || !data.getCurrentRoomName().equals("幽暗森林")
+                || player.getLevel() != 2 || player.getHp() != 77 || player.getGold() != 173
+                || inventory.size() != 2 || !inventory.get(0).getName().equals("治疗药水")
+                || inventory.get(1).getValue() != 30
+                || player.getSkills().get(1) != SkillRegistry.HEAVY_STRIKE) {
+            throw new IllegalStateException("旧版存档解码结果不一致");
+        }
+        System.out.println("旧版存档解码: " + player.getName() + " 等级 " + player.getLevel()
+                + ", 物品 " + inventory);
+    }
+
+    private static void worldLoading(int roomCount) throws Exception {
+        File file = File.createTempFile("mud-bench", ".world");
+        file.deleteOnExit();
+        int side = (int) Math.ceil(Math.sqrt(roomCount));
+        WorldGenerator.writeGrid(file, side, side, 10);
+        System.out.println("生成网格世界: " + side * side + " 个房间, " + file.length() / 1024 + " KB");
+
+        long baseline = usedHeap();
+        long start = System.nanoTime();
+        GameWorld eager = WorldLoader.load(file);
+        long eagerNanos = System.nanoTime() - start;
+        long eagerHeap = usedHeap() - baseline;
+        System.out.printf("完整加载: %,d ms, 房间 %,d, 堆占用 %,d KB%n",
+                eagerNanos / 1_000_000, eager.getRooms().size(), eagerHeap / 1024);
+        eager = null;
+
+        baseline = usedHeap();
+        start = System.nanoTime();
+        GameWorld lazy = WorldLoader.loadLazy(file);
+        long lazyNanos = System.nanoTime() - start;
+        long lazyHeap = usedHeap() - baseline;
+        System.out.printf("懒加载索引: %,d ms, 已加载房间 %,d, 堆占用 %,d KB%n",
+                lazyNanos / 1_000_000, lazy.getRooms().size(), lazyHeap / 1024);
+
+        start = System.nanoTime();
+        Room room = lazy.getStartRoom();
+        for (int i = 0; i < 200 && room != null; i++) {
+            Room next = room.getExit("东");
+            room = next != null ? next : room.getExit("南");
+        }
+        System.out.printf("懒加载漫游 200 步: %,d μs, 已加载房间 %,d%n",
+                (System.nanoTime() - start) / 1000, lazy.getRooms().size());
+    }
+
+    // 旧版物品的内存布局：每个实例各自持有名称、描述和价格
+    private static final class UnsharedItem {
+        final String name;
+        final String description;
+        final int value;
+
+        UnsharedItem(String name, String description, int value) {
+            this.name = name;
+            this.description = description;
+            this.value = value;
+        }
+    }
+
+    // 模拟从存档/世界文件读入的物品：每个字符串都是新解码出来的副本
+    private static void itemHeap(int count) {
+        String[] names = {"治疗药水", "魔法药水", "小型生命药剂", "铁剑", "草药", "面包"};
+        Object[] holder = new Object[count];
+
+        Player[] players = new Player[10_000];
+        long baseline = usedHeap();
+        for (int i = 0; i < players.length; i++) {
+            players[i] = new Player("玩家" + i);
+        }
+        long playerHeap = usedHeap() - baseline;
+        System.out.printf("%,d 个玩家: %,d KB (%.0f 字节/个, 技能共享注册表实例)%n",
+                players.length, playerHeap / 1024, (double) playerHeap / players.length);
+
+        baseline = usedHeap();
+        for (int i = 0; i < count; i++) {
+            String name = names[i % names.length];
+            holder[i] = new UnsharedItem(new String(name), new String("击败敌人获得的战利品"), i % 7);
+        }
+        long before = usedHeap() - baseline;
+        Arrays.fill(holder, null);
+
+        baseline = usedHeap();
+        for (int i = 0; i < count; i++) {
+            String name = names[i % names.length];
+            holder[i] = new Item(new String(name), new String("击败敌人获得的战利品"), i % 7);
+        }
+        long after = usedHeap() - baseline;
+
+        System.out.printf("%,d 个物品实例%n", count);
+        System.out.printf("独立字段: %,d KB (%.1f 字节/个)%n", before / 1024, (double) before / count);
+        System.out.printf("共享模板: %,d KB (%.1f 字节/个), 模板数 %d%n",
+                after / 1024, (double) after / count, ItemTemplates.size());
+    }
+
+    static long usedHeap() {
+        Runtime runtime = Runtime.getRuntime();
+        for (int i = 0; i < 3; i++) {
+            System.gc();
+        }
+        return runtime.totalMemory() - runtime.freeMemory();
+    }
+
+    private static byte[] javaSerialize(Object data) throws IOException {
+        ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+        try (ObjectOutputStream oos = new ObjectOutputStream(buffer)) {
+            oos.writeObject(data);
+        }
+        return buffer.toByteArray();
+    }
+}
+
+// ==============================
+// 21. 存档日志
+// ==============================
+interface PlayerChangeListener {
+    void onGoldChanged(int delta);
+    void onItemAdded(Item item);
+    void onItemRemoved(Item item);
+    void onExperienceGained(int amount);
+}
+
+// 增量存档：存档库里的快照 + 每个角色一个追加写的变更日志
+// 日志头记录对应快照的 CRC，快照被替换后旧日志自动失效，避免重复回放
+class SaveJournal implements PlayerChangeListener {
+    private static final int JOURNAL_MAGIC = 0x4D55444A; // "MUDJ"
+    private static final int HEADER_BYTES = 12;
+    private static final long COMPACT_THRESHOLD = 64 * 1024;
+
+    private static final byte GOLD = 1;
+    private static final byte ITEM_ADD = 2;
+    private static final byte ITEM_REMOVE = 3;
+    private static final byte EXPERIENCE = 4;
+    private static final byte MOVE = 5;
+    private static final byte VITALS = 6;
+
+    private final SaveStore store;
+    private final String key;
+    private final File journalFile;
+    private final ByteArrayOutputStream pending = new ByteArrayOutputStream(256);
+    private final ByteArrayOutputStream record = new ByteArrayOutputStream(64);
+    private final DataOutputStream recordOut = new DataOutputStream(record);
+    private final java.util.zip.CRC32 crc = new java.util.zip.CRC32();
+    private FileChannel channel;
+    // 磁盘上是否已有与当前玩家对应的快照
+    private boolean baseline;
+    // 回放过程中最后一次移动到的房间
+    private String lastRoom;
+
+    public SaveJournal(SaveStore store, String key, File journalFile) {
+        this.store = store;
+        this.key = key;
+        this.journalFile = journalFile;
+    }
+
+    // 新角色：丢弃未提交的记录，下次保存时写完整快照
+    public void startNew() {
+        pending.reset();
+        baseline = false;
+    }
+
+    public GameSaveData load() throws IOException {
+        byte[] snapshot = store.get(key);
+        if (snapshot == null) {
+            throw new IOException("没有存档: " + key);
+        }
+        GameSaveData data = SaveCodec.isBinarySave(snapshot)
+                ? SaveCodec.decode(snapshot)
+                : SaveCodec.decodeLegacy(snapshot);
+
+        String roomName = data.getCurrentRoomName();
+        long validLength = -1;
+        if (journalFile.exists()) {
+            byte[] journal = java.nio.file.Files.readAllBytes(journalFile.toPath());
+            validLength = replay(journal, checksum(snapshot), data.getPlayer());
+            if (validLength > 0) {
+                roomName = lastRoom != null ? lastRoom : roomName;
+            }
+        }
+
+        openChannel(checksum(snapshot), validLength);
+        pending.reset();
+        baseline = true;
+        return new GameSaveData(data.getPlayer(), roomName);
+    }
+
+    public void recordMove(String roomName) {
+        try {
+            beginRecord(MOVE);
+            recordOut.writeUTF(roomName);
+            endRecord();
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    public void recordVitals(Player player) {
+        try {
+            beginRecord(VITALS);
+            SaveCodec.writeVarInt(recordOut, player.getHp());
+            SaveCodec.writeVarInt(recordOut, player.getMp());
+            endRecord();
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    // 把积累的变更追加到日志并落盘；没有快照或日志过大时改写完整快照
+    public void commit(Player player, String roomName) throws IOException {
+        if (!baseline || channel == null || channel.size() + pending.size() > COMPACT_THRESHOLD) {
+            compact(player, roomName);
+            return;
+        }
+        ByteBuffer bytes = ByteBuffer.wrap(pending.toByteArray());
+        while (bytes.hasRemaining()) {
+            channel.write(bytes);
+        }
+        channel.force(false);
+        pending.reset();
+    }
+
+    public void close() throws IOException {
+        if (channel != null) {
+            channel.close();
+            channel = null;
+        }
+    }
+
+    @Override
+    public void onGoldChanged(int delta) {
+        try {
+            beginRecord(GOLD);
+            SaveCodec.writeVarInt(recordOut, delta);
+            endRecord();
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    @Override
+    public void onItemAdded(Item item) {
+        writeItem(ITEM_ADD, item);
+    }
+
+    @Override
+    public void onItemRemoved(Item item) {
+        writeItem(ITEM_REMOVE, item);
+    }
+
+    @Override
+    public void onExperienceGained(int amount) {
+        try {
+            beginRecord(EXPERIENCE);
+            SaveCodec.writeVarInt(recordOut, amount);
+            endRecord();
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    private void writeItem(byte type, Item item) {
+        try {
+            beginRecord(type);
+            recordOut.writeUTF(item.getName());
+            recordOut.writeUTF(item.getDescription());
+            SaveCodec.writeVarInt(recordOut, item.getValue());
+            endRecord();
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    private void compact(Player player, String roomName) throws IOException {
+        byte[] snapshot = SaveCodec.encode(new GameSaveData(player, roomName));
+        store.put(key, snapshot);
+
+        openChannel(checksum(snapshot), -1);
+        pending.reset();
+        baseline = true;
+    }
+
+    // validLength < 0 表示重新创建日志，否则截掉损坏的尾部后继续追加
+    private void openChannel(long snapshotCrc, long validLength) throws IOException {
+        close();
+        channel = FileChannel.open(journalFile.toPath(), java.nio.file.StandardOpenOption.CREATE,
+                java.nio.file.StandardOpenOption.READ, java.nio.file.StandardOpenOption.WRITE);
+        if (validLength >= HEADER_BYTES) {
+            channel.truncate(validLength);
+            channel.position(validLength);
+            return;
+        }
+
+        ByteBuffer header = ByteBuffer.allocate(HEADER_BYTES);
+        header.putInt(JOURNAL_MAGIC).putLong(snapshotCrc).flip();
+        channel.truncate(0);
+        channel.position(0);
+        while (header.hasRemaining()) {
+            channel.write(header);
+        }
+        channel.force(false);
+    }
+
+    private void beginRecord(byte type) throws IOException {
+        record.reset();
+        recordOut.writeByte(type);
+    }
+
+    // 记录格式: 长度 + 内容 + CRC32
+    private void endRecord() throws IOException {
+        recordOut.flush();
+        byte[] body = record.toByteArray();
+        crc.reset();
+        crc.update(body);
+        DataOutputStream out = new DataOutputStream(pending);
+        out.writeInt(body.length);
+        out.write(body);
+        out.writeInt((int) crc.getValue());
+    }
+
+    // 回放日志，返回有效部分的长度；日志与快照不匹配时返回 -1
+    private long replay(byte[] journal, long snapshotCrc, Player player) throws IOException {
+        lastRoom = null;
+        ByteBuffer in = ByteBuffer.wrap(journal);
+        if (in.remaining() < HEADER_BYTES || in.getInt() != JOURNAL_MAGIC || in.getLong() != snapshotCrc) {
+            return -1;
+        }
+
+        while (in.remaining() >= 4) {
+            int start = in.position();
+            int length = in.getInt();
+            if (length <= 0 || in.remaining() < length + 4) {
+                return start;
+            }
+            byte[] body = new byte[length];
+            in.get(body);
+            crc.reset();
+            crc.update(body);
+            if (in.getInt() != (int) crc.getValue()) {
+                return start;
+            }
+            apply(body, player);
+        }
+        return in.position();
+    }
+
+    private void apply(byte[] body, Player player) throws IOException {
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(body));
+        switch (in.readByte()) {
+            case GOLD:
+                player.addGold(SaveCodec.readVarInt(in));
+                break;
+            case ITEM_ADD:
+                player.addItem(new Item(in.readUTF(), in.readUTF(), SaveCodec.readVarInt(in)));
+                break;
+            case ITEM_REMOVE:
+                removeMatching(player, in.readUTF(), in.readUTF(), SaveCodec.readVarInt(in));
+                break;
+            case EXPERIENCE:
+                player.addExperience(SaveCodec.readVarInt(in), GameOutput.NONE);
+                break;
+            case MOVE:
+                lastRoom = in.readUTF();
+                break;
+            case VITALS:
+                player.setHp(SaveCodec.readVarInt(in));
+                player.setMp(SaveCodec.readVarInt(in));
+                break;
+            default:
+                throw new IOException("未知的日志记录类型");
+        }
+    }
+
+    private static void removeMatching(Player player, String name, String description, int value) {
+        for (Item item : player.getInventory()) {
+            if (item.getName().equals(name) && item.getDescription().equals(description)
+                    && item.getValue() == value) {
+                player.removeItem(item);
+                return;
+            }
+        }
+    }
+
+    private static long checksum(byte[] bytes) {
+        java.util.zip.CRC32 crc = new java.util.zip.CRC32();
+        crc.update(bytes);
+        return crc.getValue();
+    }
+}
+
+// ==============================
+// 22. 世界存档
+// ==============================
+// 格式: 魔数 + 版本 + 区域目录(名称/偏移/长度) + 各区域数据块
+// 读取时按区域定位，只解析玩家进入的区域
+class WorldStore {
+    private static final int MAGIC = 0x4D554457; // "MUDW"
+    // 2: 每个区域块以块格式开头
+    private static final int VERSION = 2;
+    // 区域块格式；2: 敌人分别记录模板的基础属性和战斗中提升后的当前攻击
+    private static final int REGION_FORMAT = 2;
+
+    private final File file;
+
+    public WorldStore(File file) {
+        this.file = file;
+    }
+
+    public boolean exists() { return file.exists(); }
+
+    public Set<String> readRegions() throws IOException {
+        if (!file.exists()) {
+            return Collections.emptySet();
+        }
+        try (RandomAccessFile in = new RandomAccessFile(file, "r")) {
+            return readDirectory(in).keySet();
+        }
+    }
+
+    public void loadRegion(GameWorld world, String region) throws IOException {
+        try (RandomAccessFile in = new RandomAccessFile(file, "r")) {
+            long[] entry = readDirectory(in).get(region);
+            if (entry == null) {
+                return;
+            }
+            byte[] block = readBlock(in, entry);
+            readRegion(world, new DataInputStream(new ByteArrayInputStream(block)));
+        }
+    }
+
+    // 已加载的区域从内存编码，尚未进入过的区域直接沿用旧文件中的数据块
+    public void save(GameWorld world) throws IOException {
+        Map<String, List<Room>> regions = new LinkedHashMap<>();
+        for (Room room : world.getRooms()) {
+            regions.computeIfAbsent(room.getRegion(), k -> new ArrayList<>()).add(room);
+        }
+
+        Map<String, byte[]> blocks = new LinkedHashMap<>();
+        try (RandomAccessFile old = file.exists() ? new RandomAccessFile(file, "r") : null) {
+            Map<String, long[]> oldDirectory = old != null ? readDirectory(old) : Collections.emptyMap();
+            for (Map.Entry<String, List<Room>> region : regions.entrySet()) {
+                long[] entry = oldDirectory.get(region.getKey());
+                if (world.isRegionPending(region.getKey()) && entry != null) {
+                    blocks.put(region.getKey(), readBlock(old, entry));
+                } else {
+                    blocks.put(region.getKey(), writeRegion(region.getValue()));
+                }
+            }
+            // 被淘汰出内存的区域用淘汰时写回的状态块
+            for (Map.Entry<String, byte[]> parked : world.getParkedRegions().entrySet()) {
+                blocks.putIfAbsent(parked.getKey(), parked.getValue());
+            }
+            // 懒加载世界中从未读入内存的区域
+            for (Map.Entry<String, long[]> entry : oldDirectory.entrySet()) {
+                if (!blocks.containsKey(entry.getKey())) {
+                    blocks.put(entry.getKey(), readBlock(old, entry.getValue()));
+                }
+            }
+        }
+        write(blocks);
+    }
+
+    // 只替换给定区域的状态块，其余区域沿用文件中的数据块；不读内存中的房间，可以在后台线程调用
+    public void putRegions(Map<String, byte[]> updated) throws IOException {
+        Map<String, byte[]> blocks = new LinkedHashMap<>();
+        if (file.exists()) {
+            try (RandomAccessFile old = new RandomAccessFile(file, "r")) {
+                for (Map.Entry<String, long[]> entry : readDirectory(old).entrySet()) {
+                    byte[] block = updated.get(entry.getKey());
+                    blocks.put(entry.getKey(), block != null ? block : readBlock(old, entry.getValue()));
+                }
+            }
+        }
+        for (Map.Entry<String, byte[]> block : updated.entrySet()) {
+            blocks.putIfAbsent(block.getKey(), block.getValue());
+        }
+        write(blocks);
+    }
+
+    private void write(Map<String, byte[]> blocks) throws IOException {
+        ByteArrayOutputStream header = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(header);
+        out.writeInt(MAGIC);
+        out.writeShort(VERSION);
+        out.writeInt(blocks.size());
+        int directorySize = 0;
+        for (String region : blocks.keySet()) {
+            directorySize += 2 + region.getBytes(StandardCharsets.UTF_8).length + 8 + 4;
+        }
+        long offset = 4 + 2 + 4 + directorySize;
+        for (Map.Entry<String, byte[]> block : blocks.entrySet()) {
+            out.writeUTF(block.getKey());
+            out.writeLong(offset);
+            out.writeInt(block.getValue().length);
+            offset += block.getValue().length;
+        }
+        out.flush();
+
+        // 临时文件落盘后才替换旧存档，替换本身也要落盘，崩溃时留下的只会是完整的旧存档或新存档
+        java.nio.file.Path temp = new File(file.getPath() + ".tmp").toPath();
+        try (FileChannel fileOut = FileChannel.open(temp, java.nio.file.StandardOpenOption.CREATE,
+                java.nio.file.StandardOpenOption.WRITE, java.nio.file.StandardOpenOption.TRUNCATE_EXISTING)) {
+            writeFully(fileOut, ByteBuffer.wrap(header.toByteArray()));
+            for (byte[] block : blocks.values()) {
+                writeFully(fileOut, ByteBuffer.wrap(block));
+            }
+            fileOut.force(true);
+        }
+        java.nio.file.Files.move(temp, file.toPath(),
+                java.nio.file.StandardCopyOption.REPLACE_EXISTING,
+                java.nio.file.StandardCopyOption.ATOMIC_MOVE);
+        syncDirectory(file);
+    }
+
+    private static void writeFully(FileChannel out, ByteBuffer bytes) throws IOException {
+        while (bytes.hasRemaining()) {
+            out.write(bytes);
+        }
+    }
+
+    // 目录项的改名要对目录 fsync 才算落盘；有的平台不能以只读方式打开目录，只能跳过
+    static void syncDirectory(File file) throws IOException {
+        File dir = file.getAbsoluteFile().getParentFile();
+        try (FileChannel channel = FileChannel.open(dir.toPath(), java.nio.file.StandardOpenOption.READ)) {
+            channel.force(true);
+        } catch (java.nio.file.AccessDeniedException | UnsupportedOperationException ignored) {
+        }
+    }
+
+    // 版本 1 的文件中区域块没有格式字节，读出时补上，返回的块总是当前版本的布局
+    private static byte[] readBlock(RandomAccessFile in, long[] entry) throws IOException {
+        int prefix = entry[2] < 2 ? 1 : 0;
+        byte[] block = new byte[(int) entry[1] + prefix];
+        if (prefix > 0) {
+            block[0] = 1;
+        }
+        in.seek(entry[0]);
+        in.readFully(block, prefix, (int) entry[1]);
+        return block;
+    }
+
+    private static Map<String, long[]> readDirectory(RandomAccessFile in) throws IOException {
+        in.seek(0);
+        if (in.readInt() != MAGIC) {
+            throw new IOException("不是有效的世界存档");
+        }
+        int version = in.readUnsignedShort();
+        if (version > VERSION) {
+            throw new IOException("世界存档版本过新: " + version);
+        }
+        Map<String, long[]> directory = new LinkedHashMap<>();
+        for (int i = in.readInt(); i > 0; i--) {
+            String region = in.readUTF();
+            directory.put(region, new long[] {in.readLong(), in.readInt(), version});
+        }
+        return directory;
+    }
+
+    static byte[] writeRegion(List<Room> rooms) throws IOException {
+        ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(buffer);
+        out.writeByte(REGION_FORMAT);
+        SaveCodec.writeVarInt(out, rooms.size());
+        for (Room room : rooms) {
+            out.writeUTF(room.getName());
+            out.writeBoolean(room.isVisited());
+
+            writeItems(out, room.getItems());
+
+            SaveCodec.writeVarInt(out, room.getNPCs().size());
+            for (NPC npc : room.getNPCs()) {
+                out.writeUTF(npc.getName());
+                writeItems(out, npc.getShopItems());
+            }
+
+            SaveCodec.writeVarInt(out, room.getEnemies().size());
+            for (Enemy enemy : room.getEnemies()) {
+                EnemyTemplate template = enemy.getTemplate();
+                out.writeUTF(template.getName());
+                SaveCodec.writeVarInt(out, template.getMaxHp());
+                SaveCodec.writeVarInt(out, template.getMaxMp());
+                SaveCodec.writeVarInt(out, template.getAttack());
+                SaveCodec.writeVarInt(out, template.getDefense());
+                SaveCodec.writeVarInt(out, enemy.getHp());
+                SaveCodec.writeVarInt(out, enemy.getMp());
+                SaveCodec.writeVarInt(out, enemy.getAttack());
+                Item drop = enemy.getDropItem();
+                out.writeBoolean(drop != null);
+                if (drop != null) {
+                    writeItem(out, drop);
+                }
+            }
+        }
+        out.flush();
+        return buffer.toByteArray();
+    }
+
+    static void readRegion(GameWorld world, DataInputStream in) throws IOException {
+        int format = in.readUnsignedByte();
+        if (format > REGION_FORMAT) {
+            throw new IOException("区域块格式过新: " + format);
+        }
+        for (int r = SaveCodec.readVarInt(in); r > 0; r--) {
+            String name = in.readUTF();
+            boolean visited = in.readBoolean();
+            List<Item> items = readItems(in);
+
+            Map<String, List<Item>> stock = new HashMap<>();
+            for (int i = SaveCodec.readVarInt(in); i > 0; i--) {
+                stock.put(in.readUTF(), readItems(in));
+            }
+
+            List<Enemy> enemies = new ArrayList<>();
+            for (int i = SaveCodec.readVarInt(in); i > 0; i--) {
+                // 按基础属性找回刷怪表里的同一个模板，战斗中提升过的攻击单独恢复；
+                // 格式 1 只记录了当前属性，只能当作基础属性
+                EnemyTemplate template = EnemyTemplate.intern(in.readUTF(), SaveCodec.readVarInt(in),
+                        SaveCodec.readVarInt(in), SaveCodec.readVarInt(in), SaveCodec.readVarInt(in));
+                int hp = SaveCodec.readVarInt(in);
+                int mp = SaveCodec.readVarInt(in);
+                int attack = format >= 2 ? SaveCodec.readVarInt(in) : template.getAttack();
+                Enemy enemy = new Enemy(template, in.readBoolean() ? readItem(in) : null);
+                enemy.setHp(hp);
+                enemy.setMp(mp);
+                enemy.setAttack(attack);
+                enemies.add(enemy);
+            }
+
+            // 存档中有、但世界定义里已删除的房间直接跳过
+            Room room = world.getLoadedRoom(name);
+            if (room == null) continue;
+            room.setVisited(visited);
+            room.restoreContents(items, enemies);
+            for (NPC npc : room.getNPCs()) {
+                List<Item> saved = stock.get(npc.getName());
+                if (saved != null) {
+                    npc.replaceShopItems(saved);
+                }
+            }
+        }
+    }
+
+    private static void writeItems(DataOutputStream out, Collection<Item> items) throws IOException {
+        SaveCodec.writeVarInt(out, items.size());
+        for (Item item : items) {
+            writeItem(out, item);
+        }
+    }
+
+    private static void writeItem(DataOutputStream out, Item item) throws IOException {
+        out.writeUTF(item.getName());
+        out.writeUTF(item.getDescription());
+        SaveCodec.writeVarInt(out, item.getValue());
+    }
+
+    private static List<Item> readItems(DataInputStream in) throws IOException {
+        List<Item> items = new ArrayList<>();
+        for (int i = SaveCodec.readVarInt(in); i > 0; i--) {
+            items.add(readItem(in));
+        }
+        return items;
+    }
+
+    private static Item readItem(DataInputStream in) throws IOException {
+        return new Item(in.readUTF(), in.readUTF(), SaveCodec.readVarInt(in));
+    }
+}
+
+// ==============================
+// 23. 世界数据加载
+// ==============================
+// 世界文件为 UTF-8 文本，每行一条记录，字段以制表符分隔，# 开头为注释:
+//   room   名称  区域  描述
+//   item   名称  描述  价格          (属于上一个 room)
+//   npc    名称  HP  MP  攻击  防御  友好(1/0)  对白
+//   shop   名称  描述  价格          (属于上一个 npc)
+//   enemy  名称  HP  MP  攻击  防御  [刷新秒数]   (默认 60 秒)
+//   exit   方向  目标房间名
+//   start  房间名
+// 出口可以引用文件中后出现的房间，在全部房间读入后再统一解析
+interface RoomSource {
+    String regionOf(String roomName);
+    List<Room> loadRegion(String region, GameWorld world) throws IOException;
+}
+
+class WorldLoader {
+    // 逐行读取，同时记录每行的字节偏移，供懒加载建立索引
+    private static final class LineReader implements Closeable {
+        private final InputStream in;
+        private final byte[] buffer = new byte[64 * 1024];
+        private byte[] line = new byte[256];
+        private int bufferPos;
+        private int bufferLimit;
+        private long position;
+        private long lineStart;
+
+        LineReader(InputStream in) {
+            this.in = in;
+        }
+
+        String readLine() throws IOException {
+            lineStart = position;
+            int length = 0;
+            boolean sawNewline = false;
+            while (!sawNewline) {
+                if (bufferPos == bufferLimit) {
+                    bufferLimit = in.read(buffer);
+                    bufferPos = 0;
+                    if (bufferLimit <= 0) {
+                        bufferLimit = 0;
+                        break;
+                    }
+                }
+                int start = bufferPos;
+                while (bufferPos < bufferLimit && buffer[bufferPos] != '\n') {
+                    bufferPos++;
+                }
+                int n = bufferPos - start;
+                if (length + n > line.length) {
+                    line = Arrays.copyOf(line, Math.max(line.length * 2, length + n));
+                }
+                System.arraycopy(buffer, start, line, length, n);
+                length += n;
+                if (bufferPos < bufferLimit) {
+                    bufferPos++;
+                    sawNewline = true;
+                }
+            }
+            position = lineStart + length + (sawNewline ? 1 : 0);
+            if (!sawNewline && length == 0) {
+                return null;
+            }
+            if (length > 0 && line[length - 1] == '\r') length--;
+            return new String(line, 0, length, StandardCharsets.UTF_8);
+        }
+
+        long getLineStart() { return lineStart; }
+        long getPosition() { return position; }
+
+        @Override
+        public void close() throws IOException {
+            in.close();
+        }
+    }
+
+    // 解析过程中的上下文：当前房间、当前 NPC 以及待解析的出口
+    private static final class ParseState {
+        final GameWorld world;
+        final boolean deferExits;
+        Room room;
+        NPC npc;
+        String startName;
+        final List<Room> exitRooms = new ArrayList<>();
+        final List<String> exitDirections = new ArrayList<>();
+        final List<String> exitTargets = new ArrayList<>();
+
+        ParseState(GameWorld world, boolean deferExits) {
+            this.world = world;
+            this.deferExits = deferExits;
+        }
+    }
+
+    public static GameWorld load(File file) throws IOException {
+        GameWorld world = new GameWorld();
+        ParseState state = new ParseState(world, false);
+        try (LineReader reader = new LineReader(new FileInputStream(file))) {
+            String line;
+            int lineNumber = 0;
+            while ((line = reader.readLine()) != null) {
+                lineNumber++;
+                parseLine(line, lineNumber, state);
+            }
+        }
+
+        // 第二遍：按名称解析出口
+        for (int i = 0; i < state.exitRooms.size(); i++) {
+            Room target = world.getRoom(state.exitTargets.get(i));
+            if (target == null) {
+                System.out.println("⚠️ 出口指向不存在的房间: " + state.exitTargets.get(i));
+                continue;
+            }
+            state.exitRooms.get(i).addExit(state.exitDirections.get(i), target);
+        }
+
+        if (state.startName != null && world.getRoom(state.startName) != null) {
+            world.setStartRoom(world.getRoom(state.startName));
+        }
+        if (world.getStartRoom() == null) {
+            throw new IOException("世界文件中没有任何房间");
+        }
+        return world;
+    }
+
+    // 只建立 房间名 → 文件偏移 的索引，房间按区域在首次访问时读入
+    public static GameWorld loadLazy(File file) throws IOException {
+        LazyRoomIndex index = new LazyRoomIndex(file);
+        String startName = null;
+        try (LineReader reader = new LineReader(new FileInputStream(file))) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                if (line.startsWith("room\t")) {
+                    String[] fields = line.split("\t", 4);
+                    index.endRoom(reader.getLineStart());
+                    index.beginRoom(fields[1], fields.length > 2 ? fields[2] : GameWorld.DEFAULT_REGION,
+                            reader.getLineStart());
+                    if (startName == null) startName = fields[1];
+                } else if (line.startsWith("exit\t")) {
+                    String[] fields = line.split("\t");
+                    if (fields.length > 2) {
+                        index.addExit(fields[1], fields[2]);
+                    }
+                } else if (line.startsWith("start\t")) {
+                    startName = line.substring(6).trim();
+                }
+            }
+            index.endRoom(reader.getPosition());
+        }
+        if (startName == null) {
+            throw new IOException("世界文件中没有任何房间");
+        }
+
+        GameWorld world = new GameWorld();
+        world.setSource(index);
+        world.setRoutes(index.buildRoutes(RouteIndex.DEFAULT_LANDMARKS));
+        Room start = world.getRoom(startName);
+        if (start == null) {
+            throw new IOException("起始房间不存在: " + startName);
+        }
+        world.setStartRoom(start);
+        return world;
+    }
+
+    static List<Room> parseRooms(String text, GameWorld world) throws IOException {
+        GameWorld scratch = new GameWorld();
+        ParseState state = new ParseState(scratch, true);
+        int lineNumber = 0;
+        for (String line : text.split("\n")) {
+            lineNumber++;
+            parseLine(line.endsWith("\r") ? line.substring(0, line.length() - 1) : line, lineNumber, state);
+        }
+        for (int i = 0; i < state.exitRooms.size(); i++) {
+            state.exitRooms.get(i).addPendingExit(state.exitDirections.get(i), state.exitTargets.get(i), world);
+        }
+        return new ArrayList<>(scratch.getRooms());
+    }
+
+    private static void parseLine(String line, int lineNumber, ParseState state) throws IOException {
+        if (line.isEmpty() || line.startsWith("#")) {
+            return;
+        }
+        String[] f = line.split("\t");
+        try {
+            switch (f[0]) {
+                case "room":
+                    state.room = new Room(f[1], f.length > 3 ? f[3] : "", f.length > 2 ? f[2] : GameWorld.DEFAULT_REGION);
+                    state.npc = null;
+                    state.world.addRoom(state.room);
+                    break;
+                case "item":
+                    currentRoom(state).addItem(new Item(f[1], f[2], Integer.parseInt(f[3])));
+                    break;
+                case "npc":
+                    state.npc = new NPC(f[1], Integer.parseInt(f[2]), Integer.parseInt(f[3]),
+                            Integer.parseInt(f[4]), Integer.parseInt(f[5]), f[6].equals("1"), f[7]);
+                    currentRoom(state).addNPC(state.npc);
+                    break;
+                case "shop":
+                    if (state.npc == null) throw new IOException("shop 之前没有 npc");
+                    state.npc.setShopItems(Collections.singletonList(new Item(f[1], f[2], Integer.parseInt(f[3]))));
+                    break;
+                case "enemy":
+                    currentRoom(state).addSpawn(EnemyTemplate.intern(f[1], Integer.parseInt(f[2]),
+                                    Integer.parseInt(f[3]), Integer.parseInt(f[4]), Integer.parseInt(f[5])),
+                            f.length > 6 ? Long.parseLong(f[6]) : Room.DEFAULT_RESPAWN_SECONDS);
+                    break;
+                case "exit":
+                    state.exitRooms.add(currentRoom(state));
+                    state.exitDirections.add(f[1]);
+                    state.exitTargets.add(f[2]);
+                    break;
+                case "start":
+                    state.startName = f[1];
+                    break;
+                default:
+                    throw new IOException("未知的记录类型 " + f[0]);
+            }
+        } catch (ArrayIndexOutOfBoundsException | NumberFormatException e) {
+            throw new IOException("世界文件第 " + lineNumber + " 行格式错误: " + line, e);
+        } catch (IOException e) {
+            throw new IOException("世界文件第 " + lineNumber + " 行: " + e.getMessage(), e);
+        }
+    }
+
+    private static Room currentRoom(ParseState state) throws IOException {
+        if (state.room == null) {
+            throw new IOException("记录之前没有 room");
+        }
+        return state.room;
+    }
+}
+
+// 懒加载索引：每个房间在文件中的字节区间，按区域分组；
+// 扫描时顺带记下整个世界的出口表，用来一次建好覆盖全部房间的路线索引
+class LazyRoomIndex implements RoomSource {
+    private final File file;
+    private final Map<String, Integer> roomIds = new HashMap<>();
+    private final Map<String, List<Integer>> regionRooms = new HashMap<>();
+    private final List<String> regionOfRoom = new ArrayList<>();
+    private long[] offsets = new long[1024];
+    private int[] lengths = new int[1024];
+    // 房间 i 的出口是 exitDirections / exitTargets 中从 exitOffsets[i] 开始的一段，建好路线索引后丢弃
+    private int[] exitOffsets = new int[1024];
+    private final List<String> exitDirections = new ArrayList<>();
+    private final List<String> exitTargets = new ArrayList<>();
+    // 方向名只有寥寥几种，各保留一份
+    private final Map<String, String> directionNames = new HashMap<>();
+    private int count;
+    private int open = -1;
+
+    public LazyRoomIndex(File file) {
+        this.file = file;
+    }
+
+    public int getRoomCount() { return count; }
+
+    void beginRoom(String name, String region, long offset) {
+        if (count == offsets.length) {
+            offsets = Arrays.copyOf(offsets, count * 2);
+            lengths = Arrays.copyOf(lengths, count * 2);
+            exitOffsets = Arrays.copyOf(exitOffsets, count * 2);
+        }
+        exitOffsets[count] = exitTargets.size();
+        // 区域名在索引中只保留一份
+        List<Integer> members = regionRooms.computeIfAbsent(region, k -> new ArrayList<>());
+        roomIds.put(name, count);
+        regionOfRoom.add(members.isEmpty() ? region : regionOfRoom.get(members.get(0)));
+        members.add(count);
+        offsets[count] = offset;
+        open = count++;
+    }
+
+    void endRoom(long offset) {
+        if (open >= 0) {
+            lengths[open] = (int) (offset - offsets[open]);
+            open = -1;
+        }
+    }
+
+    // 属于最近一个 room 记录
+    void addExit(String direction, String target) {
+        if (open >= 0) {
+            exitDirections.add(directionNames.computeIfAbsent(direction, k -> k));
+            exitTargets.add(target);
+        }
+    }
+
+    // 读完整个文件后调用；指向文件中不存在的房间的出口不进索引
+    RouteIndex buildRoutes(int landmarkCount) {
+        String[] names = new String[count];
+        for (Map.Entry<String, Integer> room : roomIds.entrySet()) {
+            names[room.getValue()] = room.getKey();
+        }
+        int[] edgeOffsets = new int[count + 1];
+        int[] targets = new int[exitTargets.size()];
+        String[] directions = new String[exitTargets.size()];
+        int edge = 0;
+        for (int i = 0; i < count; i++) {
+            edgeOffsets[i] = edge;
+            int end = i + 1 < count ? exitOffsets[i + 1] : exitTargets.size();
+            for (int e = exitOffsets[i]; e < end; e++) {
+                Integer target = roomIds.get(exitTargets.get(e));
+                if (target != null) {
+                    targets[edge] = target;
+                    directions[edge] = exitDirections.get(e);
+                    edge++;
+                }
+            }
+        }
+        edgeOffsets[count] = edge;
+        exitOffsets = null;
+        exitDirections.clear();
+        exitTargets.clear();
+        return RouteIndex.fromGraph(names, roomIds, edgeOffsets, Arrays.copyOf(targets, edge),
+                Arrays.copyOf(directions, edge), landmarkCount);
+    }
+
+    @Override
+    public String regionOf(String roomName) {
+        Integer id = roomIds.get(roomName);
+        return id != null ? regionOfRoom.get(id) : null;
+    }
+
+    @Override
+    public List<Room> loadRegion(String region, GameWorld world) throws IOException {
+        List<Integer> members = regionRooms.getOrDefault(region, Collections.emptyList());
+        StringBuilder text = new StringBuilder();
+        try (FileChannel channel = FileChannel.open(file.toPath(), java.nio.file.StandardOpenOption.READ)) {
+            for (int id : members) {
+                ByteBuffer bytes = ByteBuffer.allocate(lengths[id]);
+                while (bytes.hasRemaining()) {
+                    if (channel.read(bytes, offsets[id] + bytes.position()) < 0) break;
+                }
+                text.append(new String(bytes.array(), 0, bytes.position(), StandardCharsets.UTF_8)).append('\n');
+            }
+        }
+        return WorldLoader.parseRooms(text.toString(), world);
+    }
+}
+
+// 生成测试用的大型网格世界
+class WorldGenerator {
+    public static void writeGrid(File file, int width, int height, int regionSize) throws IOException {
+        try (Writer out = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(file), StandardCharsets.UTF_8))) {
+            out.write("start\t" + cell(0, 0) + "\n");
+            for (int y = 0; y < height; y++) {
+                for (int x = 0; x < width; x++) {
+                    String region = "区域" + (y / regionSize) + "-" + (x / regionSize);
+                    out.write("room\t" + cell(x, y) + "\t" + region + "\t一片平凡的荒野。\n");
+                    if ((x + y) % 7 == 0) out.write("item\t草药\t常见的治疗草药\t5\n");
+                    if ((x * 31 + y) % 11 == 0) out.write("enemy\t森林狼\t60\t10\t12\t5\n");
+                    if (y > 0) out.write("exit\t北\t" + cell(x, y - 1) + "\n");
+                    if (y < height - 1) out.write("exit\t南\t" + cell(x, y + 1) + "\n");
+                    if (x > 0) out.write("exit\t西\t" + cell(x - 1, y) + "\n");
+                    if (x < width - 1) out.write("exit\t东\t" + cell(x + 1, y) + "\n");
+                }
+            }
+        }
+    }
+
+    static String cell(int x, int y) {
+        return "荒野" + x + "," + y;
+    }
+}
+
+// ==============================
+// 24. 物品与技能模板
+// ==============================
+final class ItemTemplate implements Serializable {
+    private static final long serialVersionUID = 1L;
+
+    private final transient int id;
+    private final String name;
+    private final String description;
+    private final int value;
+
+    ItemTemplate(int id, String name, String description, int value) {
+        this.id = id;
+        this.name = name;
+        this.description = description;
+        this.value = value;
+    }
+
+    public int getId() { return id; }
+    public String getName() { return name; }
+    public String getDescription() { return description; }
+    public int getValue() { return value; }
+
+    // 反序列化时换回注册表中的共享实例
+    private Object readResolve() {
+        return ItemTemplates.intern(name, description, value);
+    }
+}
+
+// 物品模板注册表，相同的 (名称, 描述, 价格) 只保留一份，编号从 0 连续分配
+class ItemTemplates {
+    private static final Map<String, ItemTemplate> byKey = new ConcurrentHashMap<>();
+    private static final List<ItemTemplate> byId = new ArrayList<>();
+
+    public static ItemTemplate intern(String name, String description, int value) {
+        String key = name + '\0' + description + '\0' + value;
+        ItemTemplate template = byKey.get(key);
+        if (template != null) {
+            return template;
+        }
+        synchronized (byId) {
+            return byKey.computeIfAbsent(key, k -> {
+                ItemTemplate created = new ItemTemplate(byId.size(), name.intern(), description.intern(), value);
+                byId.add(created);
+                return created;
+            });
+        }
+    }
+
+    public static ItemTemplate get(int id) {
+        synchronized (byId) {
+            return byId.get(id);
+        }
+    }
+
+    public static int size() {
+        synchronized (byId) {
+            return byId.size();
+        }
+    }
+}
+
+class SkillRegistry {
+    private static final Map<String, Skill> byKey = new ConcurrentHashMap<>();
+    private static final List<Skill> byId = new ArrayList<>();
+
+    public static final Skill BASIC_ATTACK = intern("普通攻击", 10, 0);
+    public static final Skill HEAVY_STRIKE = intern("重击", 15, 5);
+    public static final Skill HEAL = intern("治疗术", 0, 8);
+
+    public static Skill intern(String name, int damage, int mpCost) {
+        String key = name + '\0' + damage + '\0' + mpCost;
+        Skill skill = byKey.get(key);
+        if (skill != null) {
+            return skill;
+        }
+        synchronized (byId) {
+            return byKey.computeIfAbsent(key, k -> {
+                Skill created = new Skill(byId.size(), name.intern(), damage, mpCost);
+                byId.add(created);
+                return created;
+            });
+        }
+    }
+
+    public static Skill get(int id) {
+        synchronized (byId) {
+            return byId.get(id);
+        }
+    }
+}
+
+// ==============================
+// 25. 随机数服务
+// ==============================
+// 每个线程一条从根种子派生的 SplittableRandom 流，取用时不分配对象、不竞争
+// 同一种子下，各线程按首次使用的先后得到固定的流，单线程的 tick 和控制台模式完全可重现
+class GameRandom {
+    private static final long GOLDEN_GAMMA = 0x9E3779B97F4A7C15L;
+
+    private static final class Stream {
+        final long generation;
+        final SplittableRandom random;
+
+        Stream(long generation, SplittableRandom random) {
+            this.generation = generation;
+            this.random = random;
+        }
+    }
+
+    private static final AtomicLong nextStream = new AtomicLong();
+    private static final ThreadLocal<Stream> local = new ThreadLocal<>();
+    private static volatile long seed = mix(System.nanoTime() ^ System.identityHashCode(GameRandom.class));
+    private static volatile long generation;
+
+    public static long getSeed() { return seed; }
+
+    // 重新设置根种子，各线程在下次取用时切换到新的流
+    public static synchronized void setSeed(long newSeed) {
+        seed = newSeed;
+        nextStream.set(0);
+        generation++;
+    }
+
+    public static SplittableRandom current() {
+        Stream stream = local.get();
+        if (stream == null || stream.generation != generation) {
+            stream = new Stream(generation, forStream(nextStream.getAndIncrement()));
+            local.set(stream);
+        }
+        return stream.random;
+    }
+
+    // 按编号取得独立且可重现的流，例如每场战斗或每个模拟任务一条
+    public static SplittableRandom forStream(long streamId) {
+        return new SplittableRandom(mix(seed + (streamId + 1) * GOLDEN_GAMMA));
+    }
+
+    private static long mix(long z) {
+        z = (z ^ (z >>> 30)) * 0xBF58476D1CE4E5B9L;
+        z = (z ^ (z >>> 27)) * 0x94D049BB133111EBL;
+        return z ^ (z >>> 31);
+    }
+}
+
+// ==============================
+// 26. 战斗结算核心
+// ==============================
+// 只处理基本类型的纯函数，不分配对象，也不产生任何输出；消息由 BattleSystem 另行渲染
+final class CombatCore {
+    static final int ENEMY_ATTACK = 0;
+    static final int ENEMY_DEFEND = 1;
+    static final int ENEMY_BUFF = 2;
+
+    static final int HEAL_AMOUNT = 20;
+    static final int BUFF_ATTACK = 2;
+    static final int ENEMY_ATTACK_SPREAD = 5;
+
+    private CombatCore() {}
+
+    // 防御方每 5 点防御抵消 1 点伤害，至少造成 1 点，返回受伤后的 HP
+    static int applyDamage(int hp, int damage, int defense) {
+        int actualDamage = Math.max(1, damage - defense / 5);
+        return Math.max(0, hp - actualDamage);
+    }
+
+    static int heal(int hp, int maxHp, int amount) {
+        return Math.min(maxHp, hp + amount);
+    }
+
+    // 防御状态下伤害减半
+    static int defended(int damage, boolean defending) {
+        return defending ? damage >> 1 : damage;
+    }
+
+    static int skillDamage(int skillDamage, int attack, boolean targetDefending) {
+        return defended(skillDamage + attack / 2, targetDefending);
+    }
+
+    static int enemyAttack(int attack, SplittableRandom random) {
+        return attack + random.nextInt(ENEMY_ATTACK_SPREAD);
+    }
+
+    static int rollEnemyAction(SplittableRandom random) {
+        return random.nextInt(3);
+    }
+}
+
+// 基准测试用的整场战斗循环：玩家普通攻击，敌人随机行动，所有状态保存在局部变量中
+final class CombatRoundLoop {
+    private CombatRoundLoop() {}
+
+    static long run(SplittableRandom random, int rounds) {
+        int playerHp = 100, playerDefense = 5, playerAttack = 10;
+        int enemyHp = 60, enemyMaxHp = 60, enemyDefense = 5, enemyAttack = 12;
+        boolean enemyDefending = false;
+        long checksum = 0;
+
+        for (int i = 0; i < rounds; i++) {
+            int damage = CombatCore.skillDamage(SkillRegistry.BASIC_ATTACK.getDamage(), playerAttack, enemyDefending);
+            enemyHp = CombatCore.applyDamage(enemyHp, damage, enemyDefense);
+            // 与 BattleSystem 一致：敌人的防御只抵挡玩家的下一次出手
+            enemyDefending = false;
+            if (enemyHp == 0) {
+                checksum += playerHp;
+                enemyHp = enemyMaxHp;
+                enemyAttack = 12;
+                playerHp = 100;
+                continue;
+            }
+
+            switch (CombatCore.rollEnemyAction(random)) {
+                case CombatCore.ENEMY_ATTACK:
+                    playerHp = CombatCore.applyDamage(playerHp,
+                            CombatCore.enemyAttack(enemyAttack, random), playerDefense);
+                    if (playerHp == 0) playerHp = 50;
+                    break;
+                case CombatCore.ENEMY_DEFEND:
+                    enemyDefending = true;
+                    break;
+                default:
+                    enemyAttack += CombatCore.BUFF_ATTACK;
+            }
+        }
+        return checksum + playerHp + enemyHp;
+    }
+}
+
+// ==============================
+// 27. 战斗模拟器
+// ==============================
+// 代替 Scanner 输入的脚本化玩家策略，返回技能编号，-1 表示防御
+enum PlayerPolicy {
+    ATTACK_ONLY("只用普通攻击") {
+        @Override
+        int choose(int hp, int maxHp, int mp) {
+            return 0;
+        }
+    },
+    HEAVY_STRIKE("有MP就重击") {
+        @Override
+        int choose(int hp, int maxHp, int mp) {
+            return mp >= SkillRegistry.HEAVY_STRIKE.getMpCost() ? 1 : 0;
+        }
+    },
+    HEAL_WHEN_LOW("低血量治疗") {
+        @Override
+        int choose(int hp, int maxHp, int mp) {
+            if (hp * 10 < maxHp * 4 && mp >= SkillRegistry.HEAL.getMpCost()) {
+                return 2;
+            }
+            // 保留一次治疗所需的MP
+            return mp >= SkillRegistry.HEAVY_STRIKE.getMpCost() + SkillRegistry.HEAL.getMpCost() ? 1 : 0;
+        }
+    },
+    DEFEND_WHEN_LOW("低血量防御") {
+        @Override
+        int choose(int hp, int maxHp, int mp) {
+            return hp * 10 < maxHp * 3 ? -1 : 0;
+        }
+    };
+
+    private final String label;
+
+    PlayerPolicy(String label) {
+        this.label = label;
+    }
+
+    public String getLabel() { return label; }
+
+    abstract int choose(int hp, int maxHp, int mp);
+}
+
+// 一批战斗的统计结果，各线程各自累计，最后合并
+class SimulationStats {
+    static final int MAX_TURNS = 200;
+    static final int HP_BUCKETS = 10;
+
+    final long[] turns = new long[MAX_TURNS + 1];
+    final long[] hpRemaining = new long[HP_BUCKETS + 1];
+    long fights;
+    long wins;
+    long totalTurns;
+    long totalHpPercent;
+
+    void record(boolean won, int turnCount, int hp, int maxHp) {
+        fights++;
+        totalTurns += turnCount;
+        turns[Math.min(turnCount, MAX_TURNS)]++;
+        if (won) {
+            wins++;
+            int percent = hp * 100 / maxHp;
+            totalHpPercent += percent;
+            hpRemaining[percent * HP_BUCKETS / 100]++;
+        }
+    }
+
+    SimulationStats merge(SimulationStats other) {
+        fights += other.fights;
+        wins += other.wins;
+        totalTurns += other.totalTurns;
+        totalHpPercent += other.totalHpPercent;
+        for (int i = 0; i < turns.length; i++) turns[i] += other.turns[i];
+        for (int i = 0; i < hpRemaining.length; i++) hpRemaining[i] += other.hpRemaining[i];
+        return this;
+    }
+
+    double winRate() { return fights == 0 ? 0 : (double) wins / fights; }
+    double averageTurns() { return fights == 0 ? 0 : (double) totalTurns / fights; }
+    double averageHpPercent() { return wins == 0 ? 0 : (double) totalHpPercent / wins; }
+
+    int turnsPercentile(double p) {
+        long target = Math.max(1, (long) Math.ceil(p * fights));
+        long seen = 0;
+        for (int i = 0; i < turns.length; i++) {
+            seen += turns[i];
+            if (seen >= target) return i;
+        }
+        return MAX_TURNS;
+    }
+}
+
+// 按 BattleSystem 的规则无界面地模拟整场战斗，ForkJoin 按块拆分任务
+// 每块使用由块编号决定的独立随机流，结果与线程数和调度顺序无关
+class CombatSimulator {
+    static final int DEFAULT_FIGHTS = 1_000_000;
+    private static final int CHUNK = 10_000;
+
+    private final int playerMaxHp, playerMp, playerAttack, playerDefense;
+    private final int enemyMaxHp, enemyAttack, enemyDefense;
+    private final AiProfile profile;
+    private final Skill[] skills;
+
+    public CombatSimulator(Player player, Enemy enemy) {
+        this.playerMaxHp = player.getMaxHp();
+        this.playerMp = player.getMp();
+        this.playerAttack = player.getAttack();
+        this.playerDefense = player.getDefense();
+        this.enemyMaxHp = enemy.getMaxHp();
+        this.enemyAttack = enemy.getAttack();
+        this.enemyDefense = enemy.getDefense();
+        this.profile = enemy.getProfile();
+        this.skills = player.getSkills().toArray(new Skill[0]);
+    }
+
+    public SimulationStats run(int fights, PlayerPolicy policy, ForkJoinPool pool) {
+        int chunks = (fights + CHUNK - 1) / CHUNK;
+        return pool.invoke(new Batch(policy, 0, chunks, fights));
+    }
+
+    // 只在 ForkJoin 池里运行，从不序列化
+    @SuppressWarnings("serial")
+    private final class Batch extends RecursiveTask<SimulationStats> {
+        private final PlayerPolicy policy;
+        private final int fromChunk, toChunk, totalFights;
+
+        Batch(PlayerPolicy policy, int fromChunk, int toChunk, int totalFights) {
+            this.policy = policy;
+            this.fromChunk = fromChunk;
+            this.toChunk = toChunk;
+            this.totalFights = totalFights;
+        }
+
+        @Override
+        protected SimulationStats compute() {
+            if (toChunk - fromChunk == 1) {
+                SimulationStats stats = new SimulationStats();
+                SplittableRandom random = GameRandom.forStream(fromChunk);
+                int count = Math.min(CHUNK, totalFights - fromChunk * CHUNK);
+                for (int i = 0; i < count; i++) {
+                    fight(policy, random, stats);
+                }
+                return stats;
+            }
+            int mid = (fromChunk + toChunk) >>> 1;
+            Batch right = new Batch(policy, mid, toChunk, totalFights);
+            right.fork();
+            SimulationStats left = new Batch(policy, fromChunk, mid, totalFights).compute();
+            return left.merge(right.join());
+        }
+    }
+
+    private void fight(PlayerPolicy policy, SplittableRandom random, SimulationStats stats) {
+        int hp = playerMaxHp, mp = playerMp;
+        int enemyHp = enemyMaxHp, attack = enemyAttack;
+        boolean playerDefending = false, enemyDefending = false;
+        int turn = 0;
+
+        while (turn < SimulationStats.MAX_TURNS) {
+            turn++;
+
+            // 敌人先公布意图
+            int intention = EnemyAi.decide(profile, enemyHp, enemyMaxHp, attack, enemyDefense, enemyDefending,
+                    hp, playerMaxHp, playerAttack, playerDefense, random.nextLong());
+
+            // 玩家回合
+            int choice = policy.choose(hp, playerMaxHp, mp);
+            if (choice < 0) {
+                playerDefending = true;
+            } else if (choice < skills.length && mp >= skills[choice].getMpCost()) {
+                Skill skill = skills[choice];
+                mp -= skill.getMpCost();
+                if (skill == SkillRegistry.HEAL) {
+                    hp = CombatCore.heal(hp, playerMaxHp, CombatCore.HEAL_AMOUNT);
+                } else {
+                    int damage = CombatCore.skillDamage(skill.getDamage(), playerAttack, enemyDefending);
+                    enemyHp = CombatCore.applyDamage(enemyHp, damage, enemyDefense);
+                }
+            }
+            enemyDefending = false;
+            if (enemyHp == 0) break;
+
+            // 敌人回合
+            switch (intention) {
+                case CombatCore.ENEMY_ATTACK:
+                    int damage = CombatCore.defended(CombatCore.enemyAttack(attack, random), playerDefending);
+                    hp = CombatCore.applyDamage(hp, damage, playerDefense);
+                    break;
+                case CombatCore.ENEMY_DEFEND:
+                    enemyDefending = true;
+                    break;
+                default:
+                    attack += CombatCore.BUFF_ATTACK;
+            }
+            playerDefending = false;
+            if (hp == 0) break;
+        }
+        stats.record(enemyHp == 0, turn, hp, playerMaxHp);
+    }
+
+    // 对世界中的每种敌人逐一运行所有策略
+    public static void runForWorld(GameWorld world, int fights, String enemyName) {
+        Map<String, Enemy> enemies = new LinkedHashMap<>();
+        for (Room room : world.getRooms()) {
+            for (Enemy enemy : room.getEnemies()) {
+                if (enemyName == null || enemy.getName().equals(enemyName)) {
+                    enemies.putIfAbsent(enemy.getName(), enemy);
+                }
+            }
+        }
+        if (enemies.isEmpty()) {
+            System.out.println("没有找到可模拟的敌人");
+            return;
+        }
+
+        Player player = new Player("模拟玩家");
+        ForkJoinPool pool = ForkJoinPool.commonPool();
+        System.out.printf("每组 %,d 场，并行度 %d，随机种子 %d%n", fights, pool.getParallelism(), GameRandom.getSeed());
+        System.out.printf("%-8s %-10s %7s %7s %5s %5s %8s %10s%n",
+                "敌人", "策略", "胜率", "平均回合", "P50", "P90", "剩余HP%", "场/秒");
+
+        for (Enemy enemy : enemies.values()) {
+            CombatSimulator simulator = new CombatSimulator(player, enemy);
+            System.out.println(enemy.getName() + " Lv." + enemy.getLevel()
+                    + " [" + enemy.getProfile().getLabel() + "]"
+                    + " (经验 " + enemy.getExperienceReward() + ", 金币 " + enemy.getGoldReward() + ")");
+            for (PlayerPolicy policy : PlayerPolicy.values()) {
+                long start = System.nanoTime();
+                SimulationStats stats = simulator.run(fights, policy, pool);
+                double seconds = (System.nanoTime() - start) / 1e9;
+                System.out.printf("%-8s %-10s %6.1f%% %7.1f %5d %5d %7.1f%% %,10.0f%n",
+                        "", policy.getLabel(), stats.winRate() * 100, stats.averageTurns(),
+                        stats.turnsPercentile(0.5), stats.turnsPercentile(0.9),
+                        stats.averageHpPercent(), fights / seconds);
+                if (enemyName != null) {
+                    printHistograms(stats);
+                }
+            }
+        }
+    }
+
+    private static void printHistograms(SimulationStats stats) {
+        System.out.println("    战斗回合分布:");
+        int last = SimulationStats.MAX_TURNS;
+        while (last > 0 && stats.turns[last] == 0) last--;
+        for (int i = 1; i <= last; i++) {
+            printBar("    " + String.format("%3d", i), stats.turns[i], stats.fights);
+        }
+        System.out.println("    胜利时剩余HP分布:");
+        for (int i = 0; i <= SimulationStats.HP_BUCKETS; i++) {
+            printBar("    " + String.format("%3d%%", i * 100 / SimulationStats.HP_BUCKETS), stats.hpRemaining[i], stats.wins);
+        }
+    }
+
+    private static void printBar(String label, long count, long total) {
+        if (count == 0 || total == 0) return;
+        int width = (int) (count * 50 / total);
+        System.out.printf("%s %-50s %6.2f%%%n", label, "#".repeat(width), count * 100.0 / total);
+    }
+}
+
+// ==============================
+// 28. 命令分发
+// ==============================
+interface Command<C> {
+    void execute(C context, String arg);
+}
+
+// 控制台和网络会话都能提供的命令上下文
+interface CommandContext {
+    Player getPlayer();
+    Room getCurrentRoom();
+    GameOutput getOutput();
+    GameWorld getWorld();
+
+    // 沿出口走一步，不输出任何内容；没有这个出口时返回 false
+    boolean step(String direction);
+
+    // 告诉同一房间里的其他玩家；单人控制台没有旁观者
+    default void announce(String text) {}
+}
+
+// 动词到处理器的哈希表，一个处理器可以注册多个别名（如 "go" 和 "2"）
+class CommandRegistry<C> {
+    // 一行内用分号分隔多条命令，一次发送即可依次执行
+    public static final char SEPARATOR = ';';
+
+    private static final LongAdder DISPATCHED = Metrics.counter("command.dispatched");
+    private static final LongAdder UNKNOWN = Metrics.counter("command.unknown");
+    private static final ConcurrentHistogram DISPATCH_NANOS = Metrics.histogram("command.nanos");
+
+    private final Map<String, Command<? super C>> commands = new HashMap<>();
+    private Command<? super C> fallback = (context, line) -> {};
+
+    public CommandRegistry<C> register(Command<? super C> command, String... names) {
+        for (String name : names) {
+            if (commands.putIfAbsent(name, command) != null) {
+                throw new IllegalArgumentException("命令重复注册: " + name);
+            }
+        }
+        return this;
+    }
+
+    // 未注册的动词交给 fallback，参数为整条命令
+    public CommandRegistry<C> fallback(Command<? super C> command) {
+        this.fallback = command;
+        return this;
+    }
+
+    public boolean contains(String verb) {
+        return commands.containsKey(verb.toLowerCase(Locale.ROOT));
+    }
+
+    // 执行一条命令：第一个空格前是动词，其余是参数
+    public void dispatch(C context, String command) {
+        String line = command.trim();
+        if (line.isEmpty()) {
+            return;
+        }
+        long start = System.nanoTime();
+        int space = line.indexOf(' ');
+        String verb = (space < 0 ? line : line.substring(0, space)).toLowerCase(Locale.ROOT);
+        Command<? super C> handler = commands.get(verb);
+        if (handler == null) {
+            UNKNOWN.increment();
+            fallback.execute(context, line);
+        } else {
+            handler.execute(context, space < 0 ? "" : line.substring(space + 1).trim());
+        }
+        DISPATCHED.increment();
+        DISPATCH_NANOS.record(System.nanoTime() - start);
+    }
+
+    // 拆出一行中的各条命令，丢弃空段
+    public static List<String> split(String line) {
+        List<String> commands = new ArrayList<>();
+        int start = 0;
+        for (int i = 0; i <= line.length(); i++) {
+            if (i == line.length() || line.charAt(i) == SEPARATOR) {
+                String command = line.substring(start, i).trim();
+                if (!command.isEmpty()) {
+                    commands.add(command);
+                }
+                start = i + 1;
+            }
+        }
+        return commands;
+    }
+}
+
+// 控制台与网络会话行为一致的单行命令
+final class CommonCommands {
+    private CommonCommands() {}
+
+    static <C extends CommandContext> CommandRegistry<C> register(CommandRegistry<C> registry) {
+        return registry
+                .register((context, arg) -> context.getCurrentRoom().displayInfo(context.getPlayer(), context.getOutput()), "look")
+                .register((context, arg) -> context.getPlayer().displayStatus(context.getOutput()), "status", "3")
+                .register((context, arg) -> context.getPlayer().showInventory(context.getOutput()), "inv", "4")
+                .register(CommonCommands::take, "take")
+                .register(CommonCommands::shop, "shop")
+                .register(CommonCommands::buy, "buy")
+                .register(CommonCommands::use, "use")
+                .register(CommonCommands::travel, "travel");
+    }
+
+    // travel <房间名>：按最短路线一次走到目的地
+    static void travel(CommandContext context, String destination) {
+        GameOutput out = context.getOutput();
+        if (destination.isEmpty()) {
+            out.println("用法: travel <房间名>");
+            return;
+        }
+        List<String> route = context.getWorld().getRoutes().route(context.getCurrentRoom().getName(), destination);
+        if (route == null) {
+            out.println("找不到去 " + destination + " 的路");
+            return;
+        }
+        if (route.isEmpty()) {
+            out.println("你已经在 " + destination + " 了");
+            return;
+        }
+        for (String direction : route) {
+            if (!context.step(direction)) {
+                out.println("路线在 " + context.getCurrentRoom().getName() + " 中断了");
+                return;
+            }
+        }
+        out.println("路线: " + String.join(" → ", route) + " (" + route.size() + " 步)");
+        out.println("到达了: " + context.getCurrentRoom().getName());
+    }
+
+    static void take(CommandContext context, String itemName) {
+        GameOutput out = context.getOutput();
+        if (itemName.isEmpty()) {
+            out.println("用法: take <物品>");
+            return;
+        }
+        Item item = context.getCurrentRoom().takeItem(itemName);
+        if (item != null) {
+            context.getPlayer().addItem(item);
+            out.println("拾取了: " + item.getName());
+            context.announce("📦 " + context.getPlayer().getName() + " 拾取了 " + item.getName());
+        } else {
+            out.println("这里没有 " + itemName);
+        }
+    }
+
+    static void shop(CommandContext context, String npcName) {
+        NPC merchant = context.getCurrentRoom().findShop(npcName);
+        if (merchant == null) {
+            context.getOutput().println("这里没有商店");
+            return;
+        }
+        merchant.showShop(context.getPlayer(), context.getOutput());
+    }
+
+    // buy <编号> [NPC名]，省略 NPC 时向房间里第一个商人购买
+    static void buy(CommandContext context, String arg) {
+        GameOutput out = context.getOutput();
+        String[] parts = arg.split("\\s+", 2);
+        int index;
+        try {
+            index = Integer.parseInt(parts[0]);
+        } catch (NumberFormatException e) {
+            out.println("用法: buy <编号> [NPC]");
+            return;
+        }
+        NPC merchant = context.getCurrentRoom().findShop(parts.length > 1 ? parts[1] : "");
+        if (merchant == null) {
+            out.println("这里没有商店");
+            return;
+        }
+        merchant.sell(context.getPlayer(), index, out);
+    }
+
+    static void use(CommandContext context, String arg) {
+        try {
+            context.getPlayer().useItem(Integer.parseInt(arg), context.getOutput());
+        } catch (NumberFormatException e) {
+            context.getOutput().println("用法: use <物品编号>");
+        }
+    }
+}
+
+// ==============================
+// 29. 房间内容索引
+// ==============================
+interface Named {
+    String getName();
+}
+
+// 房间里的物品/NPC/敌人：按放入顺序遍历，按名称或编号 O(1) 查找和移除。
+// 编号在房间内单调递增、不重复使用，对象离开房间后编号即失效
+class RoomContents<T extends Named> implements Iterable<T>, Serializable {
+    private static final long serialVersionUID = 1L;
+
+    private final LinkedHashMap<Integer, T> byId = new LinkedHashMap<>();
+    // 同名对象的编号，按放入顺序排列；桶清空后保留，刷怪房间里同名敌人反复进出时不用重建
+    private final Map<String, LinkedHashSet<Integer>> byName = new HashMap<>();
+    private final IdentityHashMap<T, Integer> ids = new IdentityHashMap<>();
+    private int nextId;
+
+    public int add(T value) {
+        if (ids.containsKey(value)) {
+            throw new IllegalArgumentException(value.getName() + " 已经在房间里");
+        }
+        // 只装箱一次，三处索引共用同一个 Integer
+        Integer id = nextId++;
+        byId.put(id, value);
+        ids.put(value, id);
+        byName.computeIfAbsent(value.getName(), name -> new LinkedHashSet<>()).add(id);
+        return id;
+    }
+
+    public T get(int id) {
+        return byId.get(id);
+    }
+
+    // 不在房间中时返回 -1
+    public int idOf(T value) {
+        Integer id = ids.get(value);
+        return id == null ? -1 : id;
+    }
+
+    // 同名对象中最早放入的一个
+    public T find(String name) {
+        LinkedHashSet<Integer> bucket = byName.get(name);
+        return bucket == null || bucket.isEmpty() ? null : byId.get(bucket.iterator().next());
+    }
+
+    public T first() {
+        return byId.isEmpty() ? null : byId.values().iterator().next();
+    }
+
+    public int count(String name) {
+        LinkedHashSet<Integer> bucket = byName.get(name);
+        return bucket == null ? 0 : bucket.size();
+    }
+
+    public T take(String name) {
+        T value = find(name);
+        if (value != null) {
+            remove(value);
+        }
+        return value;
+    }
+
+    public boolean remove(T value) {
+        Integer id = ids.remove(value);
+        if (id == null) {
+            return false;
+        }
+        byId.remove(id);
+        unindex(value.getName(), id);
+        return true;
+    }
+
+    public T removeById(int id) {
+        T value = byId.remove(id);
+        if (value != null) {
+            unindex(value.getName(), ids.remove(value));
+        }
+        return value;
+    }
+
+    private void unindex(String name, Integer id) {
+        byName.get(name).remove(id);
+    }
+
+    public void clear() {
+        byId.clear();
+        byName.clear();
+        ids.clear();
+    }
+
+    public int size() { return byId.size(); }
+    public boolean isEmpty() { return byId.isEmpty(); }
+
+    // 只读视图，按放入顺序
+    public Collection<T> values() {
+        return Collections.unmodifiableCollection(byId.values());
+    }
+
+    @Override
+    public Iterator<T> iterator() {
+        return values().iterator();
+    }
+}
+
+// ==============================
+// 30. 路线索引
+// ==============================
+// 房间出口图的紧凑表示 + 双向 ALT 最短路查询（A* + 地标 + 三角不等式）。
+// 构建时选出若干地标，预先 BFS 出每个房间与各地标之间的步数；
+// 查询时由这些步数给出上下界，正反两个方向各自只展开最短路附近的少量房间
+final class RouteIndex {
+    public static final int DEFAULT_LANDMARKS = 8;
+    private static final int UNKNOWN = -1;
+
+    private final String[] names;
+    private final Map<String, Integer> ids;
+    // 房间 i 的出口是边 offsets[i] .. offsets[i + 1] - 1，边 e 通往 targets[e]，方向为 directions[e]
+    private final int[] offsets;
+    private final int[] targets;
+    private final String[] directions;
+    // 反向图：房间 i 的入边是 reverseEdges[reverseOffsets[i] ..]，来自 sources[...]
+    private final int[] reverseOffsets;
+    private final int[] reverseEdges;
+    private final int[] sources;
+    private int landmarkCount;
+    // 每个房间占连续 2k 个位置：[2l] = 地标 l 到本房间的步数，[2l + 1] = 本房间到地标 l 的步数
+    private int[] landmarkDistances;
+    private final ThreadLocal<Search> searches = ThreadLocal.withInitial(Search::new);
+
+    private RouteIndex(String[] names, Map<String, Integer> ids, int[] offsets, int[] targets,
+                       String[] directions, int landmarkCount) {
+        this.names = names;
+        this.ids = ids;
+        this.offsets = offsets;
+        this.targets = targets;
+        this.directions = directions;
+        this.landmarkCount = landmarkCount;
+
+        int n = names.length;
+        reverseOffsets = new int[n + 1];
+        reverseEdges = new int[targets.length];
+        sources = new int[targets.length];
+        for (int target : targets) {
+            reverseOffsets[target + 1]++;
+        }
+        for (int i = 0; i < n; i++) {
+            reverseOffsets[i + 1] += reverseOffsets[i];
+        }
+        int[] fill = Arrays.copyOf(reverseOffsets, n);
+        for (int v = 0; v < n; v++) {
+            for (int e = offsets[v]; e < offsets[v + 1]; e++) {
+                int slot = fill[targets[e]]++;
+                reverseEdges[slot] = e;
+                sources[slot] = v;
+            }
+        }
+
+        landmarkDistances = new int[n * landmarkCount * 2];
+        selectLandmarks();
+    }
+
+    public int getLandmarkCount() { return landmarkCount; }
+
+    // 出口指向、但不在集合里的房间也会成为节点，只是没有出边
+    public static RouteIndex build(Collection<Room> rooms, int landmarkCount) {
+        Map<String, Integer> ids = new HashMap<>(rooms.size() * 2);
+        List<String> names = new ArrayList<>(rooms.size());
+        List<Map<String, String>> exits = new ArrayList<>(rooms.size());
+        int edgeCount = 0;
+        for (Room room : rooms) {
+            ids.put(room.getName(), names.size());
+            names.add(room.getName());
+            Map<String, String> roomExits = room.getExitNames();
+            exits.add(roomExits);
+            edgeCount += roomExits.size();
+        }
+        for (Map<String, String> roomExits : exits) {
+            for (String target : roomExits.values()) {
+                if (ids.putIfAbsent(target, names.size()) == null) {
+                    names.add(target);
+                }
+            }
+        }
+
+        int[] offsets = new int[names.size() + 1];
+        int[] targets = new int[edgeCount];
+        String[] directions = new String[edgeCount];
+        int edge = 0;
+        for (int i = 0; i < names.size(); i++) {
+            offsets[i] = edge;
+            if (i < exits.size()) {
+                for (Map.Entry<String, String> exit : exits.get(i).entrySet()) {
+                    targets[edge] = ids.get(exit.getValue());
+                    directions[edge] = exit.getKey();
+                    edge++;
+                }
+            }
+        }
+        offsets[names.size()] = edge;
+
+        return fromGraph(names.toArray(new String[0]), ids, offsets, targets, directions, landmarkCount);
+    }
+
+    // 已是紧凑表示的出口图，如懒加载索引从世界文件里读出的整张图
+    static RouteIndex fromGraph(String[] names, Map<String, Integer> ids, int[] offsets, int[] targets,
+                                String[] directions, int landmarkCount) {
+        return new RouteIndex(names, ids, offsets, targets, directions, Math.min(landmarkCount, names.length));
+    }
+
+    public int size() { return names.length; }
+
+    // 返回从 from 到 to 依次要走的方向；已在目的地返回空列表，不可达或房间未知返回 null
+    public List<String> route(String from, String to) {
+        Integer source = ids.get(from);
+        Integer target = ids.get(to);
+        if (source == null || target == null) {
+            return null;
+        }
+        return searches.get().run(source, target);
+    }
+
+    // 最远点选取：每个新地标取离已选地标最远（或尚不可达）的房间，使地标分布在世界边缘
+    private void selectLandmarks() {
+        int n = names.length;
+        if (landmarkCount == 0) {
+            return;
+        }
+        int[] nearest = new int[n];
+        Arrays.fill(nearest, Integer.MAX_VALUE);
+        int[] distances = new int[n];
+        int[] queue = new int[n];
+        bfs(0, offsets, targets, distances, queue);
+        int landmark = farthest(distances, nearest);
+        for (int l = 0; l < landmarkCount; l++) {
+            bfs(landmark, offsets, targets, distances, queue);
+            for (int v = 0; v < n; v++) {
+                landmarkDistances[(v * landmarkCount + l) * 2] = distances[v];
+                if (distances[v] != UNKNOWN && distances[v] < nearest[v]) {
+                    nearest[v] = distances[v];
+                }
+            }
+            bfs(landmark, reverseOffsets, sources, distances, queue);
+            for (int v = 0; v < n; v++) {
+                landmarkDistances[(v * landmarkCount + l) * 2 + 1] = distances[v];
+            }
+            landmark = farthest(nearest, nearest);
+        }
+
+        // 房间间平均步数只有 log 级别的"小世界"图里，双向 BFS 的搜索范围本来就很小，
+        // 地标给出的下界又很弱，反而拖慢查询，这时不用地标
+        long total = 0;
+        long reached = 0;
+        for (int i = 0; i < landmarkDistances.length; i += 2) {
+            if (landmarkDistances[i] != UNKNOWN) {
+                total += landmarkDistances[i];
+                reached++;
+            }
+        }
+        double log2 = Math.log(n) / Math.log(2);
+        if (reached == 0 || (double) total / reached < 2 * log2) {
+            landmarkCount = 0;
+            landmarkDistances = new int[0];
+        }
+    }
+
+    private static int farthest(int[] distances, int[] nearest) {
+        int best = 0;
+        long bestValue = -1;
+        for (int v = 0; v < distances.length; v++) {
+            // 已经是地标的房间 nearest 为 0，不会被再次选中
+            long value = distances[v] == UNKNOWN ? Integer.MAX_VALUE : Math.min(distances[v], nearest[v]);
+            if (value > bestValue) {
+                bestValue = value;
+                best = v;
+            }
+        }
+        return best;
+    }
+
+    private static void bfs(int source, int[] offsets, int[] targets, int[] distances, int[] queue) {
+        Arrays.fill(distances, UNKNOWN);
+        distances[source] = 0;
+        queue[0] = source;
+        int head = 0;
+        int tail = 1;
+        while (head < tail) {
+            int v = queue[head++];
+            for (int e = offsets[v]; e < offsets[v + 1]; e++) {
+                int w = targets[e];
+                if (distances[w] == UNKNOWN) {
+                    distances[w] = distances[v] + 1;
+                    queue[tail++] = w;
+                }
+            }
+        }
+    }
+
+    // 每个线程复用一套搜索数组，用代数标记代替每次清零。
+    // 两个方向共用平均势函数 p(v) = (到终点的下界 - 离起点的下界) / 2，
+    // 为避免小数，所有键值都取两倍：正向键 2g + P(v)，反向键 2g - P(v)
+    private final class Search {
+        private final int[] potential = new int[names.length];
+        private final int[] potentialStamp = new int[names.length];
+        private final Frontier forward = new Frontier();
+        private final Frontier backward = new Frontier();
+        private int generation;
+        private int source;
+        private int target;
+
+        List<String> run(int source, int target) {
+            if (source == target) {
+                return new ArrayList<>();
+            }
+            this.source = source;
+            this.target = target;
+            if (++generation == 0) {
+                Arrays.fill(potentialStamp, 0);
+                forward.reset();
+                backward.reset();
+                generation = 1;
+            }
+            forward.clear();
+            backward.clear();
+
+            if (potential(source) == Integer.MIN_VALUE || potential(target) == Integer.MIN_VALUE) {
+                return null;
+            }
+            forward.start(source, potential(source));
+            backward.start(target, -potential(target));
+
+            int best = Integer.MAX_VALUE;
+            int meetEdge = -1;
+            int meetFrom = -1;
+            while (!forward.isEmpty() && !backward.isEmpty()) {
+                if (best != Integer.MAX_VALUE && forward.minKey() + backward.minKey() >= 2 * best) {
+                    break;
+                }
+                boolean ahead = forward.size() <= backward.size();
+                Frontier frontier = ahead ? forward : backward;
+                Frontier other = ahead ? backward : forward;
+                int v = frontier.pop();
+                int next = frontier.g[v] + 1;
+                int[] edgeOffsets = ahead ? offsets : reverseOffsets;
+                for (int i = edgeOffsets[v]; i < edgeOffsets[v + 1]; i++) {
+                    int e = ahead ? i : reverseEdges[i];
+                    int w = ahead ? targets[i] : sources[i];
+                    int p = potential(w);
+                    if (p == Integer.MIN_VALUE) {
+                        // 由地标可知 w 不在任何起点到终点的路径上
+                        continue;
+                    }
+                    if (frontier.relax(w, next, ahead ? p : -p, v, e) && other.reached(w)) {
+                        int length = next + other.g[w];
+                        if (length < best) {
+                            best = length;
+                            meetEdge = e;
+                            meetFrom = ahead ? v : w;
+                        }
+                    }
+                }
+            }
+            return meetEdge < 0 ? null : path(meetFrom, meetEdge);
+        }
+
+        // 两倍的平均势函数；能证明起点到不了 v 或 v 到不了终点时返回 MIN_VALUE
+        private int potential(int v) {
+            if (landmarkCount == 0) {
+                return 0;
+            }
+            if (potentialStamp[v] == generation) {
+                return potential[v];
+            }
+            int toTarget = 0;
+            int fromSource = 0;
+            int vi = v * landmarkCount * 2;
+            int si = source * landmarkCount * 2;
+            int ti = target * landmarkCount * 2;
+            int result;
+            compute:
+            {
+                for (int l = 0; l < landmarkCount * 2; l += 2) {
+                    int lv = landmarkDistances[vi + l];
+                    int vl = landmarkDistances[vi + l + 1];
+                    int lt = landmarkDistances[ti + l];
+                    int tl = landmarkDistances[ti + l + 1];
+                    int ls = landmarkDistances[si + l];
+                    int sl = landmarkDistances[si + l + 1];
+                    // d(v, t) >= d(L, t) - d(L, v) 且 >= d(v, L) - d(t, L)
+                    if (lv != UNKNOWN) {
+                        if (lt == UNKNOWN) { result = Integer.MIN_VALUE; break compute; }
+                        toTarget = Math.max(toTarget, lt - lv);
+                    }
+                    if (tl != UNKNOWN) {
+                        if (vl == UNKNOWN) { result = Integer.MIN_VALUE; break compute; }
+                        toTarget = Math.max(toTarget, vl - tl);
+                    }
+                    // d(s, v) >= d(L, v) - d(L, s) 且 >= d(s, L) - d(v, L)
+                    if (ls != UNKNOWN) {
+                        if (lv == UNKNOWN) { result = Integer.MIN_VALUE; break compute; }
+                        fromSource = Math.max(fromSource, lv - ls);
+                    }
+                    if (vl != UNKNOWN) {
+                        if (sl == UNKNOWN) { result = Integer.MIN_VALUE; break compute; }
+                        fromSource = Math.max(fromSource, sl - vl);
+                    }
+                }
+                result = toTarget - fromSource;
+            }
+            potentialStamp[v] = generation;
+            potential[v] = result;
+            return result;
+        }
+
+        // 正向从起点走到相遇边的起点，反向从相遇边的终点走到终点
+        private List<String> path(int meetFrom, int meetEdge) {
+            List<String> steps = new ArrayList<>();
+            for (int v = meetFrom; v != source; v = forward.parent[v]) {
+                steps.add(directions[forward.via[v]]);
+            }
+            Collections.reverse(steps);
+            steps.add(directions[meetEdge]);
+            for (int v = targets[meetEdge]; v != target; v = backward.parent[v]) {
+                steps.add(directions[backward.via[v]]);
+            }
+            return steps;
+        }
+
+        // 单个方向的搜索状态：带位置索引的二叉堆，键相同时先展开 g 较大（离本方向起点更远）的房间
+        private final class Frontier {
+            final int[] g = new int[names.length];
+            final int[] parent = new int[names.length];
+            final int[] via = new int[names.length];
+            private final int[] key = new int[names.length];
+            private final int[] stamp = new int[names.length];
+            private final int[] position = new int[names.length];
+            private int[] heap = new int[256];
+            private int size;
+
+            void reset() {
+                Arrays.fill(stamp, 0);
+            }
+
+            void clear() {
+                size = 0;
+            }
+
+            boolean isEmpty() { return size == 0; }
+            int size() { return size; }
+            int minKey() { return key[heap[0]]; }
+
+            boolean reached(int v) {
+                return stamp[v] == generation;
+            }
+
+            void start(int v, int twicePotential) {
+                stamp[v] = generation;
+                g[v] = 0;
+                parent[v] = -1;
+                key[v] = twicePotential;
+                position[v] = -1;
+                insert(v);
+            }
+
+            // 找到更短的路径时更新并返回 true
+            boolean relax(int v, int distance, int twicePotential, int from, int edge) {
+                if (stamp[v] == generation) {
+                    if (distance >= g[v]) {
+                        return false;
+                    }
+                } else {
+                    stamp[v] = generation;
+                    position[v] = -1;
+                }
+                g[v] = distance;
+                parent[v] = from;
+                via[v] = edge;
+                key[v] = 2 * distance + twicePotential;
+                if (position[v] < 0) {
+                    insert(v);
+                } else {
+                    siftUp(position[v], v);
+                }
+                return true;
+            }
+
+            int pop() {
+                int top = heap[0];
+                position[top] = -1;
+                int last = heap[--size];
+                if (size > 0) {
+                    siftDown(0, last);
+                }
+                return top;
+            }
+
+            private void insert(int v) {
+                if (size == heap.length) {
+                    heap = Arrays.copyOf(heap, size * 2);
+                }
+                siftUp(size++, v);
+            }
+
+            private boolean before(int a, int b) {
+                return key[a] < key[b] || (key[a] == key[b] && g[a] > g[b]);
+            }
+
+            private void siftUp(int i, int v) {
+                while (i > 0) {
+                    int parentIndex = (i - 1) >>> 1;
+                    int p = heap[parentIndex];
+                    if (!before(v, p)) break;
+                    heap[i] = p;
+                    position[p] = i;
+                    i = parentIndex;
+                }
+                heap[i] = v;
+                position[v] = i;
+            }
+
+            private void siftDown(int i, int v) {
+                int half = size >>> 1;
+                while (i < half) {
+                    int child = 2 * i + 1;
+                    if (child + 1 < size && before(heap[child + 1], heap[child])) child++;
+                    if (!before(heap[child], v)) break;
+                    heap[i] = heap[child];
+                    position[heap[i]] = i;
+                    i = child;
+                }
+                heap[i] = v;
+                position[v] = i;
+            }
+        }
+    }
+}
+
+// ==============================
+// 31. 世界分区
+// ==============================
+// 按区域把房间划分给若干 WorldTicker，每个分区由自己的单线程独占。
+// 玩家走进其他分区的房间后，会话在 tick 结束时整体移交，不同分区的战斗、拾取和交易互不加锁
+class WorldZones {
+    public static final int DEFAULT_ZONES = Runtime.getRuntime().availableProcessors();
+
+    private final WorldTicker[] zones;
+    // 区域第一次出现时按轮转分配，区域数不多时也能分散到各个线程
+    private final Map<String, WorldTicker> byRegion = new ConcurrentHashMap<>();
+    private final AtomicInteger nextZone = new AtomicInteger();
+
+    public WorldZones(GameServer server, int count, int tickHz) {
+        if (count < 1) {
+            throw new IllegalArgumentException("分区数必须大于 0: " + count);
+        }
+        zones = new WorldTicker[count];
+        for (int i = 0; i < count; i++) {
+            zones[i] = new WorldTicker(server, i, tickHz);
+        }
+    }
+
+    public int size() { return zones.length; }
+    public WorldTicker get(int index) { return zones[index]; }
+
+    public WorldTicker of(Room room) {
+        return byRegion.computeIfAbsent(room.getRegion(),
+                region -> zones[nextZone.getAndIncrement() % zones.length]);
+    }
+
+    // 事件交给房间所属分区，在那个分区的 tick 里和同一房间的其他事件一起投递；
+    // 房间里没人时直接丢弃。actor 是事件的发起者，不会收到自己的事件
+    public void announce(Room room, ClientSession actor, String text) {
+        if (room.hasOccupants()) {
+            of(room).getEvents().publish(new RoomEvent(room, actor, text));
+        }
+    }
+
+    // 相邻房间里的玩家也能听到，如打斗声
+    public void announceNearby(Room room, String text) {
+        for (Room neighbour : room.getNeighbours()) {
+            announce(neighbour, null, text);
+        }
+    }
+
+    public void start() {
+        for (WorldTicker zone : zones) {
+            zone.start();
+        }
+    }
+
+    public void stop() {
+        for (WorldTicker zone : zones) {
+            zone.stop();
+        }
+    }
+}
+
+// ==============================
+// 32. 敌人刷新与对象池
+// ==============================
+// 敌人的基础属性，相同的组合只保留一份，作为刷怪表和对象池的键
+final class EnemyTemplate implements Serializable {
+    private static final long serialVersionUID = 1L;
+    private static final Map<String, EnemyTemplate> byKey = new ConcurrentHashMap<>();
+
+    private final String name;
+    private final int maxHp;
+    private final int maxMp;
+    private final int attack;
+    private final int defense;
+    private final AiProfile profile;
+
+    private EnemyTemplate(String name, int maxHp, int maxMp, int attack, int defense) {
+        this.name = name;
+        this.maxHp = maxHp;
+        this.maxMp = maxMp;
+        this.attack = attack;
+        this.defense = defense;
+        this.profile = AiProfile.forStats(maxHp, attack, defense);
+    }
+
+    public static EnemyTemplate intern(String name, int maxHp, int maxMp, int attack, int defense) {
+        String key = name + '\0' + maxHp + '\0' + maxMp + '\0' + attack + '\0' + defense;
+        EnemyTemplate template = byKey.get(key);
+        if (template != null) {
+            return template;
+        }
+        return byKey.computeIfAbsent(key, k -> new EnemyTemplate(name.intern(), maxHp, maxMp, attack, defense));
+    }
+
+    public String getName() { return name; }
+    public int getMaxHp() { return maxHp; }
+    public int getMaxMp() { return maxMp; }
+    public int getAttack() { return attack; }
+    public int getDefense() { return defense; }
+    public AiProfile getProfile() { return profile; }
+
+    // 反序列化时换回注册表中的共享实例
+    private Object readResolve() {
+        return intern(name, maxHp, maxMp, attack, defense);
+    }
+}
+
+// 被击败的敌人按模板回收，刷新时取出重置再用，怪物不断刷新的世界不再持续分配新对象。
+// 各分区线程共用，每个模板一把锁
+final class EnemyPool {
+    private static final int MAX_IDLE_PER_TEMPLATE = 256;
+    private static final Map<EnemyTemplate, ArrayDeque<Enemy>> idle = new ConcurrentHashMap<>();
+    private static final LongAdder created = new LongAdder();
+    private static final LongAdder reused = new LongAdder();
+
+    private EnemyPool() {}
+
+    public static Enemy acquire(EnemyTemplate template) {
+        ArrayDeque<Enemy> pool = idle.get(template);
+        Enemy enemy = null;
+        if (pool != null) {
+            synchronized (pool) {
+                enemy = pool.poll();
+                if (enemy != null) {
+                    enemy.pooled = false;
+                }
+            }
+        }
+        if (enemy == null) {
+            created.increment();
+            return new Enemy(template);
+        }
+        reused.increment();
+        enemy.reset();
+        return enemy;
+    }
+
+    // 调用方保证敌人已经离开房间和战斗，之后不再持有它
+    public static void release(Enemy enemy) {
+        ArrayDeque<Enemy> pool = idle.computeIfAbsent(enemy.getTemplate(), template -> new ArrayDeque<>());
+        synchronized (pool) {
+            if (!enemy.pooled && pool.size() < MAX_IDLE_PER_TEMPLATE) {
+                enemy.pooled = true;
+                pool.push(enemy);
+            }
+        }
+    }
+
+    public static long getCreated() { return created.sum(); }
+    public static long getReused() { return reused.sum(); }
+}
+
+// 房间的刷怪表：每种敌人应有的数量和刷新间隔。敌人离开房间时记下到期时间，
+// 由房间在被查看时调用 spawnDue 补回，只在所属分区的线程上使用
+class SpawnTable {
+    private static final class Slot {
+        final EnemyTemplate template;
+        final long respawnNanos;
+        int count;
+        // 等待中的到期时间，环形队列，先被击败的先刷新
+        long[] due = new long[2];
+        int head;
+        int size;
+
+        Slot(EnemyTemplate template, long respawnNanos) {
+            this.template = template;
+            this.respawnNanos = respawnNanos;
+        }
+
+        void schedule(long at) {
+            if (size == due.length) {
+                long[] grown = new long[due.length * 2];
+                for (int i = 0; i < size; i++) {
+                    grown[i] = due[(head + i) % due.length];
+                }
+                due = grown;
+                head = 0;
+            }
+            due[(head + size++) % due.length] = at;
+        }
+    }
+
+    private final Map<EnemyTemplate, Slot> slots = new LinkedHashMap<>();
+    private int pending;
+
+    public void add(EnemyTemplate template, long respawnNanos) {
+        slots.computeIfAbsent(template, t -> new Slot(t, respawnNanos)).count++;
+    }
+
+    public boolean hasPending() { return pending > 0; }
+
+    // 不在表中的敌人(例如手动放入房间的)不会刷新
+    public void onRemoved(EnemyTemplate template, long now) {
+        Slot slot = slots.get(template);
+        if (slot != null && slot.size < slot.count) {
+            slot.schedule(now + slot.respawnNanos);
+            pending++;
+        }
+    }
+
+    // 把到期的刷新交给 spawner，返回刷出的数量
+    public int spawnDue(long now, Consumer<EnemyTemplate> spawner) {
+        int spawned = 0;
+        for (Slot slot : slots.values()) {
+            while (slot.size > 0 && slot.due[slot.head] - now <= 0) {
+                slot.head = (slot.head + 1) % slot.due.length;
+                slot.size--;
+                pending--;
+                spawner.accept(slot.template);
+                spawned++;
+            }
+        }
+        return spawned;
+    }
+
+    // 按房间里实际存活的敌人重排刷新，缺的从 now 开始计时
+    public void reconcile(RoomContents<Enemy> alive, long now) {
+        Map<EnemyTemplate, Integer> counts = new HashMap<>();
+        for (Enemy enemy : alive) {
+            counts.merge(enemy.getTemplate(), 1, Integer::sum);
+        }
+        pending = 0;
+        for (Slot slot : slots.values()) {
+            slot.head = 0;
+            slot.size = 0;
+            for (int missing = slot.count - counts.getOrDefault(slot.template, 0); missing > 0; missing--) {
+                slot.schedule(now + slot.respawnNanos);
+                pending++;
+            }
+        }
+    }
+}
+
+// ==============================
+// 33. 敌人 AI
+// ==============================
+// 敌人行为画像：对每个候选行动往后推演几个回合，按进攻/谨慎两项权重给结果打分
+enum AiProfile {
+    BERSERKER("狂暴", 1.0, 0.1, 1),
+    BALANCED("均衡", 1.0, 0.6, 3),
+    CAUTIOUS("谨慎", 0.6, 1.2, 3),
+    TACTICIAN("老练", 1.0, 0.5, 5);
+
+    private final String label;
+    final double aggression;
+    final double caution;
+    // 推演的回合数，只看一回合时防御和强化永远没有收益
+    final int lookahead;
+
+    AiProfile(String label, double aggression, double caution, int lookahead) {
+        this.label = label;
+        this.aggression = aggression;
+        this.caution = caution;
+        this.lookahead = lookahead;
+    }
+
+    public String getLabel() { return label; }
+
+    // 按基础属性推断画像：皮厚的稳扎稳打，血多的愿意先强化，脆而凶的只会猛攻
+    static AiProfile forStats(int maxHp, int attack, int defense) {
+        if (defense >= attack) return CAUTIOUS;
+        if (maxHp >= 100) return TACTICIAN;
+        if (maxHp <= 60 && attack >= 12) return BERSERKER;
+        return BALANCED;
+    }
+}
+
+// 只读参数的纯函数，可以在任意线程上并行调用
+final class EnemyAi {
+    private static final String[] LABELS = {"攻击", "防御", "强化"};
+    // 随机扰动的幅度，只用来打破分数接近时的平局，让敌人不至于完全可预测
+    private static final double JITTER = 0.05;
+
+    private EnemyAi() {}
+
+    static String label(int action) {
+        return LABELS[action];
+    }
+
+    // 决定敌人下回合的行动。推演顺序与 BattleSystem 一致：玩家先以普通攻击出手，
+    // 敌人再执行候选行动，之后的回合敌人一律攻击
+    static int decide(AiProfile profile, int enemyHp, int enemyMaxHp, int enemyAttack, int enemyDefense,
+                      boolean enemyDefending, int playerHp, int playerMaxHp, int playerAttack,
+                      int playerDefense, long noise) {
+        int best = CombatCore.ENEMY_ATTACK;
+        double bestScore = Double.NEGATIVE_INFINITY;
+        for (int action = CombatCore.ENEMY_ATTACK; action <= CombatCore.ENEMY_BUFF; action++) {
+            double score = rollout(profile, action, enemyHp, enemyMaxHp, enemyAttack, enemyDefense,
+                    enemyDefending, playerHp, playerMaxHp, playerAttack, playerDefense)
+                    + JITTER * unit(noise + action * 0x9E3779B97F4A7C15L);
+            if (score > bestScore) {
+                bestScore = score;
+                best = action;
+            }
+        }
+        return best;
+    }
+
+    // 超出预算时的降级决策：不推演，谨慎的敌人残血时防御，其余一律攻击
+    static int quick(AiProfile profile, int enemyHp, int enemyMaxHp) {
+        return profile.caution > profile.aggression && enemyHp * 3 < enemyMaxHp
+                ? CombatCore.ENEMY_DEFEND
+                : CombatCore.ENEMY_ATTACK;
+    }
+
+    private static double rollout(AiProfile profile, int action, int enemyHp, int enemyMaxHp,
+                                  int enemyAttack, int enemyDefense, boolean enemyDefending,
+                                  int playerHp, int playerMaxHp, int playerAttack, int playerDefense) {
+        int playerHit = SkillRegistry.BASIC_ATTACK.getDamage();
+        int eHp = enemyHp;
+        int pHp = playerHp;
+        int attack = enemyAttack;
+        boolean defending = enemyDefending;
+        for (int turn = 0; turn < profile.lookahead; turn++) {
+            eHp = CombatCore.applyDamage(eHp, CombatCore.skillDamage(playerHit, playerAttack, defending), enemyDefense);
+            defending = false;
+            if (eHp == 0) break;
+
+            switch (turn == 0 ? action : CombatCore.ENEMY_ATTACK) {
+                case CombatCore.ENEMY_ATTACK:
+                    pHp = CombatCore.applyDamage(pHp, attack + CombatCore.ENEMY_ATTACK_SPREAD / 2, playerDefense);
+                    break;
+                case CombatCore.ENEMY_DEFEND:
+                    defending = true;
+                    break;
+                default:
+                    attack += CombatCore.BUFF_ATTACK;
+            }
+            if (pHp == 0) break;
+        }
+
+        double score = profile.aggression * (playerHp - pHp) / playerMaxHp
+                - profile.caution * (enemyHp - eHp) / enemyMaxHp;
+        if (pHp == 0) score += profile.aggression;
+        if (eHp == 0) score -= profile.caution;
+        return score;
+    }
+
+    // [0, 1) 的均匀值，SplitMix64 的混合函数
+    private static double unit(long seed) {
+        long z = seed;
+        z = (z ^ (z >>> 30)) * 0xBF58476D1CE4E5B9L;
+        z = (z ^ (z >>> 27)) * 0x94D049BB133111EBL;
+        z ^= z >>> 31;
+        return (z >>> 11) * 0x1.0p-53;
+    }
+}
+
+// 一批待决策的战斗快照。tick 线程填入输入，工作线程只读输入、只写自己负责的区间，
+// 战斗对象本身不离开 tick 线程
+final class AiBatch {
+    private static final int FIELDS = 9;
+
+    private final int size;
+    private final AiProfile[] profiles;
+    private final int[] inputs;
+    private final long[] noise;
+    private final int[] actions;
+    private final long[] nanos;
+    // 只由 tick 线程读写：对应区间的工作线程已按时完成
+    private final boolean[] decided;
+
+    public AiBatch(int size) {
+        this.size = size;
+        this.profiles = new AiProfile[size];
+        this.inputs = new int[size * FIELDS];
+        this.noise = new long[size];
+        this.actions = new int[size];
+        this.nanos = new long[size];
+        this.decided = new boolean[size];
+    }
+
+    public int size() { return size; }
+
+    void load(int i, BattleSystem battle) {
+        Enemy enemy = battle.getEnemy();
+        Player player = battle.getPlayer();
+        set(i, enemy.getProfile(), enemy.getHp(), enemy.getMaxHp(), enemy.getAttack(), enemy.getDefense(),
+                battle.isEnemyDefending(), player.getHp(), player.getMaxHp(), player.getAttack(),
+                player.getDefense(), battle.drawNoise());
+    }
+
+    void set(int i, AiProfile profile, int enemyHp, int enemyMaxHp, int enemyAttack, int enemyDefense,
+             boolean enemyDefending, int playerHp, int playerMaxHp, int playerAttack, int playerDefense,
+             long seed) {
+        profiles[i] = profile;
+        int base = i * FIELDS;
+        inputs[base] = enemyHp;
+        inputs[base + 1] = enemyMaxHp;
+        inputs[base + 2] = enemyAttack;
+        inputs[base + 3] = enemyDefense;
+        inputs[base + 4] = enemyDefending ? 1 : 0;
+        inputs[base + 5] = playerHp;
+        inputs[base + 6] = playerMaxHp;
+        inputs[base + 7] = playerAttack;
+        inputs[base + 8] = playerDefense;
+        noise[i] = seed;
+    }
+
+    AiBatch copy() {
+        AiBatch copy = new AiBatch(size);
+        System.arraycopy(profiles, 0, copy.profiles, 0, size);
+        System.arraycopy(inputs, 0, copy.inputs, 0, inputs.length);
+        System.arraycopy(noise, 0, copy.noise, 0, size);
+        return copy;
+    }
+
+    // 决策 [from, to) 并记录每次的耗时
+    void evaluate(int from, int to) {
+        for (int i = from; i < to; i++) {
+            long start = System.nanoTime();
+            int base = i * FIELDS;
+            actions[i] = EnemyAi.decide(profiles[i], inputs[base], inputs[base + 1], inputs[base + 2],
+                    inputs[base + 3], inputs[base + 4] != 0, inputs[base + 5], inputs[base + 6],
+                    inputs[base + 7], inputs[base + 8], noise[i]);
+            nanos[i] = System.nanoTime() - start;
+        }
+    }
+
+    void markDecided(int from, int to) {
+        Arrays.fill(decided, from, to, true);
+    }
+
+    boolean isDecided(int i) { return decided[i]; }
+    long nanosAt(int i) { return nanos[i]; }
+
+    // 没能按时决策的用降级规则补上
+    int actionAt(int i) {
+        return decided[i] ? actions[i] : EnemyAi.quick(profiles[i], inputs[i * FIELDS], inputs[i * FIELDS + 1]);
+    }
+}
+
+// 每个分区一个：决策少时直接在 tick 线程上算，多时切块交给共享的 AI 工作线程池，
+// 在预算内等待结果，超时的块改用降级决策，AI 的开销不会拖慢整个 tick
+final class AiPlanner {
+    static final int CHUNK = 64;
+
+    private static final class Workers {
+        static final ExecutorService POOL = Executors.newFixedThreadPool(
+                Runtime.getRuntime().availableProcessors(), new ThreadFactory() {
+                    private final AtomicInteger count = new AtomicInteger();
+
+                    @Override
+                    public Thread newThread(Runnable r) {
+                        Thread thread = new Thread(r, "enemy-ai-" + count.getAndIncrement());
+                        thread.setDaemon(true);
+                        return thread;
+                    }
+                });
+    }
+
+    private final long budgetNanos;
+    private final int parallelThreshold;
+    // 以下只在所属 tick 线程上访问
+    private final LatencyHistogram decisionNanos = new LatencyHistogram();
+    private final List<Future<?>> pending = new ArrayList<>();
+    private long decisions;
+    private long fallbacks;
+    private long maxBatchNanos;
+
+    public AiPlanner(long budgetNanos, int parallelThreshold) {
+        this.budgetNanos = budgetNanos;
+        this.parallelThreshold = parallelThreshold;
+    }
+
+    public void decide(AiBatch batch) {
+        long start = System.nanoTime();
+        int n = batch.size();
+        if (n < parallelThreshold) {
+            batch.evaluate(0, n);
+            batch.markDecided(0, n);
+        } else {
+            for (int from = 0; from < n; from += CHUNK) {
+                int lo = from;
+                int hi = Math.min(n, from + CHUNK);
+                pending.add(Workers.POOL.submit(() -> batch.evaluate(lo, hi)));
+            }
+            long deadline = start + budgetNanos;
+            for (int c = 0; c < pending.size(); c++) {
+                Future<?> future = pending.get(c);
+                int from = c * CHUNK;
+                try {
+                    future.get(Math.max(0, deadline - System.nanoTime()), TimeUnit.NANOSECONDS);
+                    batch.markDecided(from, Math.min(n, from + CHUNK));
+                } catch (TimeoutException e) {
+                    future.cancel(false);
+                } catch (ExecutionException e) {
+                    System.out.println("❌ 敌人 AI 决策失败: " + e.getCause());
+                } catch (InterruptedException e) {
+                    // tick 线程正在停止，剩下的都降级
+                    Thread.currentThread().interrupt();
+                    for (int rest = c; rest < pending.size(); rest++) {
+                        pending.get(rest).cancel(false);
+                    }
+                    break;
+                }
+            }
+            pending.clear();
+        }
+
+        for (int i = 0; i < n; i++) {
+            if (batch.isDecided(i)) {
+                decisionNanos.record(batch.nanosAt(i));
+            } else {
+                fallbacks++;
+            }
+        }
+        decisions += n;
+        maxBatchNanos = Math.max(maxBatchNanos, System.nanoTime() - start);
+    }
+
+    // 返回上次汇总以来的统计并清零
+    public String summarize() {
+        String summary = "决策=" + decisions
+                + " 降级=" + fallbacks
+                + " 单次(ns) p50=" + decisionNanos.percentile(0.50)
+                + " p99=" + decisionNanos.percentile(0.99)
+                + " 整批最长(μs)=" + maxBatchNanos / 1000;
+        decisionNanos.reset();
+        decisions = 0;
+        fallbacks = 0;
+        maxBatchNanos = 0;
+        return summary;
+    }
+}
+
+// ==============================
+// 34. 房间事件
+// ==============================
+// 房间里发生的一件事，文本在发布时编码一次，投递给多少人都直接复制字节
+final class RoomEvent {
+    final Room room;
+    final ClientSession actor;
+    final byte[] text;
+
+    RoomEvent(Room room, ClientSession actor, String text) {
+        this.room = room;
+        this.actor = actor;
+        this.text = (text + "\n").getBytes(StandardCharsets.UTF_8);
+    }
+}
+
+// 每个分区一条事件总线：任何线程都可以发布，tick 时按房间归并，
+// 每个在场玩家每 tick 只收到一次写入，超过 MAX_LINES 的部分折叠成一行，
+// 200 人的广场上每 tick 的写入次数与人数成正比，而不是人数的平方
+class RoomEventBus implements TickTask {
+    static final int MAX_LINES = 8;
+    private static final byte[] SEPARATOR = "\n".getBytes(StandardCharsets.UTF_8);
+
+    private final WorldTicker ticker;
+    private final Queue<RoomEvent> queue = new ConcurrentLinkedQueue<>();
+    // 只在 tick 线程上使用
+    private final Map<Room, List<RoomEvent>> byRoom = new LinkedHashMap<>();
+    // 投递可能在其他分区的线程上完成，计数用 LongAdder
+    private final LongAdder published = new LongAdder();
+    private final LongAdder writes = new LongAdder();
+    private final LongAdder lines = new LongAdder();
+    private final LongAdder folded = new LongAdder();
+
+    public RoomEventBus(WorldTicker ticker) {
+        this.ticker = ticker;
+    }
+
+    @Override
+    public String name() { return "events"; }
+
+    public void publish(RoomEvent event) {
+        queue.add(event);
+        published.increment();
+    }
+
+    @Override
+    public void onTick(long tick) {
+        RoomEvent event;
+        while ((event = queue.poll()) != null) {
+            byRoom.computeIfAbsent(event.room, room -> new ArrayList<>()).add(event);
+        }
+        if (byRoom.isEmpty()) {
+            return;
+        }
+
+        for (Map.Entry<Room, List<RoomEvent>> entry : byRoom.entrySet()) {
+            List<RoomEvent> events = entry.getValue();
+            // 每人自己发起了几件事，折叠时不用再逐条扫描剩下的事件
+            Map<ClientSession, Integer> own = new IdentityHashMap<>();
+            for (RoomEvent e : events) {
+                if (e.actor != null) {
+                    own.merge(e.actor, 1, Integer::sum);
+                }
+            }
+            List<RoomEvent> shared = null;
+            for (ClientSession recipient : entry.getKey().getOccupants()) {
+                int mine = own.getOrDefault(recipient, 0);
+                if (recipient.getTicker() == ticker) {
+                    deliver(recipient, events, mine);
+                    ticker.touch(recipient);
+                } else {
+                    // 刚走进本分区、还没移交过来的会话，交给它现在所属的线程写出
+                    if (shared == null) {
+                        shared = List.copyOf(events);
+                    }
+                    List<RoomEvent> copy = shared;
+                    recipient.post(() -> deliver(recipient, copy, mine));
+                }
+            }
+        }
+        byRoom.clear();
+    }
+
+    // 只能在会话所属分区的线程上调用；写满 MAX_LINES 行就停，每人的开销与房间里的事件总数无关
+    private void deliver(ClientSession recipient, List<RoomEvent> events, int mine) {
+        if (recipient.isClosed()) {
+            return;
+        }
+        GameOutput out = recipient.getOutput();
+        int written = 0;
+        int seenMine = 0;
+        int scanned = 0;
+        for (RoomEvent event : events) {
+            if (written == MAX_LINES) {
+                break;
+            }
+            scanned++;
+            if (event.actor == recipient) {
+                seenMine++;
+                continue;
+            }
+            if (written == 0) {
+                out.write(SEPARATOR);
+            }
+            out.write(event.text);
+            written++;
+        }
+        int skipped = events.size() - scanned - (mine - seenMine);
+        if (skipped > 0) {
+            out.println("…… 还有 " + skipped + " 件事");
+            folded.add(skipped);
+        }
+        if (written > 0) {
+            writes.increment();
+            lines.add(written);
+        }
+    }
+
+    // 返回上次汇总以来的统计并清零
+    public String summarize() {
+        return "发布=" + published.sumThenReset()
+                + " 写入=" + writes.sumThenReset()
+                + " 行=" + lines.sumThenReset()
+                + " 折叠=" + folded.sumThenReset();
+    }
+}
+
+// ==============================
+// 35. 运行指标
+// ==============================
+// 全进程共享的指标表：计数用 LongAdder，分布用 ConcurrentHistogram，当前值用回调读取。
+// 埋点处把取到的对象存成静态常量，热路径上只有一次无竞争的累加，不查表
+final class Metrics {
+    static final int DEFAULT_DUMP_SECONDS = 60;
+    static final String OBJECT_NAME = "cn.edu.usst.mud:type=Metrics";
+
+    private static final Map<String, LongAdder> COUNTERS = new ConcurrentSkipListMap<>();
+    private static final Map<String, ConcurrentHistogram> HISTOGRAMS = new ConcurrentSkipListMap<>();
+    private static final Map<String, LongSupplier> GAUGES = new ConcurrentSkipListMap<>();
+    private static final Map<String, Supplier<Map<String, Long>>> FAMILIES = new ConcurrentSkipListMap<>();
+    private static final long STARTED = System.nanoTime();
+    private static ScheduledExecutorService dumper;
+
+    private Metrics() {}
+
+    static LongAdder counter(String name) {
+        return COUNTERS.computeIfAbsent(name, key -> new LongAdder());
+    }
+
+    static ConcurrentHistogram histogram(String name) {
+        return HISTOGRAMS.computeIfAbsent(name, key -> new ConcurrentHistogram());
+    }
+
+    // 同名的回调会被替换，如基准测试里反复创建的服务器
+    static void gauge(String name, LongSupplier value) {
+        GAUGES.put(name, value);
+    }
+
+    // 一组同前缀的值，如各房间的人数，导出为 名称[键]
+    static void gaugeFamily(String name, Supplier<Map<String, Long>> values) {
+        FAMILIES.put(name, values);
+    }
+
+    // 所有指标展开成 名称 → 数值，直方图展开为 .count/.p50/.p99/.max
+    static Map<String, Long> snapshot() {
+        Map<String, Long> values = new LinkedHashMap<>();
+        for (Map.Entry<String, LongAdder> counter : COUNTERS.entrySet()) {
+            values.put(counter.getKey(), counter.getValue().sum());
+        }
+        for (Map.Entry<String, LongSupplier> gauge : GAUGES.entrySet()) {
+            values.put(gauge.getKey(), gauge.getValue().getAsLong());
+        }
+        for (Map.Entry<String, ConcurrentHistogram> histogram : HISTOGRAMS.entrySet()) {
+            LatencyHistogram copy = histogram.getValue().snapshot();
+            String name = histogram.getKey();
+            values.put(name + ".count", copy.getCount());
+            values.put(name + ".p50", copy.percentile(0.50));
+            values.put(name + ".p99", copy.percentile(0.99));
+            values.put(name + ".max", copy.getMax());
+        }
+        for (Map.Entry<String, Supplier<Map<String, Long>>> family : FAMILIES.entrySet()) {
+            for (Map.Entry<String, Long> value : family.getValue().get().entrySet()) {
+                values.put(family.getKey() + "[" + value.getKey() + "]", value.getValue());
+            }
+        }
+        return values;
+    }
+
+    static String dump() {
+        StringBuilder text = new StringBuilder(1024);
+        text.append("📊 运行指标 (已运行 ")
+                .append(TimeUnit.NANOSECONDS.toSeconds(System.nanoTime() - STARTED)).append(" 秒)\n");
+        for (Map.Entry<String, LongAdder> counter : COUNTERS.entrySet()) {
+            line(text, counter.getKey(), String.valueOf(counter.getValue().sum()));
+        }
+        for (Map.Entry<String, LongSupplier> gauge : GAUGES.entrySet()) {
+            line(text, gauge.getKey(), String.valueOf(gauge.getValue().getAsLong()));
+        }
+        for (Map.Entry<String, ConcurrentHistogram> histogram : HISTOGRAMS.entrySet()) {
+            LatencyHistogram copy = histogram.getValue().snapshot();
+            if (copy.getCount() == 0) continue;
+            line(text, histogram.getKey(), "count=" + copy.getCount()
+                    + " p50=" + copy.percentile(0.50)
+                    + " p99=" + copy.percentile(0.99)
+                    + " max=" + copy.getMax());
+        }
+        for (Map.Entry<String, Supplier<Map<String, Long>>> family : FAMILIES.entrySet()) {
+            for (Map.Entry<String, Long> value : family.getValue().get().entrySet()) {
+                line(text, family.getKey() + "[" + value.getKey() + "]", String.valueOf(value.getValue()));
+            }
+        }
+        return text.toString();
+    }
+
+    private static void line(StringBuilder text, String name, String value) {
+        text.append("  ").append(name);
+        for (int pad = name.length(); pad < 32; pad++) {
+            text.append(' ');
+        }
+        text.append(value).append('\n');
+    }
+
+    // 注册到平台 MBeanServer，jconsole 等工具连上进程即可查看
+    static void registerMBean() {
+        try {
+            ObjectName name = new ObjectName(OBJECT_NAME);
+            javax.management.MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            if (!server.isRegistered(name)) {
+                server.registerMBean(new MetricsMBean(), name);
+            }
+        } catch (JMException e) {
+            System.out.println("❌ 指标 MBean 注册失败: " + e.getMessage());
+        }
+    }
+
+    static synchronized void startDump(int intervalSeconds) {
+        if (intervalSeconds <= 0 || dumper != null) {
+            return;
+        }
+        dumper = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, "metrics-dump");
+            thread.setDaemon(true);
+            return thread;
+        });
+        dumper.scheduleAtFixedRate(() -> System.out.print(dump()),
+                intervalSeconds, intervalSeconds, TimeUnit.SECONDS);
+    }
+}
+
+// 指标是运行时才登记的，属性表每次按当前的指标生成；全部只读，另有 dump 操作返回文本
+final class MetricsMBean implements DynamicMBean {
+    @Override
+    public Object getAttribute(String attribute) throws AttributeNotFoundException {
+        Long value = Metrics.snapshot().get(attribute);
+        if (value == null) {
+            throw new AttributeNotFoundException(attribute);
+        }
+        return value;
+    }
+
+    @Override
+    public AttributeList getAttributes(String[] attributes) {
+        Map<String, Long> values = Metrics.snapshot();
+        AttributeList list = new AttributeList();
+        for (String attribute : attributes) {
+            Long value = values.get(attribute);
+            if (value != null) {
+                list.add(new Attribute(attribute, value));
+            }
+        }
+        return list;
+    }
+
+    @Override
+    public void setAttribute(Attribute attribute) throws AttributeNotFoundException {
+        throw new AttributeNotFoundException("指标是只读的: " + attribute.getName());
+    }
+
+    @Override
+    public AttributeList setAttributes(AttributeList attributes) {
+        return new AttributeList();
+    }
+
+    @Override
+    public Object invoke(String actionName, Object[] params, String[] signature) throws ReflectionException {
+        if (actionName.equals("dump")) {
+            return Metrics.dump();
+        }
+        throw new ReflectionException(new NoSuchMethodException(actionName));
+    }
+
+    @Override
+    public MBeanInfo getMBeanInfo() {
+        Set<String> names = Metrics.snapshot().keySet();
+        MBeanAttributeInfo[] attributes = new MBeanAttributeInfo[names.size()];
+        int i = 0;
+        for (String name : names) {
+            attributes[i++] = new MBeanAttributeInfo(name, Long.class.getName(), name, true, false, false);
+        }
+        MBeanOperationInfo dump = new MBeanOperationInfo("dump", "以文本形式导出全部指标",
+                new MBeanParameterInfo[0], String.class.getName(), MBeanOperationInfo.INFO);
+        return new MBeanInfo(MetricsMBean.class.getName(), "MUD 运行指标", attributes,
+                null, new MBeanOperationInfo[] {dump}, null);
+    }
+}
+
+// ==============================
+// 36. 自动存档
+// ==============================
+// 某一时刻玩家的完整状态，不可变，可以交给任何线程编码
+final class PlayerSnapshot {
+    private final String name;
+    private final String roomName;
+    private final int level;
+    private final int hp;
+    private final int maxHp;
+    private final int mp;
+    private final int maxMp;
+    private final int attack;
+    private final int defense;
+    private final int experience;
+    private final int maxExperience;
+    private final int gold;
+    private final List<Skill> skills;
+    private final List<Item> inventory;
+
+    PlayerSnapshot(String name, String roomName, int level, int hp, int maxHp, int mp, int maxMp,
+                   int attack, int defense, int experience, int maxExperience, int gold,
+                   List<Skill> skills, List<Item> inventory) {
+        this.name = name;
+        this.roomName = roomName;
+        this.level = level;
+        this.hp = hp;
+        this.maxHp = maxHp;
+        this.mp = mp;
+        this.maxMp = maxMp;
+        this.attack = attack;
+        this.defense = defense;
+        this.experience = experience;
+        this.maxExperience = maxExperience;
+        this.gold = gold;
+        this.skills = List.copyOf(skills);
+        // 物品栏是写时复制列表，复制只是拷贝一次数组
+        this.inventory = List.copyOf(inventory);
+    }
+
+    public String getName() { return name; }
+    public String getRoomName() { return roomName; }
+    public int getLevel() { return level; }
+    public int getHp() { return hp; }
+    public int getMaxHp() { return maxHp; }
+    public int getMp() { return mp; }
+    public int getMaxMp() { return maxMp; }
+    public int getAttack() { return attack; }
+    public int getDefense() { return defense; }
+    public int getExperience() { return experience; }
+    public int getMaxExperience() { return maxExperience; }
+    public int getGold() { return gold; }
+    public List<Skill> getSkills() { return skills; }
+    public List<Item> getInventory() { return inventory; }
+
+    // 物品和技能按引用比较：没有变化的玩家两次快照里是同一批对象
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) return true;
+        if (!(o instanceof PlayerSnapshot)) return false;
+        PlayerSnapshot other = (PlayerSnapshot) o;
+        return level == other.level && hp == other.hp && maxHp == other.maxHp
+                && mp == other.mp && maxMp == other.maxMp
+                && attack == other.attack && defense == other.defense
+                && experience == other.experience && maxExperience == other.maxExperience
+                && gold == other.gold
+                && name.equals(other.name) && roomName.equals(other.roomName)
+                && skills.equals(other.skills) && inventory.equals(other.inventory);
+    }
+
+    @Override
+    public int hashCode() {
+        return Objects.hash(name, roomName, level, hp, mp, gold, experience, inventory.size());
+    }
+}
+
+// 自动存档的落盘方式；一批快照一次调用，由实现决定怎样合并 fsync
+interface SaveSink extends Closeable {
+    void write(List<PlayerSnapshot> batch) throws IOException;
+}
+
+// 整批快照编码后作为一次追加写入存档库，一批只 fsync 一次
+class StoreSaveSink implements SaveSink {
+    private final SaveStore store;
+
+    public StoreSaveSink(SaveStore store) {
+        this.store = store;
+    }
+
+    @Override
+    public void write(List<PlayerSnapshot> batch) throws IOException {
+        Map<String, byte[]> records = new LinkedHashMap<>();
+        for (PlayerSnapshot snapshot : batch) {
+            records.put(snapshot.getName(), SaveCodec.encode(snapshot));
+        }
+        store.putAll(records);
+    }
+
+    @Override
+    public void close() throws IOException {
+        store.close();
+    }
+}
+
+// 游戏线程只提交快照，同一玩家未落盘的旧快照直接被新的覆盖；
+// 单个后台线程每次取走所有待存快照，整批交给 SaveSink，游戏线程从不等待磁盘
+final class AutoSaver {
+    static final String DEFAULT_STORE = "mud_server_saves.db";
+    static final int DEFAULT_INTERVAL_SECONDS = 60;
+
+    private static final ConcurrentHistogram BATCH_SIZE = Metrics.histogram("autosave.batch.size");
+    private static final ConcurrentHistogram FLUSH_MICROS = Metrics.histogram("autosave.flush.micros");
+    private static final LongAdder SAVED = Metrics.counter("autosave.saved");
+    private static final LongAdder UNCHANGED = Metrics.counter("autosave.unchanged");
+    private static final LongAdder FAILURES = Metrics.counter("autosave.failures");
+
+    private final SaveSink sink;
+    private final ExecutorService io = Executors.newSingleThreadExecutor(r -> {
+        Thread thread = new Thread(r, "autosave-io");
+        thread.setDaemon(true);
+        return thread;
+    });
+    // 玩家名 → 最新的待存快照
+    private final ConcurrentHashMap<String, PlayerSnapshot> pending = new ConcurrentHashMap<>();
+    // 在线玩家名 → 最近一次提交的快照，内容没变就不再写
+    private final ConcurrentHashMap<String, PlayerSnapshot> submitted = new ConcurrentHashMap<>();
+    // 已从 pending 取出、正在写的快照；和 pending 一起供登录时查询还没进存档库的状态
+    private final ConcurrentHashMap<String, PlayerSnapshot> inFlight = new ConcurrentHashMap<>();
+    private final AtomicBoolean flushQueued = new AtomicBoolean();
+    private final LongAdder batches = new LongAdder();
+    private final LongAdder written = new LongAdder();
+    private final LongAdder skipped = new LongAdder();
+
+    public AutoSaver(SaveSink sink) {
+        this.sink = sink;
+    }
+
+    // 任意线程调用，只做一次比较和一次哈希表写入
+    public void submit(PlayerSnapshot snapshot) {
+        if (snapshot.equals(submitted.put(snapshot.getName(), snapshot))) {
+            skipped.increment();
+            UNCHANGED.increment();
+            return;
+        }
+        pending.put(snapshot.getName(), snapshot);
+    }
+
+    // 下线时的最后一份快照：这个玩家之后不会再提交，用来比较的副本随之丢掉，
+    // submitted 只保留在线玩家的快照，不会随登录过的角色数增长
+    public void submitFinal(PlayerSnapshot snapshot) {
+        if (snapshot.equals(submitted.remove(snapshot.getName()))) {
+            // 和上次提交的相同：那一份已经落盘或还在 pending 里
+            skipped.increment();
+            UNCHANGED.increment();
+            return;
+        }
+        pending.put(snapshot.getName(), snapshot);
+    }
+
+    // 还没写进存档库的最新快照，没有时返回 null
+    public PlayerSnapshot unsaved(String name) {
+        PlayerSnapshot snapshot = pending.get(name);
+        return snapshot != null ? snapshot : inFlight.get(name);
+    }
+
+    // 排一次后台落盘；已经排上、还没开始的那次会带上新提交的快照
+    public void flushAsync() {
+        if (pending.isEmpty() || !flushQueued.compareAndSet(false, true)) {
+            return;
+        }
+        try {
+            io.execute(this::flush);
+        } catch (RejectedExecutionException e) {
+            flushQueued.set(false);
+        }
+    }
+
+    private void flush() {
+        flushQueued.set(false);
+        List<PlayerSnapshot> batch = new ArrayList<>(pending.size());
+        for (Map.Entry<String, PlayerSnapshot> entry : pending.entrySet()) {
+            // 先登记为正在写再移出 pending，unsaved 总能在其中一边看到它
+            PlayerSnapshot snapshot = entry.getValue();
+            inFlight.put(entry.getKey(), snapshot);
+            if (pending.remove(entry.getKey(), snapshot)) {
+                batch.add(snapshot);
+            } else {
+                // 刚被更新的快照替换，留给下一轮
+                inFlight.remove(entry.getKey(), snapshot);
+            }
+        }
+        if (batch.isEmpty()) {
+            return;
+        }
+
+        long start = System.nanoTime();
+        try {
+            sink.write(batch);
+            batches.increment();
+            written.add(batch.size());
+            SAVED.add(batch.size());
+            BATCH_SIZE.record(batch.size());
+            FLUSH_MICROS.record((System.nanoTime() - start) / 1000);
+        } catch (IOException | RuntimeException e) {
+            FAILURES.increment();
+            System.out.println("❌ 自动存档失败: " + e.getMessage());
+            // 放回去等下一轮重试；期间若有更新的快照则以新的为准
+            for (PlayerSnapshot snapshot : batch) {
+                pending.putIfAbsent(snapshot.getName(), snapshot);
+                submitted.remove(snapshot.getName(), snapshot);
+            }
+        } finally {
+            for (PlayerSnapshot snapshot : batch) {
+                inFlight.remove(snapshot.getName(), snapshot);
+            }
+        }
+    }
+
+    // 落盘剩下的快照后停止后台线程并关闭 SaveSink
+    public void close() {
+        flushAsync();
+        io.shutdown();
+        try {
+            if (!io.awaitTermination(30, TimeUnit.SECONDS)) {
+                System.out.println("❌ 自动存档未能在 30 秒内写完");
+                return;
+            }
+            sink.close();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (IOException e) {
+            System.out.println("❌ 关闭存档库失败: " + e.getMessage());
+        }
+    }
+
+    public String summarize() {
+        return "批次=" + batches.sumThenReset()
+                + " 写入=" + written.sumThenReset()
+                + " 未变化=" + skipped.sumThenReset();
+    }
+}
+
+// 每个分区一个：按间隔给本分区的在线玩家拍快照，各分区错开 tick，落盘请求不会同时到达
+class AutoSaveTask implements TickTask {
+    private final WorldTicker ticker;
+    private final GameServer server;
+    private final AutoSaver saver;
+    private final int intervalTicks;
+
+    AutoSaveTask(WorldTicker ticker, GameServer server, AutoSaver saver, int intervalTicks) {
+        this.ticker = ticker;
+        this.server = server;
+        this.saver = saver;
+        this.intervalTicks = Math.max(1, intervalTicks);
+    }
+
+    @Override
+    public String name() { return "autosave"; }
+
+    @Override
+    public void onTick(long tick) {
+        if ((tick + ticker.getZone()) % intervalTicks != 0) {
+            return;
+        }
+        for (ClientSession session : server.getSessions()) {
+            // 会话此刻归本分区所有，读取它的玩家不会和其他线程竞争
+            if (session.getTicker() != ticker || session.isClosed()) continue;
+            PlayerSnapshot snapshot = session.snapshot();
+            if (snapshot != null) {
+                saver.submit(snapshot);
+            }
+        }
+        saver.flushAsync();
+    }
+}
+
+// ==============================
+// 37. 存档库
+// ==============================
+// 键值存档库（角色名 → 存档），单个追加写的段文件加内存索引：
+// 覆盖写是追加一条新记录再改索引，旧值在新记录 fsync 之前始终完好，不会出现先截断再写的半截存档；
+// 打开时顺序扫描重建索引，长度或 CRC 不对的尾部视为未写完并截掉；
+// 失效记录超过有效数据时把有效记录重写到新文件，再原子替换旧文件。
+// 格式: 魔数 + 版本，之后每条记录为 长度 + 内容 + CRC32，内容为 类型 + 键(UTF) + 值
+class SaveStore implements Closeable {
+    private static final int MAGIC = 0x4D55444B; // "MUDK"
+    private static final int VERSION = 1;
+    private static final int HEADER_BYTES = 6;
+    private static final byte PUT = 1;
+    private static final byte DELETE = 2;
+    // 文件小于这个大小时不压缩
+    private static final long COMPACT_MIN_BYTES = 1 << 20;
+
+    // 值在文件中的位置，以及整条记录的长度（用来统计失效字节）
+    private static final class Entry {
+        final long offset;
+        final int length;
+        final int recordBytes;
+
+        Entry(long offset, int length, int recordBytes) {
+            this.offset = offset;
+            this.length = length;
+            this.recordBytes = recordBytes;
+        }
+    }
+
+    private final File file;
+    private final Map<String, Entry> index = new HashMap<>();
+    private final java.util.zip.CRC32 crc = new java.util.zip.CRC32();
+    private FileChannel channel;
+    private long end;
+    private long liveBytes;
+    private int compactions;
+
+    private SaveStore(File file) {
+        this.file = file;
+    }
+
+    public static SaveStore open(File file) throws IOException {
+        SaveStore store = new SaveStore(file);
+        store.channel = FileChannel.open(file.toPath(), java.nio.file.StandardOpenOption.CREATE,
+                java.nio.file.StandardOpenOption.READ, java.nio.file.StandardOpenOption.WRITE);
+        try {
+            store.recover();
+        } catch (IOException e) {
+            store.channel.close();
+            throw e;
+        }
+        return store;
+    }
+
+    public synchronized byte[] get(String key) throws IOException {
+        Entry entry = index.get(key);
+        if (entry == null) {
+            return null;
+        }
+        ByteBuffer value = ByteBuffer.allocate(entry.length);
+        readFully(channel, value, entry.offset);
+        return value.array();
+    }
+
+    public synchronized boolean contains(String key) {
+        return index.containsKey(key);
+    }
+
+    // 按名称排序的全部键
+    public synchronized List<String> keys() {
+        List<String> keys = new ArrayList<>(index.keySet());
+        Collections.sort(keys);
+        return keys;
+    }
+
+    public synchronized int size() {
+        return index.size();
+    }
+
+    public void put(String key, byte[] value) throws IOException {
+        putAll(Collections.singletonMap(key, value));
+    }
+
+    // 整批追加后只 fsync 一次，成功返回后整批都已落盘
+    public synchronized void putAll(Map<String, byte[]> records) throws IOException {
+        if (records.isEmpty()) {
+            return;
+        }
+        ByteArrayOutputStream batch = new ByteArrayOutputStream(records.size() * 256);
+        Map<String, Entry> written = new LinkedHashMap<>();
+        for (Map.Entry<String, byte[]> record : records.entrySet()) {
+            long recordStart = end + batch.size();
+            int valueOffset = appendRecord(batch, PUT, record.getKey(), record.getValue());
+            int recordBytes = (int) (end + batch.size() - recordStart);
+            written.put(record.getKey(), new Entry(recordStart + valueOffset, record.getValue().length, recordBytes));
+        }
+        append(batch.toByteArray());
+        for (Map.Entry<String, Entry> entry : written.entrySet()) {
+            Entry old = index.put(entry.getKey(), entry.getValue());
+            if (old != null) liveBytes -= old.recordBytes;
+            liveBytes += entry.getValue().recordBytes;
+        }
+        compactIfWasteful();
+    }
+
+    public synchronized boolean remove(String key) throws IOException {
+        if (!index.containsKey(key)) {
+            return false;
+        }
+        ByteArrayOutputStream record = new ByteArrayOutputStream(64);
+        appendRecord(record, DELETE, key, new byte[0]);
+        append(record.toByteArray());
+        liveBytes -= index.remove(key).recordBytes;
+        compactIfWasteful();
+        return true;
+    }
+
+    public synchronized String summarize() {
+        return "角色=" + index.size()
+                + " 有效=" + liveBytes / 1024 + "KB"
+                + " 文件=" + end / 1024 + "KB"
+                + " 压缩=" + compactions;
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        if (channel != null) {
+            channel.close();
+            channel = null;
+        }
+    }
+
+    // 写入失败时截回原来的长度，索引还没改，存档库保持写入前的状态
+    private void append(byte[] bytes) throws IOException {
+        try {
+            ByteBuffer buffer = ByteBuffer.wrap(bytes);
+            long position = end;
+            while (buffer.hasRemaining()) {
+                position += channel.write(buffer, position);
+            }
+            channel.force(false);
+        } catch (IOException e) {
+            channel.truncate(end);
+            throw e;
+        }
+        end += bytes.length;
+    }
+
+    // 返回值在记录内的偏移
+    private int appendRecord(ByteArrayOutputStream out, byte type, String key, byte[] value) throws IOException {
+        ByteArrayOutputStream body = new ByteArrayOutputStream(value.length + 32);
+        DataOutputStream bodyOut = new DataOutputStream(body);
+        bodyOut.writeByte(type);
+        bodyOut.writeUTF(key);
+        int valueOffset = 4 + body.size();
+        bodyOut.write(value);
+        bodyOut.flush();
+        byte[] bytes = body.toByteArray();
+        crc.reset();
+        crc.update(bytes);
+
+        DataOutputStream recordOut = new DataOutputStream(out);
+        recordOut.writeInt(bytes.length);
+        recordOut.write(bytes);
+        recordOut.writeInt((int) crc.getValue());
+        recordOut.flush();
+        return valueOffset;
+    }
+
+    private void recover() throws IOException {
+        long size = channel.size();
+        if (size < HEADER_BYTES) {
+            ByteBuffer header = ByteBuffer.allocate(HEADER_BYTES);
+            header.putInt(MAGIC).putShort((short) VERSION).flip();
+            channel.truncate(0);
+            channel.write(header, 0);
+            channel.force(true);
+            end = HEADER_BYTES;
+            return;
+        }
+
+        ByteBuffer header = ByteBuffer.allocate(HEADER_BYTES);
+        readFully(channel, header, 0);
+        header.flip();
+        if (header.getInt() != MAGIC) {
+            throw new IOException("不是存档库文件: " + file);
+        }
+        int version = header.getShort() & 0xFFFF;
+        if (version > VERSION) {
+            throw new IOException("存档库版本过新: " + version);
+        }
+
+        DataInputStream in = new DataInputStream(new BufferedInputStream(
+                java.nio.channels.Channels.newInputStream(channel.position(HEADER_BYTES)), 64 * 1024));
+        long position = HEADER_BYTES;
+        while (position + 8 <= size) {
+            int length = in.readInt();
+            if (length <= 0 || position + 8 + length > size) {
+                break;
+            }
+            byte[] body = new byte[length];
+            in.readFully(body);
+            crc.reset();
+            crc.update(body);
+            if (in.readInt() != (int) crc.getValue()) {
+                break;
+            }
+
+            DataInputStream bodyIn = new DataInputStream(new ByteArrayInputStream(body));
+            byte type = bodyIn.readByte();
+            String key = bodyIn.readUTF();
+            int valueOffset = length - bodyIn.available();
+            int recordBytes = 8 + length;
+            Entry old = type == PUT
+                    ? index.put(key, new Entry(position + 4 + valueOffset, length - valueOffset, recordBytes))
+                    : index.remove(key);
+            if (old != null) liveBytes -= old.recordBytes;
+            if (type == PUT) liveBytes += recordBytes;
+            position += recordBytes;
+        }
+        // 最后一批没写完就崩溃时，截掉不完整的尾部
+        if (position < size) {
+            channel.truncate(position);
+            channel.force(true);
+        }
+        end = position;
+    }
+
+    // 压缩失败不影响已经写入的数据，下次写入时再试
+    private void compactIfWasteful() {
+        if (end < COMPACT_MIN_BYTES || end - HEADER_BYTES - liveBytes <= liveBytes) {
+            return;
+        }
+        try {
+            compact();
+        } catch (IOException e) {
+            System.out.println("❌ 存档库压缩失败: " + e.getMessage());
+        }
+    }
+
+    private void compact() throws IOException {
+        java.nio.file.Path temp = new File(file.getPath() + ".compact").toPath();
+        Map<String, Entry> moved = new HashMap<>();
+        long position = HEADER_BYTES;
+        try (FileChannel out = FileChannel.open(temp, java.nio.file.StandardOpenOption.CREATE,
+                java.nio.file.StandardOpenOption.WRITE, java.nio.file.StandardOpenOption.TRUNCATE_EXISTING)) {
+            ByteBuffer header = ByteBuffer.allocate(HEADER_BYTES);
+            header.putInt(MAGIC).putShort((short) VERSION).flip();
+            out.write(header, 0);
+            for (Map.Entry<String, Entry> entry : index.entrySet()) {
+                ByteArrayOutputStream record = new ByteArrayOutputStream(entry.getValue().recordBytes);
+                int valueOffset = appendRecord(record, PUT, entry.getKey(), get(entry.getKey()));
+                ByteBuffer bytes = ByteBuffer.wrap(record.toByteArray());
+                moved.put(entry.getKey(), new Entry(position + valueOffset, entry.getValue().length, bytes.remaining()));
+                long at = position;
+                while (bytes.hasRemaining()) {
+                    at += out.write(bytes, at);
+                }
+                position = at;
+            }
+            out.force(true);
+        }
+        // 替换失败时重新打开的仍是旧文件，索引不变
+        channel.close();
+        try {
+            java.nio.file.Files.move(temp, file.toPath(),
+                    java.nio.file.StandardCopyOption.REPLACE_EXISTING,
+                    java.nio.file.StandardCopyOption.ATOMIC_MOVE);
+        } finally {
+            channel = FileChannel.open(file.toPath(), java.nio.file.StandardOpenOption.READ,
+                    java.nio.file.StandardOpenOption.WRITE);
+        }
+        index.putAll(moved);
+        end = position;
+        compactions++;
+        // 改名落盘之前崩溃，恢复出的仍是旧文件，之后追加到新文件的记录就丢了；
+        // 放在索引更新之后，fsync 失败时索引和已打开的新文件仍然一致
+        WorldStore.syncDirectory(file);
+    }
+
+    private static void readFully(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+        while (buffer.hasRemaining()) {
+            int n = channel.read(buffer, position + buffer.position());
+            if (n < 0) {
+                throw new EOFException("存档库文件被截断");
+            }
+        }
+    }
+}
+
+// ==============================
+// 38. 冷数据淘汰
+// ==============================
+// 存档库前面的玩家缓存：在线玩家常驻内存，下线后按下线先后留在缓存里，重新登录直接复用；
+// 离线玩家超过容量时按下线先后淘汰最早的一批。缓存自己从不写存档库：下线时的最后一份快照交给自动存档，
+// 存档库只有 autosave-io 一个写入者，同一角色的新旧存档不会乱序落盘。
+// 淘汰后马上重新登录时那份快照可能还没落盘，所以未命中时先问自动存档，再读存档库。
+// 登录和下线可能在不同分区的线程上，所有操作都在缓存锁内完成
+final class PlayerCache {
+    static final int DEFAULT_CAPACITY = 1024;
+
+    private static final LongAdder HITS = Metrics.counter("player.cache.hits");
+    private static final LongAdder MISSES = Metrics.counter("player.cache.misses");
+    private static final LongAdder EVICTIONS = Metrics.counter("player.cache.evictions");
+
+    // 离线玩家：下线时的玩家对象和所在房间
+    private static final class Entry {
+        final Player player;
+        final String roomName;
+
+        Entry(Player player, String roomName) {
+            this.player = player;
+            this.roomName = roomName;
+        }
+    }
+
+    private final SaveStore store;
+    private final AutoSaver saver;
+    private final int capacity;
+    private final Map<String, Player> online = new HashMap<>();
+    // 按下线先后排列，最早下线的在最前面
+    private final LinkedHashMap<String, Entry> offline = new LinkedHashMap<>();
+    private long hits;
+    private long misses;
+    private long evictions;
+
+    // saver 应写入同一个 store
+    public PlayerCache(SaveStore store, AutoSaver saver, int capacity) {
+        this.store = store;
+        this.saver = saver;
+        this.capacity = capacity;
+        Metrics.gauge("player.cache.resident", this::size);
+    }
+
+    public synchronized int size() {
+        return online.size() + offline.size();
+    }
+
+    // 登录时调用，返回角色和上次所在的房间：先查缓存，再读存档库，都没有则新建角色，房间为 null。
+    // 同名角色已经在线时抛出 IllegalStateException
+    public synchronized GameSaveData checkOut(String name) throws IOException {
+        if (online.containsKey(name)) {
+            throw new IllegalStateException("角色 " + name + " 已经在线");
+        }
+        GameSaveData data;
+        Entry entry = offline.remove(name);
+        if (entry != null) {
+            hits++;
+            HITS.increment();
+            data = new GameSaveData(entry.player, entry.roomName);
+        } else {
+            misses++;
+            MISSES.increment();
+            PlayerSnapshot unsaved = saver.unsaved(name);
+            byte[] bytes = unsaved != null ? SaveCodec.encode(unsaved) : store.get(name);
+            data = bytes != null ? SaveCodec.decode(bytes) : new GameSaveData(new Player(name), null);
+        }
+        online.put(name, data.getPlayer());
+        return data;
+    }
+
+    // 下线时调用：最后一份快照交给自动存档，玩家留在缓存里；
+    // 离线玩家超过容量时从最早下线的开始一次淘汰到容量的四分之三
+    public synchronized void checkIn(PlayerSnapshot snapshot) {
+        saver.submitFinal(snapshot);
+        saver.flushAsync();
+        Player player = online.remove(snapshot.getName());
+        if (player == null) {
+            return;
+        }
+        offline.put(snapshot.getName(), new Entry(player, snapshot.getRoomName()));
+        if (offline.size() > capacity) {
+            int keep = capacity / 4 * 3;
+            Iterator<String> it = offline.keySet().iterator();
+            while (offline.size() > keep) {
+                it.next();
+                it.remove();
+                evictions++;
+                EVICTIONS.increment();
+            }
+        }
+    }
+
+    public synchronized String summarize() {
+        long lookups = hits + misses;
+        String text = "命中=" + hits + " 未命中=" + misses
+                + " 命中率=" + (lookups == 0 ? 0 : hits * 100 / lookups) + "%"
+                + " 淘汰=" + evictions + " 驻留=" + size();
+        hits = 0;
+        misses = 0;
+        evictions = 0;
+        return text;
+    }
+}
+
+// 懒加载世界的区域淘汰，只挂在 0 号分区上；淘汰在世界锁内完成，其他分区只在这期间读入区域时稍等。
+// 有人进入过的区域至少保留 MIN_IDLE_NANOS，会话在 visit 之后、走进房间之前不会遇上淘汰
+class RegionEvictionTask implements TickTask {
+    static final int DEFAULT_INTERVAL_SECONDS = 5;
+    static final long MIN_IDLE_NANOS = TimeUnit.SECONDS.toNanos(30);
+
+    private final GameWorld world;
+    private final RegionWriter writer;
+    private final int intervalTicks;
+
+    RegionEvictionTask(GameWorld world, RegionWriter writer, int intervalTicks) {
+        this.world = world;
+        this.writer = writer;
+        this.intervalTicks = Math.max(1, intervalTicks);
+    }
+
+    @Override
+    public String name() { return "eviction"; }
+
+    // 淘汰后把写回的状态块交给后台写盘；上次写失败留下的块也在这里重试
+    @Override
+    public void onTick(long tick) {
+        if (tick % intervalTicks == 0) {
+            world.evictIdleRegions(MIN_IDLE_NANOS, room -> false);
+            writer.flushAsync();
+        }
+    }
+}
+
+// 被淘汰区域的状态块由后台线程写进世界存档，落盘后才从内存中丢掉；
+// 网络模式下只有这一个线程写世界存档，分区线程读入区域时只读文件
+final class RegionWriter {
+    static final String DEFAULT_FILE = "mud_server_world.dat";
+
+    private static final LongAdder STORED = Metrics.counter("world.region.stored");
+    private static final LongAdder FAILURES = Metrics.counter("world.region.store.failures");
+
+    private final GameWorld world;
+    private final WorldStore store;
+    private final ExecutorService io = Executors.newSingleThreadExecutor(r -> {
+        Thread thread = new Thread(r, "world-io");
+        thread.setDaemon(true);
+        return thread;
+    });
+    private final AtomicBoolean flushQueued = new AtomicBoolean();
+
+    RegionWriter(GameWorld world, WorldStore store) {
+        this.world = world;
+        this.store = store;
+    }
+
+    // 排一次后台写盘；已经排上、还没开始的那次会带上新淘汰的区域
+    public void flushAsync() {
+        if (!world.hasParkedRegions() || !flushQueued.compareAndSet(false, true)) {
+            return;
+        }
+        try {
+            io.execute(this::flush);
+        } catch (RejectedExecutionException e) {
+            flushQueued.set(false);
+        }
+    }
+
+    // 整个世界文件重写一次，批量写入这段时间里淘汰的全部区域；失败的块留在内存里等下一轮
+    private void flush() {
+        flushQueued.set(false);
+        Map<String, byte[]> batch = world.getParkedRegions();
+        if (batch.isEmpty()) {
+            return;
+        }
+        try {
+            store.putRegions(batch);
+            world.regionsStored(store, batch);
+            STORED.add(batch.size());
+        } catch (IOException | RuntimeException e) {
+            FAILURES.increment();
+            System.out.println("❌ 区域状态写入失败: " + e.getMessage());
+        }
+    }
+
+    // 分区都停下之后调用：还在内存里、有改动的区域一起写进存档，落盘后停止后台线程
+    public void close() {
+        world.parkChangedRegions();
+        flushAsync();
+        io.shutdown();
+        try {
+            if (!io.awaitTermination(30, TimeUnit.SECONDS)) {
+                System.out.println("❌ 区域状态未能在 30 秒内写完");
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
 }
\ No newline at end of file